@@ -118,26 +118,26 @@ JNIEXPORT void JNICALL JNI_OnUnload( JavaVM *vm, void *reserved ) {
   return;
 }
 
-JNIEXPORT jlong JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nInit(JNIEnv *env, jobject this, jboolean encrypting, jbyteArray key, jbyteArray iv) {
-  uint8_t ckey[32];
-  aes_state *state;
+static int check_key_iv(JNIEnv *env, jbyteArray key, jbyteArray iv) {
   jint key_len = (*env)->GetArrayLength(env, key);
   jint iv_len = (*env)->GetArrayLength(env, iv);
 
   if( ! ( key_len == 16 || key_len == 24 || key_len == 32 ) || iv_len != 16 ) {
     (*env)->ThrowNew(env, bad_arg, "Invalid length of key or iv");
-    return -1;
+    return 0;
   }
 
-  state = (aes_state *)malloc(sizeof(aes_state));
-  if( state == NULL ) {
-    (*env)->ThrowNew(env, no_mem, "Cannot allocate memory for the encryption state");
-    return -1;
-  }
+  return 1;
+}
+
+static void init_state(JNIEnv *env, aes_state *state, jboolean encrypting, jbyteArray key, jbyteArray iv) {
+  uint8_t ckey[32];
+  jint key_len = (*env)->GetArrayLength(env, key);
+
   memset(state, 0, sizeof(aes_state));
 
   (*env)->GetByteArrayRegion(env, key, (jint)0, key_len, (jbyte *)ckey);
-  (*env)->GetByteArrayRegion(env, iv, (jint)0, iv_len, (jbyte *)state->iv);
+  (*env)->GetByteArrayRegion(env, iv, (jint)0, 16, (jbyte *)state->iv);
 
   if( encrypting ) {
     state->direction = ENCRYPTION;
@@ -147,10 +147,44 @@ JNIEXPORT jlong JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nInit(JN
     aes_decrypt_key(ckey, key_len, DEC_CTX(state));
   }
 
+  memset(ckey, 0, sizeof(ckey));
+}
+
+JNIEXPORT jlong JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nInit(JNIEnv *env, jobject this, jboolean encrypting, jbyteArray key, jbyteArray iv) {
+  aes_state *state;
+
+  if( !check_key_iv(env, key, iv) ) {
+    return -1;
+  }
+
+  state = (aes_state *)malloc(sizeof(aes_state));
+  if( state == NULL ) {
+    (*env)->ThrowNew(env, no_mem, "Cannot allocate memory for the encryption state");
+    return -1;
+  }
+
+  init_state(env, state, encrypting, key, iv);
+
   return (jlong)state;
 }
 
+// Re-key a pooled state instead of allocating a new one
+JNIEXPORT void JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nReinit(JNIEnv *env, jobject this, jlong state, jboolean encrypting, jbyteArray key, jbyteArray iv) {
+  if( !check_key_iv(env, key, iv) ) {
+    return;
+  }
+
+  init_state(env, (aes_state *)state, encrypting, key, iv);
+}
+
+// Erase the key schedule and cached data before a state goes back to the pool
+JNIEXPORT void JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nWipe(JNIEnv *env, jclass this, jlong state) {
+  memset((void *)state, 0, sizeof(aes_state));
+  ((aes_state *)state)->direction = FINALIZED;
+}
+
 JNIEXPORT void JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nCleanup(JNIEnv *env, jclass this, jlong state) {
+  memset((void *)state, 0, sizeof(aes_state));
   free((void *)state);
 }
 
@@ -254,6 +288,121 @@ JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nUpdate(J
   return outLen;
 }
 
+static int crypt_blocks(aes_state *c_state, const uint8_t *in, uint8_t *out, uint32_t len) {
+  if( c_state->direction == ENCRYPTION )
+    return aes_cbc_encrypt(in, out, len, c_state->iv, ENC_CTX(c_state));
+  else
+    return aes_cbc_decrypt(in, out, len, c_state->iv, DEC_CTX(c_state));
+}
+
+/*
+  Same as nUpdate, but works on the memory of direct ByteBuffers. Only the
+  blocks which continue the cached bytes and the bytes left for the next
+  call are copied, everything in between is en/decrypted in place from the
+  input to the output buffer.
+*/
+JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nUpdateDirect(JNIEnv *env, jobject this,
+	jlong state, jobject input, jint inputOffset, jint inputLen, jobject output, jint outputOffset, jint outputSize) {
+  int aes_ret = EXIT_SUCCESS;
+  uint32_t outLen, bytes2cache, cryptLen, headLen, fromCache, pos, i;
+  uint8_t *c_input, *c_output, *copy = NULL;
+  uint8_t head[CACHE_SIZE], tail[CACHE_SIZE];
+  aes_state *c_state;
+
+  #if defined(KPD_DEBUG)
+  __android_log_print(ANDROID_LOG_INFO, "kpd_jni.c/nUpdateDirect", "entry: inputLen=%d, outputSize=%d", inputLen, outputSize);
+  #endif
+
+  // step 1: first, some housecleaning
+  if( inputLen <= 0 || outputSize <= 0 || inputOffset < 0 || outputOffset < 0 || !input || !output ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateDirect: called with 1 or more invalid arguments");
+    return -1;
+  }
+  c_input = (*env)->GetDirectBufferAddress(env, input);
+  c_output = (*env)->GetDirectBufferAddress(env, output);
+  if( c_input == NULL || c_output == NULL ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateDirect: buffers must be direct");
+    return -1;
+  }
+  c_input += inputOffset;
+  c_output += outputOffset;
+  c_state = (aes_state *)state;
+  if( c_state->direction == FINALIZED ) {
+    (*env)->ThrowNew(env, bad_arg, "Trying to update a finalized state");
+    return -1;
+  }
+
+  // step 1.5: calculate cryptLen and outLen
+  cryptLen = inputLen + c_state->cache_len;
+  if( cryptLen < CACHE_SIZE ) {
+    memcpy(c_state->cache + c_state->cache_len, c_input, inputLen);
+    c_state->cache_len = cryptLen;
+    return 0;
+  }
+  bytes2cache = (cryptLen & 15) + AES_BLOCK_SIZE;
+  outLen = (cryptLen - bytes2cache);
+  if( outLen > (uint32_t)outputSize ) {
+    (*env)->ThrowNew(env, bad_arg, "Output buffer does not have enough space");
+    return -1;
+  }
+
+  // step 2: the output is written ahead of the input when the cache is not
+  // empty, so overlapping buffers need a copy of the input
+  if( c_output < c_input + inputLen && c_input < c_output + outLen ) {
+    copy = malloc(inputLen);
+    if( copy == NULL ) {
+      (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption input");
+      return -1;
+    }
+    memcpy(copy, c_input, inputLen);
+    c_input = copy;
+  }
+
+  // step 3: the data to process is the cache followed by the input, keep
+  // the bytes for the next call before the cache is consumed
+  for( pos = outLen, i = 0; pos < cryptLen; pos++, i++ ) {
+    tail[i] = pos < c_state->cache_len ? c_state->cache[pos] : c_input[pos - c_state->cache_len];
+  }
+
+  // blocks which start in the cache
+  headLen = (c_state->cache_len + AES_BLOCK_SIZE - 1) & ~(AES_BLOCK_SIZE - 1);
+  if( headLen > outLen )
+    headLen = outLen;
+  if( headLen ) {
+    fromCache = c_state->cache_len < headLen ? c_state->cache_len : headLen;
+    memcpy(head, c_state->cache, fromCache);
+    memcpy(head + fromCache, c_input, headLen - fromCache);
+    aes_ret = crypt_blocks(c_state, head, c_output, headLen);
+  }
+
+  // blocks entirely in the input, headLen >= cache_len if there are any
+  if( aes_ret == EXIT_SUCCESS && outLen > headLen ) {
+    aes_ret = crypt_blocks(c_state, c_input + (headLen - c_state->cache_len), c_output + headLen, outLen - headLen);
+  }
+
+  memset(head, 0, sizeof(head));
+  if( copy != NULL ) {
+    memset(copy, 0, inputLen);
+    free(copy);
+  }
+  if( aes_ret != EXIT_SUCCESS ) {
+    memset(tail, 0, sizeof(tail));
+    (*env)->ThrowNew(env, bad_arg, "Failed to encrypt input data");
+    return -1;
+  }
+
+  // step 4: cache overflow bytes for next call
+  memcpy(c_state->cache, tail, bytes2cache);
+  c_state->cache_len = bytes2cache;
+  memset(tail, 0, sizeof(tail));
+
+  #if defined(KPD_DEBUG)
+  __android_log_print(ANDROID_LOG_INFO, "kpd_jni.c/nUpdateDirect", "exit: outLen=%d", outLen);
+  #endif
+
+  return outLen;
+}
+
 /*
   outputSize must be at least 32 for encryption since the buffer may contain >= 1 full block
   outputSize must be at least 16 for decryption
@@ -328,8 +477,8 @@ JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nFinal(JN
       return -1;
     }
     padValue = final_output[paddedCacheLen-1];
-    for(i = (paddedCacheLen-1), j = 0; final_output[i] == padValue && i >= 0; i--, j++);
-    if( padValue != j ) {
+    for(i = (paddedCacheLen-1), j = 0; j < padValue && i >= 0 && final_output[i] == padValue; i--, j++);
+    if( padValue == 0 || padValue != j ) {
       (*env)->ThrowNew(env, bad_padding, "Failed to verify padding during decryption");
       return -1;
     }
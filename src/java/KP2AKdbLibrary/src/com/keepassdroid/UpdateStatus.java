@@ -27,6 +27,7 @@ public class UpdateStatus {
 	private ProgressDialog mPD;
 	private Context mCtx;
 	private Handler mHandler;
+	private int mLastPercent = -1;
 	
 	public UpdateStatus() {
 		
@@ -44,6 +45,17 @@ public class UpdateStatus {
 		}
 	}
 	
+	/** Shows how far a long running step has got, only posts when the percentage changes */
+	public void updateProgress(long current, long total) {
+		if ( mCtx != null && mPD != null && mHandler != null && total > 0 ) {
+			int percent = (int) (current * 100 / total);
+			if ( percent != mLastPercent ) {
+				mLastPercent = percent;
+				mHandler.post(new UpdateProgress(percent));
+			}
+		}
+	}
+	
 	private class UpdateMessage implements Runnable {
 		private int mResId;
 		
@@ -56,4 +68,17 @@ public class UpdateStatus {
 		}
 		
 	}
+
+	private class UpdateProgress implements Runnable {
+		private int mPercent;
+		
+		public UpdateProgress(int percent) {
+			mPercent = percent;
+		}
+		
+		public void run() {
+			mPD.setProgress(mPercent);
+		}
+		
+	}
 }
@@ -0,0 +1,277 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.crypto;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.MaxBytesExceededException;
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/** ChaCha20 with a 32 byte key and a 12 byte nonce, as in RFC 7539.
+ * 
+ * With a large counter the 32 bit block counter carries into the first
+ * nonce word instead of failing after 256 GB. KeePass uses that variant
+ * for its ChaCha20 inner random stream.
+ */
+public class ChaCha20Engine implements StreamCipher {
+	
+	private static final int STATE_SIZE = 16;
+	private static final int BLOCK_SIZE = STATE_SIZE * 4;
+	private static final int BATCH_BLOCKS = 4;
+	
+	// "expand 32-byte k"
+	private static final int[] SIGMA = new int[] { 0x61707865, 0x3320646e, 0x79622d32, 0x6b206574 };
+	
+	private final boolean largeCounter;
+	
+	private final int[] engineState = new int[STATE_SIZE];
+	private final int[] x = new int[STATE_SIZE];
+	private final byte[] keyStream = new byte[BLOCK_SIZE * BATCH_BLOCKS];
+	private int index = 0;
+	private boolean exhausted = false;
+	private byte[] workingKey;
+	private byte[] workingIV;
+	private boolean initialised = false;
+	
+	public ChaCha20Engine() {
+		this(false);
+	}
+	
+	/**
+	 * @param largeCounter Carry the block counter into the first nonce word.
+	 */
+	public ChaCha20Engine(boolean largeCounter) {
+		this.largeCounter = largeCounter;
+	}
+
+	public void init(boolean forEncryption, CipherParameters params) {
+		if ( ! (params instanceof ParametersWithIV) ) {
+			throw new IllegalArgumentException("ChaCha20 Init parameters must include an IV");
+		}
+		
+		ParametersWithIV ivParams = (ParametersWithIV) params;
+		byte[] iv = ivParams.getIV();
+		if ( iv == null || iv.length != 12 ) {
+			throw new IllegalArgumentException("ChaCha20 requires exactly 12 bytes of IV");
+		}
+		
+		if ( ! (ivParams.getParameters() instanceof KeyParameter) ) {
+			throw new IllegalArgumentException("ChaCha20 Init parameters must include a key");
+		}
+		
+		byte[] key = ((KeyParameter) ivParams.getParameters()).getKey();
+		if ( key == null || key.length != 32 ) {
+			throw new IllegalArgumentException("ChaCha20 requires a 32 byte key");
+		}
+		
+		setKey(key, iv);
+	}
+
+	public String getAlgorithmName() {
+		return "ChaCha20";
+	}
+
+	public byte returnByte(byte in) {
+		if ( index == 0 ) {
+			generateKeyStream();
+		}
+		
+		byte out = (byte) (keyStream[index] ^ in);
+		index = (index + 1) & (keyStream.length - 1);
+		
+		return out;
+	}
+
+	public void processBytes(byte[] in, int inOff, int len, byte[] out, int outOff) {
+		if ( ! initialised ) {
+			throw new IllegalStateException(getAlgorithmName() + " not initialised");
+		}
+		
+		if ( (inOff + len) > in.length ) {
+			throw new DataLengthException("input buffer too short");
+		}
+		
+		if ( (outOff + len) > out.length ) {
+			throw new DataLengthException("output buffer too short");
+		}
+		
+		int i = 0;
+		while ( i < len ) {
+			if ( index == 0 ) {
+				// Whole blocks are XORed with the keystream words directly
+				if ( len - i >= BLOCK_SIZE ) {
+					nextBlock();
+					xorWords(x, in, inOff + i, out, outOff + i);
+					i += BLOCK_SIZE;
+					continue;
+				}
+				
+				generateKeyStream();
+			}
+			
+			int count = Math.min(len - i, keyStream.length - index);
+			for ( int j = 0; j < count; j++ ) {
+				out[outOff + i + j] = (byte) (keyStream[index + j] ^ in[inOff + i + j]);
+			}
+			i += count;
+			index = (index + count) & (keyStream.length - 1);
+		}
+	}
+
+	public void reset() {
+		if ( workingKey != null ) {
+			setKey(workingKey, workingIV);
+		}
+	}
+	
+	private void setKey(byte[] key, byte[] iv) {
+		workingKey = key;
+		workingIV = iv;
+		
+		System.arraycopy(SIGMA, 0, engineState, 0, 4);
+		for ( int i = 0; i < 8; i++ ) {
+			engineState[4 + i] = littleEndianToInt(key, i * 4);
+		}
+		engineState[12] = 0;
+		engineState[13] = littleEndianToInt(iv, 0);
+		engineState[14] = littleEndianToInt(iv, 4);
+		engineState[15] = littleEndianToInt(iv, 8);
+		
+		index = 0;
+		exhausted = false;
+		initialised = true;
+	}
+	
+	private void generateKeyStream() {
+		for ( int offset = 0; offset < keyStream.length; offset += BLOCK_SIZE ) {
+			nextBlock();
+			for ( int i = 0; i < STATE_SIZE; i++ ) {
+				int k = x[i];
+				int o = offset + i * 4;
+				keyStream[o] = (byte) k;
+				keyStream[o + 1] = (byte) (k >>> 8);
+				keyStream[o + 2] = (byte) (k >>> 16);
+				keyStream[o + 3] = (byte) (k >>> 24);
+			}
+		}
+	}
+	
+	/** Computes the keystream words of the next block into x */
+	private void nextBlock() {
+		if ( exhausted ) {
+			throw new MaxBytesExceededException("2^38 byte limit per IV; Change IV");
+		}
+		
+		chachaCore(engineState, x);
+		
+		engineState[12]++;
+		if ( engineState[12] == 0 ) {
+			if ( largeCounter ) {
+				engineState[13]++;
+			} else {
+				exhausted = true;
+			}
+		}
+	}
+	
+	private static void xorWords(int[] x, byte[] in, int inOff, byte[] out, int outOff) {
+		for ( int i = 0; i < STATE_SIZE; i++ ) {
+			int k = x[i];
+			out[outOff] = (byte) (in[inOff] ^ k);
+			out[outOff + 1] = (byte) (in[inOff + 1] ^ (k >>> 8));
+			out[outOff + 2] = (byte) (in[inOff + 2] ^ (k >>> 16));
+			out[outOff + 3] = (byte) (in[inOff + 3] ^ (k >>> 24));
+			inOff += 4;
+			outOff += 4;
+		}
+	}
+	
+	private static void chachaCore(int[] input, int[] output) {
+		int x00 = input[0], x01 = input[1], x02 = input[2], x03 = input[3];
+		int x04 = input[4], x05 = input[5], x06 = input[6], x07 = input[7];
+		int x08 = input[8], x09 = input[9], x10 = input[10], x11 = input[11];
+		int x12 = input[12], x13 = input[13], x14 = input[14], x15 = input[15];
+		
+		for ( int i = 0; i < 10; i++ ) {
+			// Column round
+			x00 += x04; x12 = rotl(x12 ^ x00, 16);
+			x08 += x12; x04 = rotl(x04 ^ x08, 12);
+			x00 += x04; x12 = rotl(x12 ^ x00, 8);
+			x08 += x12; x04 = rotl(x04 ^ x08, 7);
+			x01 += x05; x13 = rotl(x13 ^ x01, 16);
+			x09 += x13; x05 = rotl(x05 ^ x09, 12);
+			x01 += x05; x13 = rotl(x13 ^ x01, 8);
+			x09 += x13; x05 = rotl(x05 ^ x09, 7);
+			x02 += x06; x14 = rotl(x14 ^ x02, 16);
+			x10 += x14; x06 = rotl(x06 ^ x10, 12);
+			x02 += x06; x14 = rotl(x14 ^ x02, 8);
+			x10 += x14; x06 = rotl(x06 ^ x10, 7);
+			x03 += x07; x15 = rotl(x15 ^ x03, 16);
+			x11 += x15; x07 = rotl(x07 ^ x11, 12);
+			x03 += x07; x15 = rotl(x15 ^ x03, 8);
+			x11 += x15; x07 = rotl(x07 ^ x11, 7);
+			
+			// Diagonal round
+			x00 += x05; x15 = rotl(x15 ^ x00, 16);
+			x10 += x15; x05 = rotl(x05 ^ x10, 12);
+			x00 += x05; x15 = rotl(x15 ^ x00, 8);
+			x10 += x15; x05 = rotl(x05 ^ x10, 7);
+			x01 += x06; x12 = rotl(x12 ^ x01, 16);
+			x11 += x12; x06 = rotl(x06 ^ x11, 12);
+			x01 += x06; x12 = rotl(x12 ^ x01, 8);
+			x11 += x12; x06 = rotl(x06 ^ x11, 7);
+			x02 += x07; x13 = rotl(x13 ^ x02, 16);
+			x08 += x13; x07 = rotl(x07 ^ x08, 12);
+			x02 += x07; x13 = rotl(x13 ^ x02, 8);
+			x08 += x13; x07 = rotl(x07 ^ x08, 7);
+			x03 += x04; x14 = rotl(x14 ^ x03, 16);
+			x09 += x14; x04 = rotl(x04 ^ x09, 12);
+			x03 += x04; x14 = rotl(x14 ^ x03, 8);
+			x09 += x14; x04 = rotl(x04 ^ x09, 7);
+		}
+		
+		output[0] = x00 + input[0];
+		output[1] = x01 + input[1];
+		output[2] = x02 + input[2];
+		output[3] = x03 + input[3];
+		output[4] = x04 + input[4];
+		output[5] = x05 + input[5];
+		output[6] = x06 + input[6];
+		output[7] = x07 + input[7];
+		output[8] = x08 + input[8];
+		output[9] = x09 + input[9];
+		output[10] = x10 + input[10];
+		output[11] = x11 + input[11];
+		output[12] = x12 + input[12];
+		output[13] = x13 + input[13];
+		output[14] = x14 + input[14];
+		output[15] = x15 + input[15];
+	}
+	
+	private static int rotl(int x, int y) {
+		return (x << y) | (x >>> -y);
+	}
+	
+	private static int littleEndianToInt(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8)
+				| ((buf[offset + 2] & 0xFF) << 16) | (buf[offset + 3] << 24);
+	}
+
+}
@@ -22,6 +22,7 @@ package com.keepassdroid.crypto;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -30,7 +31,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidParameterSpecException;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -44,9 +47,10 @@ import android.util.Log;
 
 public class NativeAESCipherSpi extends CipherSpi {
 	
-	private static boolean mIsStaticInit = false;
-	private static HashMap<PhantomReference<NativeAESCipherSpi>, Long> mCleanup = new HashMap<PhantomReference<NativeAESCipherSpi>, Long>();
+	private static volatile boolean mIsStaticInit = false;
+	private static Map<Reference<? extends NativeAESCipherSpi>, Long> mCleanup = new ConcurrentHashMap<Reference<? extends NativeAESCipherSpi>, Long>();
 	private static ReferenceQueue<NativeAESCipherSpi> mQueue = new ReferenceQueue<NativeAESCipherSpi>();
+	private static final NativeContextPool mPool = new NativeContextPool(NativeContextPool.DEFAULT_CAPACITY);
 	
 	private final int AES_BLOCK_SIZE = 16;
 	private byte[] mIV;
@@ -54,19 +58,64 @@ public class NativeAESCipherSpi extends CipherSpi {
 	private boolean mIsInited = false;
 	private boolean mEncrypting = false;
 	private long mCtxPtr;
+	private PhantomReference<NativeAESCipherSpi> mCleanupRef;
 	
 	private boolean mPadding  = false;
 	
-	private static void staticInit() {
+	// Receives the last blocks of a doFinal into a direct buffer
+	private byte[] mFinalBuffer;
+	
+	private static synchronized void staticInit() {
+		if ( mIsStaticInit ) {
+			return;
+		}
 		mIsStaticInit = true;
 		
 		// Start the cipher context cleanup thread to run forever
-		(new Thread(new Cleanup())).start();
+		Thread cleanup = new Thread(new Cleanup(), "CipherCleanup");
+		cleanup.setDaemon(true);
+		cleanup.start();
+	}
+	
+	/** Counters of the native contexts, which are reused across ciphers */
+	public static NativeContextPool getContextPool() {
+		return mPool;
 	}
 	
-	private static void addToCleanupQueue(NativeAESCipherSpi ref, long ptr) {
-		Log.d("KeepassDroid", "queued cipher context: " + ptr);
-		mCleanup.put(new PhantomReference<NativeAESCipherSpi>(ref, mQueue), ptr);
+	private void addToCleanupQueue(long ptr) {
+		mCleanupRef = new PhantomReference<NativeAESCipherSpi>(this, mQueue);
+		mCleanup.put(mCleanupRef, ptr);
+	}
+	
+	/** Return the context to the pool, the cipher can't be used afterwards */
+	private void releaseContext() {
+		if ( mCtxPtr == 0 ) {
+			return;
+		}
+		
+		long ctx = mCtxPtr;
+		mCtxPtr = 0;
+		
+		// Whoever removes the entry owns the context, this or the cleanup thread
+		if ( mCleanup.remove(mCleanupRef) != null ) {
+			mCleanupRef.clear();
+			returnContext(ctx);
+		}
+		mCleanupRef = null;
+	}
+	
+	private static void returnContext(long ctx) {
+		nWipe(ctx);
+		if ( ! mPool.offer(ctx) ) {
+			nCleanup(ctx);
+			mPool.onFreed();
+		}
+	}
+	
+	private void checkContext() {
+		if ( mCtxPtr == 0 ) {
+			throw new IllegalArgumentException("This state has already been finalized");
+		}
 	}
 	
 	/** Work with the garbage collector to clean up openssl memory when the cipher
@@ -81,9 +130,11 @@ public class NativeAESCipherSpi extends CipherSpi {
 				try {
 					Reference<? extends NativeAESCipherSpi> ref = mQueue.remove();
 					
-					long ctx = mCleanup.remove(ref);
-					nCleanup(ctx);
-					Log.d("KeePassDroid", "Cleaned up cipher context: " + ctx);
+					Long ctx = mCleanup.remove(ref);
+					if ( ctx != null ) {
+						returnContext(ctx);
+						Log.d("KeePassDroid", "Cleaned up cipher context: " + ctx);
+					}
 					
 				} catch (InterruptedException e) {
 					// Do nothing, but resume looping if mQueue.remove is interrupted
@@ -94,6 +145,8 @@ public class NativeAESCipherSpi extends CipherSpi {
 	}
 	
 	private static native void nCleanup(long ctxPtr);
+	
+	private static native void nWipe(long ctxPtr);
 
 	public NativeAESCipherSpi() {
 		if ( ! mIsStaticInit ) {
@@ -114,6 +167,8 @@ public class NativeAESCipherSpi extends CipherSpi {
 		} catch (ShortBufferException e) {
 			// This shouldn't be possible rethrow as RuntimeException
 			throw new RuntimeException("Short buffer exception shouldn't be possible from here.");
+		} finally {
+			releaseContext();
 		}
 		
 		if ( maxSize == finalSize ) {
@@ -131,10 +186,22 @@ public class NativeAESCipherSpi extends CipherSpi {
 			byte[] output, int outputOffset) throws ShortBufferException,
 			IllegalBlockSizeException, BadPaddingException {
 		
-		int result = doFinal(input, inputOffset, inputLen, output, outputOffset);
-		
-		if ( result == -1 ) {
-			throw new ShortBufferException();
+		int result;
+		boolean retry = false;
+		try {
+			result = doFinal(input, inputOffset, inputLen, output, outputOffset);
+			
+			if ( result == -1 ) {
+				throw new ShortBufferException();
+			}
+		} catch (ShortBufferException e) {
+			// The caller may try again with a larger buffer
+			retry = true;
+			throw e;
+		} finally {
+			if ( ! retry ) {
+				releaseContext();
+			}
 		}
 		
 		return result;
@@ -142,6 +209,7 @@ public class NativeAESCipherSpi extends CipherSpi {
 	
 	private int doFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) 
 			throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+		checkContext();
 		
 		int outputSize = engineGetOutputSize(inputLen);
 		
@@ -160,6 +228,34 @@ public class NativeAESCipherSpi extends CipherSpi {
 		return out;
 	}
 	
+	@Override
+	protected int engineDoFinal(ByteBuffer input, ByteBuffer output) throws ShortBufferException,
+			IllegalBlockSizeException, BadPaddingException {
+		if ( ! input.isDirect() || ! output.isDirect() ) {
+			return super.engineDoFinal(input, output);
+		}
+		
+		int inputLen = input.remaining();
+		if ( output.remaining() < engineGetOutputSize(inputLen) ) {
+			throw new ShortBufferException("Insufficient buffer.");
+		}
+		
+		try {
+			int updateAmt = updateDirect(input, output);
+			
+			if ( mFinalBuffer == null ) {
+				mFinalBuffer = new byte[3 * AES_BLOCK_SIZE];
+			}
+			int finalAmt = nFinal(mCtxPtr, mPadding, mFinalBuffer, 0, mFinalBuffer.length);
+			output.put(mFinalBuffer, 0, finalAmt);
+			Arrays.fill(mFinalBuffer, 0, finalAmt, (byte) 0);
+			
+			return updateAmt + finalAmt;
+		} finally {
+			releaseContext();
+		}
+	}
+	
 	private native int nFinal(long ctxPtr, boolean usePadding, byte[] output, int outputOffest, int outputSize)
 			throws ShortBufferException, IllegalBlockSizeException, BadPaddingException;
 
@@ -175,6 +271,10 @@ public class NativeAESCipherSpi extends CipherSpi {
 
 	@Override
 	protected int engineGetOutputSize(int inputLen) {
+		if ( mCtxPtr == 0 ) {
+			return inputLen + AES_BLOCK_SIZE;
+		}
+		
 		return inputLen + nGetCacheSize(mCtxPtr) + AES_BLOCK_SIZE;
 	}
 	
@@ -238,12 +338,27 @@ public class NativeAESCipherSpi extends CipherSpi {
 		
 		mIV = params.getIV();
 		mEncrypting = opmode == Cipher.ENCRYPT_MODE;
-		mCtxPtr = nInit(mEncrypting, key.getEncoded(), mIV);
-		addToCleanupQueue(this, mCtxPtr);
+		
+		long ctx = mPool.acquire();
+		if ( ctx != 0 ) {
+			try {
+				nReinit(ctx, mEncrypting, key.getEncoded(), mIV);
+			} catch (RuntimeException e) {
+				returnContext(ctx);
+				throw e;
+			}
+		} else {
+			ctx = nInit(mEncrypting, key.getEncoded(), mIV);
+			mPool.onCreated();
+		}
+		mCtxPtr = ctx;
+		addToCleanupQueue(mCtxPtr);
 	}
 	
 	private native long nInit(boolean encrypting, byte[] key, byte[] iv);
 	
+	private native void nReinit(long ctxPtr, boolean encrypting, byte[] key, byte[] iv);
+	
 	@Override
 	protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
 		if ( ! mode.equals("CBC") ) {
@@ -289,6 +404,42 @@ public class NativeAESCipherSpi extends CipherSpi {
 		
 	}
 
+	/**
+	 * Direct buffers are handed to the native code as they are, without a
+	 * copy into or out of the Java heap. Other buffers go through the byte
+	 * array methods.
+	 */
+	@Override
+	protected int engineUpdate(ByteBuffer input, ByteBuffer output) throws ShortBufferException {
+		if ( ! input.isDirect() || ! output.isDirect() ) {
+			return super.engineUpdate(input, output);
+		}
+		
+		if ( output.remaining() < engineGetOutputSize(input.remaining()) ) {
+			throw new ShortBufferException("Insufficient buffer.");
+		}
+		
+		return updateDirect(input, output);
+	}
+	
+	private int updateDirect(ByteBuffer input, ByteBuffer output) {
+		checkContext();
+		
+		int inputLen = input.remaining();
+		if ( inputLen == 0 ) {
+			return 0;
+		}
+		
+		int out = nUpdateDirect(mCtxPtr, input, input.position(), inputLen, output, output.position(), output.remaining());
+		
+		input.position(input.limit());
+		output.position(output.position() + out);
+		
+		return out;
+	}
+	
+	private native int nUpdateDirect(long ctxPtr, ByteBuffer input, int inputOffset, int inputLen, ByteBuffer output, int outputOffset, int outputSize);
+
 	@Override
 	protected int engineUpdate(byte[] input, int inputOffset, int inputLen,
 			byte[] output, int outputOffset) throws ShortBufferException {
@@ -304,6 +455,8 @@ public class NativeAESCipherSpi extends CipherSpi {
 	}
 	
 	int update(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+		checkContext();
+		
 		int outputSize = engineGetOutputSize(inputLen);
 		
 		int out = nUpdate(mCtxPtr, input, inputOffset, inputLen, output, outputOffset, outputSize);
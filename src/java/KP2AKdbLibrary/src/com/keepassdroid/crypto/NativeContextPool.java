@@ -0,0 +1,108 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.crypto;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Bounded pool of the native AES contexts of NativeAESCipherSpi.
+ * 
+ * A cipher returns its context when doFinal completes, or through the
+ * phantom reference cleanup when it is dropped without one. Contexts beyond
+ * the capacity are freed. Checkout and return are lock-free, an empty slot
+ * holds 0.
+ */
+public class NativeContextPool {
+	
+	public static final int DEFAULT_CAPACITY = 8;
+	
+	private final AtomicLongArray slots;
+	
+	private final AtomicInteger live = new AtomicInteger();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	
+	NativeContextPool(int capacity) {
+		slots = new AtomicLongArray(capacity);
+	}
+	
+	/** @return a pooled context, or 0 if the pool is empty */
+	long acquire() {
+		for (int i = 0; i < slots.length(); i++) {
+			long ctx = slots.get(i);
+			if (ctx != 0 && slots.compareAndSet(i, ctx, 0)) {
+				pooled.decrementAndGet();
+				reused.incrementAndGet();
+				return ctx;
+			}
+		}
+		
+		return 0;
+	}
+	
+	/** @return false if the pool is full, the caller frees the context then */
+	boolean offer(long ctx) {
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) == 0 && slots.compareAndSet(i, 0, ctx)) {
+				pooled.incrementAndGet();
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	void onCreated() {
+		live.incrementAndGet();
+		created.incrementAndGet();
+	}
+	
+	void onFreed() {
+		live.decrementAndGet();
+	}
+	
+	public int getCapacity() {
+		return slots.length();
+	}
+	
+	/** Number of allocated native contexts, in use or pooled */
+	public int getLiveCount() {
+		return live.get();
+	}
+	
+	public int getPooledCount() {
+		return pooled.get();
+	}
+	
+	public int getInUseCount() {
+		return live.get() - pooled.get();
+	}
+	
+	/** Total number of contexts allocated */
+	public long getCreatedCount() {
+		return created.get();
+	}
+	
+	/** Total number of times a pooled context was reused */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+}
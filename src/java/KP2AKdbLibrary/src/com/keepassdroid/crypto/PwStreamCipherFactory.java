@@ -21,6 +21,7 @@ package com.keepassdroid.crypto;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import org.bouncycastle.crypto.StreamCipher;
 import org.bouncycastle.crypto.engines.Salsa20Engine;
@@ -34,6 +35,9 @@ public class PwStreamCipherFactory {
 		if ( alg == CrsAlgorithm.Salsa20 ) {
 			return getSalsa20(key);
 			
+		} else if ( alg == CrsAlgorithm.ChaCha20 ) {
+			return getChaCha20(key);
+			
 		} else {
 			return null;
 		}
@@ -62,4 +66,27 @@ public class PwStreamCipherFactory {
 		
 		return cipher;
 	}
+	
+	private static StreamCipher getChaCha20(byte[] key) {
+		// Key and nonce are taken from the SHA-512 of the key, like KeePass does
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-512");
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			throw new RuntimeException("SHA 512 not supported");
+		}
+		byte[] hash = md.digest(key);
+		
+		byte[] key32 = new byte[32];
+		byte[] iv12 = new byte[12];
+		System.arraycopy(hash, 0, key32, 0, 32);
+		System.arraycopy(hash, 32, iv12, 0, 12);
+		Arrays.fill(hash, (byte) 0);
+		
+		StreamCipher cipher = new ChaCha20Engine(true);
+		cipher.init(true, new ParametersWithIV(new KeyParameter(key32), iv12));
+		
+		return cipher;
+	}
 }
@@ -26,13 +26,45 @@ public class FinalKeyFactory {
 		return createFinalKey(false);
 	}
 	
+	/**
+	 * @param androidOverride Use exactly AndroidFinalKey, the single threaded
+	 *   transform through the Java crypto provider.
+	 */
 	public static FinalKey createFinalKey(boolean androidOverride) {
+		if ( androidOverride ) {
+			return new AndroidFinalKey();
+		}
+		
 		// Prefer the native final key implementation
-		if ( !CipherFactory.deviceBlacklisted() && !androidOverride && NativeFinalKey.availble() ) {
+		if ( isAvailable(FinalKeyType.Native) ) {
 			return new NativeFinalKey();
+		} else if ( isAvailable(FinalKeyType.AndroidParallel) ) {
+			// Fall back on the android crypto implementation, using a second core if there is one
+			return new ParallelFinalKey();
 		} else {
-			// Fall back on the android crypto implementation
 			return new AndroidFinalKey();
 		}
 	}
+	
+	public static FinalKey createFinalKey(FinalKeyType type) {
+		switch ( type ) {
+		case Native:
+			return new NativeFinalKey();
+		case AndroidParallel:
+			return new ParallelFinalKey();
+		default:
+			return new AndroidFinalKey();
+		}
+	}
+	
+	public static boolean isAvailable(FinalKeyType type) {
+		switch ( type ) {
+		case Native:
+			return !CipherFactory.deviceBlacklisted() && NativeFinalKey.availble();
+		case AndroidParallel:
+			return Runtime.getRuntime().availableProcessors() > 1;
+		default:
+			return true;
+		}
+	}
 }
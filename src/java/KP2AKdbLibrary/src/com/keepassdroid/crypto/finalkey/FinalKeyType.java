@@ -0,0 +1,27 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.crypto.finalkey;
+
+public enum FinalKeyType {
+	/** AES rounds in the native library */
+	Native,
+	/** AES rounds through the Java crypto provider on one thread */
+	Android,
+	/** AES rounds through the Java crypto provider, both key halves on their own thread */
+	AndroidParallel
+}
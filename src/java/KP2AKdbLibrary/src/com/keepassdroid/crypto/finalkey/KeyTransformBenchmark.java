@@ -0,0 +1,109 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.crypto.finalkey;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/** Measures how fast a FinalKey runs the key transform, so the number of
+ * rounds can be chosen for a target unlock time on the current device.
+ */
+public class KeyTransformBenchmark {
+	
+	public static final long DEFAULT_DURATION = 1000;
+	
+	private static final int MIN_BATCH = 1024;
+	
+	/** Runs the key transform of the default FinalKey for about durationMillis
+	 * and returns the number of rounds for targetMillis of transform time.
+	 */
+	public static int calibrateRounds(long targetMillis, long durationMillis) throws IOException {
+		return calibrateRounds(FinalKeyFactory.createFinalKey(), targetMillis, durationMillis);
+	}
+	
+	public static int calibrateRounds(FinalKey key, long targetMillis, long durationMillis) throws IOException {
+		if ( targetMillis <= 0 ) {
+			throw new IllegalArgumentException("Target time must be positive");
+		}
+		
+		double rounds = (double) measureRoundsPerSecond(key, durationMillis) * targetMillis / 1000;
+		if ( rounds >= Integer.MAX_VALUE ) {
+			return Integer.MAX_VALUE;
+		}
+		
+		return Math.max(1, (int) rounds);
+	}
+	
+	/** Runs the key transform for about durationMillis and returns the rounds per second */
+	public static long measureRoundsPerSecond(FinalKey key, long durationMillis) throws IOException {
+		if ( durationMillis <= 0 ) {
+			throw new IllegalArgumentException("Duration must be positive");
+		}
+		
+		byte[] seed = new byte[32];
+		byte[] masterKey = new byte[32];
+		Random random = new Random();
+		random.nextBytes(seed);
+		random.nextBytes(masterKey);
+		
+		long duration = durationMillis * 1000000L;
+		
+		// Grow the batch until one takes a measurable share of the duration,
+		// which also gives the JIT a chance to compile the transform loop
+		int batch = MIN_BATCH;
+		while ( true ) {
+			long start = System.nanoTime();
+			key.transformMasterKey(seed, masterKey, batch);
+			long elapsed = System.nanoTime() - start;
+			
+			if ( elapsed >= duration / 8 || batch >= Integer.MAX_VALUE / 2 ) {
+				break;
+			}
+			batch *= 2;
+		}
+		
+		// Only time the batches which run at full size
+		long totalRounds = 0;
+		long totalTime = 0;
+		while ( totalTime < duration ) {
+			long start = System.nanoTime();
+			key.transformMasterKey(seed, masterKey, batch);
+			totalTime += System.nanoTime() - start;
+			totalRounds += batch;
+		}
+		
+		return (long) ((double) totalRounds * 1000000000L / totalTime);
+	}
+	
+	/** Measures the rounds per second of every FinalKey type available on this device */
+	public static Map<FinalKeyType, Long> measureAll(long durationMillis) throws IOException {
+		Map<FinalKeyType, Long> result = new EnumMap<FinalKeyType, Long>(FinalKeyType.class);
+		
+		for ( FinalKeyType type : FinalKeyType.values() ) {
+			if ( FinalKeyFactory.isAvailable(type) ) {
+				FinalKey key = FinalKeyFactory.createFinalKey(type);
+				result.put(type, measureRoundsPerSecond(key, durationMillis));
+			}
+		}
+		
+		return result;
+	}
+
+}
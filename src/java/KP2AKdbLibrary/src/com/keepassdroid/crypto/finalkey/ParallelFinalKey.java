@@ -0,0 +1,131 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.crypto.finalkey;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/** Key transform through the Java crypto provider which runs the two 16 byte
+ * halves of the key on separate threads. In ECB mode the halves are
+ * independent chains, so this gives the same result as AndroidFinalKey.
+ */
+public class ParallelFinalKey extends FinalKey {
+	
+	private static final int BLOCK_SIZE = 16;
+
+	@Override
+	public byte[] transformMasterKey(byte[] pKeySeed, byte[] pKey, final int rounds) throws IOException {
+		if ( pKey.length != 2 * BLOCK_SIZE ) {
+			return new AndroidFinalKey().transformMasterKey(pKeySeed, pKey, rounds);
+		}
+		
+		final Cipher upper = createCipher(pKeySeed);
+		Cipher lower = createCipher(pKeySeed);
+
+		// Both halves are encrypted in place
+		final byte[] newKey = new byte[pKey.length];
+		System.arraycopy(pKey, 0, newKey, 0, pKey.length);
+		
+		// Anything the provider throws on the worker is rethrown here, an untransformed
+		// upper half would otherwise only show up as a wrong password
+		final Throwable[] upperError = new Throwable[1];
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				try {
+					transformBlock(upper, newKey, BLOCK_SIZE, rounds);
+				} catch (Throwable e) {
+					upperError[0] = e;
+				}
+			}
+		}, "KeyTransform");
+		worker.start();
+		
+		try {
+			transformBlock(lower, newKey, 0, rounds);
+		} finally {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+		}
+		
+		Throwable error = upperError[0];
+		if ( error != null ) {
+			Arrays.fill(newKey, (byte) 0);
+			if ( error instanceof IOException ) {
+				throw (IOException) error;
+			} else if ( error instanceof RuntimeException ) {
+				throw (RuntimeException) error;
+			} else if ( error instanceof Error ) {
+				throw (Error) error;
+			}
+			throw new IOException("Key transform failed: " + error);
+		}
+
+		// Hash the key
+		MessageDigest md = null;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 not implemented here: " + e.getMessage());
+		}
+
+		md.update(newKey);
+		Arrays.fill(newKey, (byte) 0);
+		return md.digest();
+	}
+	
+	private static void transformBlock(Cipher cipher, byte[] key, int offset, int rounds) throws IOException {
+		try {
+			for (int i = 0; i < rounds; i++) {
+				cipher.update(key, offset, BLOCK_SIZE, key, offset);
+			}
+		} catch (ShortBufferException e) {
+			throw new IOException("Short buffer: " + e.getMessage());
+		}
+	}
+	
+	private static Cipher createCipher(byte[] pKeySeed) throws IOException {
+		Cipher cipher;
+		try {
+			cipher = Cipher.getInstance("AES/ECB/NoPadding");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("NoSuchAlgorithm: " + e.getMessage());
+		} catch (NoSuchPaddingException e) {
+			throw new IOException("NoSuchPadding: " + e.getMessage());
+		}
+
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(pKeySeed, "AES"));
+		} catch (InvalidKeyException e) {
+			throw new IOException("InvalidPasswordException: " + e.getMessage());
+		}
+		
+		return cipher;
+	}
+
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.crypto.finalkey;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/** Process wide cache of transformed master keys, so reopening a database with
+ * an unchanged key, transform seed and round count skips the key transform.
+ * 
+ * The cache is disabled by default. Entries are looked up by a SHA-256 hash of
+ * their inputs, expire after the configured time and are zeroed when they are
+ * evicted or when wipe() is called, which should happen when the app is locked.
+ */
+public class TransformedKeyCache {
+	
+	private static final int MAX_ENTRIES = 4;
+	private static final long DEFAULT_MAX_AGE = 5 * 60 * 1000L;
+	
+	private static class Entry {
+		final byte[] id;
+		final byte[] transformedKey;
+		final long expires;
+		
+		Entry(byte[] id, byte[] transformedKey, long expires) {
+			this.id = id;
+			this.transformedKey = transformedKey;
+			this.expires = expires;
+		}
+		
+		void wipe() {
+			Arrays.fill(transformedKey, (byte) 0);
+			Arrays.fill(id, (byte) 0);
+		}
+	}
+	
+	private static boolean enabled = false;
+	private static long maxAge = DEFAULT_MAX_AGE;
+	private static final List<Entry> entries = new ArrayList<Entry>();
+	private static Timer evictionTimer;
+	
+	public static synchronized boolean isEnabled() {
+		return enabled;
+	}
+	
+	public static synchronized void setEnabled(boolean enable) {
+		enabled = enable;
+		if ( !enable ) {
+			wipe();
+		}
+	}
+	
+	/** Sets how long a transformed key is kept, in milliseconds */
+	public static synchronized void setMaxAge(long millis) {
+		if ( millis <= 0 ) {
+			throw new IllegalArgumentException("Max age must be positive");
+		}
+		maxAge = millis;
+	}
+	
+	/** Returns a copy of the cached transformed key, or null if there is none */
+	public static synchronized byte[] get(byte[] pKeySeed, byte[] pKey, int rounds) {
+		if ( !enabled || entries.isEmpty() ) {
+			return null;
+		}
+		
+		evictExpired();
+		
+		byte[] id = computeId(pKeySeed, pKey, rounds);
+		if ( id == null ) {
+			return null;
+		}
+		
+		byte[] result = null;
+		for ( Entry entry : entries ) {
+			if ( MessageDigest.isEqual(entry.id, id) ) {
+				result = new byte[entry.transformedKey.length];
+				System.arraycopy(entry.transformedKey, 0, result, 0, result.length);
+				break;
+			}
+		}
+		Arrays.fill(id, (byte) 0);
+		
+		return result;
+	}
+	
+	/** Stores a copy of transformedKey */
+	public static synchronized void put(byte[] pKeySeed, byte[] pKey, int rounds, byte[] transformedKey) {
+		if ( !enabled ) {
+			return;
+		}
+		
+		byte[] id = computeId(pKeySeed, pKey, rounds);
+		if ( id == null ) {
+			return;
+		}
+		
+		for ( int i = 0; i < entries.size(); i++ ) {
+			if ( MessageDigest.isEqual(entries.get(i).id, id) ) {
+				entries.remove(i).wipe();
+				break;
+			}
+		}
+		while ( entries.size() >= MAX_ENTRIES ) {
+			entries.remove(0).wipe();
+		}
+		
+		byte[] copy = new byte[transformedKey.length];
+		System.arraycopy(transformedKey, 0, copy, 0, copy.length);
+		entries.add(new Entry(id, copy, System.nanoTime() + maxAge * 1000000L));
+		
+		scheduleEviction(maxAge);
+	}
+	
+	/** Zeroes and removes all cached keys */
+	public static synchronized void wipe() {
+		for ( Entry entry : entries ) {
+			entry.wipe();
+		}
+		entries.clear();
+		
+		if ( evictionTimer != null ) {
+			evictionTimer.cancel();
+			evictionTimer = null;
+		}
+	}
+	
+	/** Zeroes and removes the keys which are older than the max age */
+	public static synchronized void evictExpired() {
+		long now = System.nanoTime();
+		for ( int i = entries.size() - 1; i >= 0; i-- ) {
+			Entry entry = entries.get(i);
+			if ( now - entry.expires >= 0 ) {
+				entries.remove(i);
+				entry.wipe();
+			}
+		}
+	}
+	
+	private static void scheduleEviction(long delay) {
+		if ( evictionTimer == null ) {
+			evictionTimer = new Timer("TransformedKeyCache", true);
+		}
+		
+		evictionTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				evictExpired();
+			}
+		}, delay);
+	}
+	
+	private static byte[] computeId(byte[] pKeySeed, byte[] pKey, int rounds) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+		
+		md.update(pKey);
+		md.update(pKeySeed);
+		md.update((byte) rounds);
+		md.update((byte) (rounds >>> 8));
+		md.update((byte) (rounds >>> 16));
+		md.update((byte) (rounds >>> 24));
+		
+		return md.digest();
+	}
+
+}
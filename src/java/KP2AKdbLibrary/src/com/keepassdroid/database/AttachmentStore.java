@@ -0,0 +1,364 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/** Keeps large entry attachments out of the Java heap.
+ * 
+ * Attachments above the memory limit are encrypted with AES/CTR under a
+ * random session key and appended to a temp file, then streamed back on
+ * demand. Smaller ones stay in PwEntryV3 as plain byte arrays. wipeAll()
+ * forgets the key and deletes the file, which makes every stored
+ * attachment unreadable, so call it when the database is locked.
+ */
+public class AttachmentStore {
+	
+	public static final int DEFAULT_MEMORY_LIMIT = 256 * 1024;
+	
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+	
+	private final File mDir;
+	private final int mMemoryLimit;
+	private final SecureRandom mRandom = new SecureRandom();
+	
+	private File mFile;
+	private RandomAccessFile mRaf;
+	private FileChannel mChannel;
+	private byte[] mKey;
+	private long mEnd;
+	// Changed by wipeAll(), attachments from an older session can't be read
+	private int mSession = 0;
+	
+	/** An attachment in the store, read it with openStream() or writeTo() */
+	public static abstract class Attachment {
+		public abstract int length();
+		
+		public abstract InputStream openStream() throws IOException;
+		
+		public void writeTo(OutputStream os) throws IOException {
+			InputStream is = openStream();
+			try {
+				byte[] buf = new byte[Math.min(CHUNK_SIZE, Math.max(length(), 1))];
+				int read;
+				while ( (read = is.read(buf, 0, buf.length)) != -1 ) {
+					os.write(buf, 0, read);
+				}
+				Arrays.fill(buf, (byte) 0);
+			} finally {
+				is.close();
+			}
+		}
+		
+		public byte[] getBytes() throws IOException {
+			byte[] data = new byte[length()];
+			InputStream is = openStream();
+			try {
+				int pos = 0;
+				while ( pos < data.length ) {
+					int read = is.read(data, pos, data.length - pos);
+					if ( read == -1 ) {
+						throw new IOException("Attachment truncated");
+					}
+					pos += read;
+				}
+			} finally {
+				is.close();
+			}
+			return data;
+		}
+	}
+	
+	public AttachmentStore(File tempDir) {
+		this(tempDir, DEFAULT_MEMORY_LIMIT);
+	}
+	
+	/**
+	 * @param tempDir Directory for the encrypted temp file, should be private to the app.
+	 * @param memoryLimit Attachments up to this size stay in memory.
+	 */
+	public AttachmentStore(File tempDir, int memoryLimit) {
+		mDir = tempDir;
+		mMemoryLimit = memoryLimit;
+	}
+	
+	public boolean shouldStore(int length) {
+		return length > mMemoryLimit;
+	}
+	
+	public Attachment store(byte[] buf, int offset, int length) throws IOException {
+		return store(new ByteArrayInputStream(buf, offset, length), length);
+	}
+	
+	/** Stores length bytes read from is in chunks, e.g. from an attachment of another store */
+	public synchronized Attachment store(InputStream is, int length) throws IOException {
+		open();
+		
+		byte[] iv = new byte[16];
+		mRandom.nextBytes(iv);
+		Cipher cipher = createCipher(Cipher.ENCRYPT_MODE, iv);
+		
+		long start = mEnd;
+		byte[] in = new byte[Math.min(CHUNK_SIZE, Math.max(length, 1))];
+		// A provider may hold back part of a block, so output is tracked apart from input
+		byte[] out = new byte[in.length + 16];
+		long written = 0;
+		try {
+			int pos = 0;
+			while ( pos < length ) {
+				int len = is.read(in, 0, Math.min(in.length, length - pos));
+				if ( len == -1 ) {
+					throw new IOException("Attachment truncated at " + pos + " of " + length + " bytes");
+				}
+				int outLen = cipher.update(in, 0, len, out, 0);
+				writeFully(out, outLen, start + written);
+				written += outLen;
+				pos += len;
+			}
+			
+			int outLen = cipher.doFinal(out, 0);
+			writeFully(out, outLen, start + written);
+			written += outLen;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to encrypt attachment: " + e.getMessage());
+		} finally {
+			Arrays.fill(in, (byte) 0);
+			Arrays.fill(out, (byte) 0);
+		}
+		
+		if ( written != length ) {
+			throw new IOException("Attachment encrypted to " + written + " bytes instead of " + length);
+		}
+		
+		mEnd = start + length;
+		return new FileAttachment(start, length, iv, mSession);
+	}
+	
+	/** Deletes the temp file and forgets the session key */
+	public synchronized void wipeAll() {
+		if ( mKey != null ) {
+			Arrays.fill(mKey, (byte) 0);
+			mKey = null;
+		}
+		
+		if ( mRaf != null ) {
+			try {
+				mRaf.close();
+			} catch (IOException e) {
+				// Ignore, the file is deleted anyway
+			}
+			mRaf = null;
+			mChannel = null;
+		}
+		
+		if ( mFile != null ) {
+			mFile.delete();
+			mFile = null;
+		}
+		
+		mEnd = 0;
+		mSession++;
+	}
+	
+	private void open() throws IOException {
+		if ( mChannel != null ) {
+			return;
+		}
+		
+		mKey = new byte[32];
+		mRandom.nextBytes(mKey);
+		
+		mFile = File.createTempFile("attachments", ".bin", mDir);
+		mFile.deleteOnExit();
+		mRaf = new RandomAccessFile(mFile, "rw");
+		mChannel = mRaf.getChannel();
+		mEnd = 0;
+	}
+	
+	private Cipher createCipher(int mode, byte[] iv) throws IOException {
+		try {
+			Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+			cipher.init(mode, new SecretKeySpec(mKey, "AES"), new IvParameterSpec(iv));
+			return cipher;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Attachment cipher not available: " + e.getMessage());
+		}
+	}
+	
+	private void writeFully(byte[] buf, int length, long position) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+		while ( bb.hasRemaining() ) {
+			position += mChannel.write(bb, position);
+		}
+	}
+	
+	private synchronized int readEncrypted(int session, byte[] buf, int length, long position) throws IOException {
+		checkSession(session);
+		
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+		while ( bb.hasRemaining() ) {
+			int read = mChannel.read(bb, position + bb.position());
+			if ( read == -1 ) {
+				throw new IOException("Attachment file truncated");
+			}
+		}
+		
+		return length;
+	}
+	
+	private synchronized Cipher createDecryptCipher(int session, byte[] iv) throws IOException {
+		checkSession(session);
+		
+		return createCipher(Cipher.DECRYPT_MODE, iv);
+	}
+	
+	private void checkSession(int session) throws IOException {
+		if ( session != mSession || mChannel == null ) {
+			throw new IOException("Attachment store was wiped");
+		}
+	}
+	
+	private class FileAttachment extends Attachment {
+		private final long mOffset;
+		private final int mLength;
+		private final byte[] mIV;
+		private final int mAttachmentSession;
+		
+		FileAttachment(long offset, int length, byte[] iv, int session) {
+			mOffset = offset;
+			mLength = length;
+			mIV = iv;
+			mAttachmentSession = session;
+		}
+		
+		@Override
+		public int length() {
+			return mLength;
+		}
+		
+		@Override
+		public InputStream openStream() throws IOException {
+			return new DecryptingStream(this, createDecryptCipher(mAttachmentSession, mIV));
+		}
+	}
+	
+	private class DecryptingStream extends InputStream {
+		private final FileAttachment mAttachment;
+		private final Cipher mCipher;
+		private final byte[] mEncrypted = new byte[CHUNK_SIZE];
+		// Decrypted bytes not returned yet, the cipher may hand back more or
+		// less than it was given
+		private final byte[] mPlain = new byte[CHUNK_SIZE + 16];
+		private int mPlainPos = 0;
+		private int mPlainLength = 0;
+		private int mInPos = 0;
+		private int mOutPos = 0;
+		private boolean mFinished = false;
+		
+		DecryptingStream(FileAttachment attachment, Cipher cipher) {
+			mAttachment = attachment;
+			mCipher = cipher;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int read = read(b, 0, 1);
+			return read == -1 ? -1 : (b[0] & 0xFF);
+		}
+		
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			if ( length == 0 ) {
+				return 0;
+			}
+			
+			while ( mPlainPos == mPlainLength ) {
+				if ( !fill() ) {
+					return -1;
+				}
+			}
+			
+			int len = Math.min(length, mPlainLength - mPlainPos);
+			System.arraycopy(mPlain, mPlainPos, b, offset, len);
+			mPlainPos += len;
+			mOutPos += len;
+			return len;
+		}
+		
+		/** Decrypts the next chunk into mPlain, false at the end of the attachment */
+		private boolean fill() throws IOException {
+			if ( mFinished ) {
+				return false;
+			}
+			
+			mPlainPos = 0;
+			mPlainLength = 0;
+			int remaining = mAttachment.mLength - mInPos;
+			try {
+				if ( remaining > 0 ) {
+					int len = Math.min(remaining, CHUNK_SIZE);
+					readEncrypted(mAttachment.mAttachmentSession, mEncrypted, len, mAttachment.mOffset + mInPos);
+					mInPos += len;
+					mPlainLength = mCipher.update(mEncrypted, 0, len, mPlain, 0);
+				} else {
+					mFinished = true;
+					mPlainLength = mCipher.doFinal(mPlain, 0);
+					if ( mOutPos + mPlainLength != mAttachment.mLength ) {
+						throw new IOException("Attachment decrypted to " + (mOutPos + mPlainLength) + " bytes instead of " + mAttachment.mLength);
+					}
+				}
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Failed to decrypt attachment: " + e.getMessage());
+			}
+			
+			return true;
+		}
+		
+		@Override
+		public int available() {
+			return mAttachment.mLength - mOutPos;
+		}
+		
+		@Override
+		public void close() {
+			Arrays.fill(mEncrypted, (byte) 0);
+			Arrays.fill(mPlain, (byte) 0);
+			mPlainPos = 0;
+			mPlainLength = 0;
+			mOutPos = mAttachment.mLength;
+			mFinished = true;
+		}
+	}
+
+}
@@ -23,9 +23,10 @@ public enum CrsAlgorithm {
 	
 	Null(0),
 	ArcFourVariant(1),
-	Salsa20(2);
+	Salsa20(2),
+	ChaCha20(3);
 	
-	public static final int count = 3;
+	public static final int count = 4;
 	public final int id;
 	
 	private CrsAlgorithm(int num) {
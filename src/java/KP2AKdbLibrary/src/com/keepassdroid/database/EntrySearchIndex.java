@@ -0,0 +1,350 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.keepassdroid.utils.IntObjectMap;
+
+/** Trigram index over the title, username, URL and notes of the entries of a
+ * database, for case insensitive substring search.
+ * 
+ * Every entry gets a slot holding its lower cased text, and each trigram of
+ * that text maps to the slots containing it. A query looks up the rarest
+ * trigram of its terms and checks the text of those candidates, so hash
+ * collisions and stale postings never produce wrong results. Terms shorter
+ * than three characters are only checked against the candidates, a query
+ * made of short terms only scans all slots.
+ * 
+ * The database keeps the index current when entries are added, removed or
+ * touched as modified. The title, username, URL and notes setters mark their
+ * entry as changed, and changed entries are reindexed by the next search.
+ * Entries whose public fields are assigned directly need update().
+ * 
+ * A query checks the text of every candidate, so its cost grows with the
+ * number of entries holding its rarest trigram. Selective terms stay well
+ * under a millisecond on 100 000 entries. Terms shared by most entries, like
+ * a common domain, and queries made only of one or two character terms take
+ * several milliseconds or more there.
+ */
+public class EntrySearchIndex {
+	
+	private static final int MIN_SLOTS = 64;
+	
+	private final PwDatabaseV3 mDb;
+	
+	private PwEntryV3[] mEntries = new PwEntryV3[MIN_SLOTS];
+	private String[] mTexts = new String[MIN_SLOTS];
+	private int mSlotCount = 0;
+	private final Map<PwEntryV3, Integer> mSlotOf = new IdentityHashMap<PwEntryV3, Integer>();
+	
+	private IntObjectMap<Postings> mPostings = new IntObjectMap<Postings>();
+	
+	// Slots of removed or changed entries. They are not reused, since their
+	// postings stay behind until the next compaction
+	private int mStaleSlots = 0;
+	
+	// Entries whose text changed through a setter, reindexed before a search
+	private final Map<PwEntryV3, Boolean> mChanged = new IdentityHashMap<PwEntryV3, Boolean>();
+	
+	private static class Postings {
+		int[] slots = new int[4];
+		int size = 0;
+		
+		void add(int slot) {
+			// Trigrams of a slot are added together, skip repeats within it
+			if ( size > 0 && slots[size - 1] == slot ) {
+				return;
+			}
+			
+			if ( size == slots.length ) {
+				int[] grown = new int[size * 2];
+				System.arraycopy(slots, 0, grown, 0, size);
+				slots = grown;
+			}
+			slots[size++] = slot;
+		}
+	}
+	
+	public EntrySearchIndex(PwDatabaseV3 db) {
+		mDb = db;
+	}
+	
+	/** Indexes all entries of the database, dropping anything indexed before */
+	public synchronized void build() {
+		clear();
+		
+		List<PwEntryV3> entries = mDb.entries;
+		for ( int i = 0; i < entries.size(); i++ ) {
+			add(entries.get(i));
+		}
+	}
+	
+	public synchronized void clear() {
+		for ( int i = 0; i < mSlotCount; i++ ) {
+			if ( mEntries[i] != null ) {
+				mEntries[i].searchIndex = null;
+			}
+		}
+		
+		mEntries = new PwEntryV3[MIN_SLOTS];
+		mTexts = new String[MIN_SLOTS];
+		mSlotCount = 0;
+		mSlotOf.clear();
+		mPostings = new IntObjectMap<Postings>();
+		mStaleSlots = 0;
+		mChanged.clear();
+	}
+	
+	public synchronized int size() {
+		return mSlotOf.size();
+	}
+	
+	public synchronized void add(PwEntryV3 entry) {
+		if ( mSlotOf.containsKey(entry) ) {
+			update(entry);
+			return;
+		}
+		
+		String text = textOf(entry);
+		if ( text == null ) {
+			return;
+		}
+		
+		int slot = allocateSlot();
+		mEntries[slot] = entry;
+		mTexts[slot] = text;
+		mSlotOf.put(entry, slot);
+		entry.searchIndex = this;
+		
+		addPostings(slot, text);
+	}
+	
+	public synchronized void remove(PwEntryV3 entry) {
+		Integer slot = mSlotOf.remove(entry);
+		if ( slot == null ) {
+			return;
+		}
+		
+		freeSlot(slot);
+		mChanged.remove(entry);
+		entry.searchIndex = null;
+		compactIfStale();
+	}
+	
+	/** Marks an entry's text as changed, it is reindexed by the next search */
+	public synchronized void invalidate(PwEntryV3 entry) {
+		if ( mSlotOf.containsKey(entry) ) {
+			mChanged.put(entry, Boolean.TRUE);
+		}
+	}
+	
+	/** Reindexes an entry after its fields changed */
+	public synchronized void update(PwEntryV3 entry) {
+		Integer slot = mSlotOf.get(entry);
+		if ( slot == null ) {
+			return;
+		}
+		
+		String text = textOf(entry);
+		if ( text == null ) {
+			remove(entry);
+			return;
+		}
+		if ( text.equals(mTexts[slot]) ) {
+			return;
+		}
+		
+		// The old slot becomes stale, the new text gets a new slot
+		mSlotOf.remove(entry);
+		freeSlot(slot);
+		add(entry);
+		compactIfStale();
+	}
+	
+	public List<PwEntryV3> search(String query, boolean omitBackup) {
+		return search(query, omitBackup, Integer.MAX_VALUE);
+	}
+	
+	/** Returns the entries containing every whitespace separated term of the
+	 * query in their title, username, URL or notes, ignoring case. Entries in
+	 * groups which are not searchable are left out.
+	 */
+	public synchronized List<PwEntryV3> search(String query, boolean omitBackup, int limit) {
+		List<PwEntryV3> result = new ArrayList<PwEntryV3>();
+		
+		updateChanged();
+		
+		String[] terms = query.toLowerCase().trim().split("\\s+");
+		if ( terms.length == 0 || terms[0].length() == 0 ) {
+			return result;
+		}
+		
+		Postings best = null;
+		boolean indexed = false;
+		for ( int i = 0; i < terms.length; i++ ) {
+			String term = terms[i];
+			for ( int j = 0; j + 3 <= term.length(); j++ ) {
+				indexed = true;
+				Postings postings = mPostings.get(trigram(term.charAt(j), term.charAt(j + 1), term.charAt(j + 2)));
+				if ( postings == null ) {
+					return result;
+				}
+				if ( best == null || postings.size < best.size ) {
+					best = postings;
+				}
+			}
+		}
+		
+		if ( indexed ) {
+			for ( int i = 0; i < best.size && result.size() < limit; i++ ) {
+				checkSlot(best.slots[i], terms, omitBackup, result);
+			}
+		} else {
+			for ( int slot = 0; slot < mSlotCount && result.size() < limit; slot++ ) {
+				checkSlot(slot, terms, omitBackup, result);
+			}
+		}
+		
+		return result;
+	}
+	
+	private void updateChanged() {
+		if ( mChanged.isEmpty() ) {
+			return;
+		}
+		
+		List<PwEntryV3> changed = new ArrayList<PwEntryV3>(mChanged.keySet());
+		mChanged.clear();
+		for ( int i = 0; i < changed.size(); i++ ) {
+			update(changed.get(i));
+		}
+	}
+	
+	private void checkSlot(int slot, String[] terms, boolean omitBackup, List<PwEntryV3> result) {
+		String text = mTexts[slot];
+		if ( text == null ) {
+			return;
+		}
+		
+		for ( int i = 0; i < terms.length; i++ ) {
+			if ( text.indexOf(terms[i]) < 0 ) {
+				return;
+			}
+		}
+		
+		PwEntryV3 entry = mEntries[slot];
+		if ( mDb.isGroupSearchable(entry.getParent(), omitBackup) ) {
+			result.add(entry);
+		}
+	}
+	
+	private void addPostings(int slot, String text) {
+		for ( int i = 0; i + 3 <= text.length(); i++ ) {
+			char c0 = text.charAt(i);
+			char c1 = text.charAt(i + 1);
+			char c2 = text.charAt(i + 2);
+			
+			// Terms never contain the field separator
+			if ( c0 == '\n' || c1 == '\n' || c2 == '\n' ) {
+				continue;
+			}
+			
+			int key = trigram(c0, c1, c2);
+			Postings postings = mPostings.get(key);
+			if ( postings == null ) {
+				postings = new Postings();
+				mPostings.put(key, postings);
+			}
+			
+			postings.add(slot);
+		}
+	}
+	
+	private static int trigram(char c0, char c1, char c2) {
+		if ( c0 < 0x400 && c1 < 0x400 && c2 < 0x400 ) {
+			return (c0 << 20) | (c1 << 10) | c2;
+		}
+		
+		// Outside of the exact range, collisions are filtered by the text check
+		return 0x40000000 | ((c0 * 961 + c1 * 31 + c2) & 0x3FFFFFFF);
+	}
+	
+	private String textOf(PwEntryV3 entry) {
+		if ( entry.isMetaStream() ) {
+			return null;
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		appendField(sb, entry.getTitle());
+		appendField(sb, entry.getUsername());
+		appendField(sb, entry.getUrl());
+		appendField(sb, entry.getNotes());
+		
+		return sb.toString().toLowerCase();
+	}
+	
+	private static void appendField(StringBuilder sb, String value) {
+		if ( value != null ) {
+			sb.append(value);
+		}
+		sb.append('\n');
+	}
+	
+	private int allocateSlot() {
+		if ( mSlotCount == mEntries.length ) {
+			int size = mSlotCount * 2;
+			PwEntryV3[] entries = new PwEntryV3[size];
+			System.arraycopy(mEntries, 0, entries, 0, mSlotCount);
+			mEntries = entries;
+			String[] texts = new String[size];
+			System.arraycopy(mTexts, 0, texts, 0, mSlotCount);
+			mTexts = texts;
+		}
+		
+		return mSlotCount++;
+	}
+	
+	private void freeSlot(int slot) {
+		mEntries[slot] = null;
+		mTexts[slot] = null;
+		mStaleSlots++;
+	}
+	
+	private void compactIfStale() {
+		if ( mStaleSlots < 1024 || mStaleSlots * 4 < mSlotOf.size() ) {
+			return;
+		}
+		
+		List<PwEntryV3> entries = new ArrayList<PwEntryV3>(mSlotOf.size());
+		for ( int i = 0; i < mSlotCount; i++ ) {
+			if ( mEntries[i] != null ) {
+				entries.add(mEntries[i]);
+			}
+		}
+		
+		clear();
+		for ( int i = 0; i < entries.size(); i++ ) {
+			add(entries.get(i));
+		}
+	}
+
+}
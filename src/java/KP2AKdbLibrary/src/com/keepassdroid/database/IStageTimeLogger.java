@@ -0,0 +1,55 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database;
+
+/** Receives the wall clock interval of each stage of loading or saving a database.
+ * Times are taken from System.nanoTime(), so stages running on different threads
+ * can be compared to see how much they overlap. A stage that alternates with
+ * another one on the same thread, like encrypt and write, is logged from its
+ * first start with the summed time, so its end is not a real point in time.
+ * Stages that don't apply to a load or save path are not logged.
+ * 
+ * @see StageMetrics
+ */
+public interface IStageTimeLogger {
+	/** Reading the file, bytes of the file */
+	String STAGE_READ = "read";
+	/** Transforming the master key into the final key */
+	String STAGE_KEY_TRANSFORM = "keyTransform";
+	/** Decrypting the payload, bytes of cipher text */
+	String STAGE_DECRYPT = "decrypt";
+	/** Hashing the plaintext payload and checking or storing the hash */
+	String STAGE_HASH = "hash";
+	/** Decoding the groups and entries, bytes of plaintext */
+	String STAGE_PARSE = "parse";
+	/** Building the group tree from the decoded records */
+	String STAGE_TREE = "tree";
+	/** Encoding the groups and entries, bytes of plaintext */
+	String STAGE_SERIALIZE = "serialize";
+	/** Encrypting the payload, bytes of plaintext */
+	String STAGE_ENCRYPT = "encrypt";
+	/** Writing the file, bytes of the file */
+	String STAGE_WRITE = "write";
+	/** The whole load or save */
+	String STAGE_TOTAL = "total";
+	
+	/**
+	 * @param bytes Bytes processed by the stage, -1 if it doesn't work on bytes.
+	 */
+	void logStage(String stage, long startNanos, long endNanos, long bytes);
+}
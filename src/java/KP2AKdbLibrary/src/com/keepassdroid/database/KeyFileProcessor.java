@@ -0,0 +1,154 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import com.keepassdroid.UpdateStatus;
+
+/** Derives the file key from a key file in constant memory.
+ * 
+ * A key file of exactly 32 bytes is the raw key, one of exactly 64 bytes is
+ * tried as hex and anything else is hashed with SHA-256. Telling these apart
+ * only takes the first 65 bytes, the rest of the file is fed to the digest
+ * through a fixed buffer. Local files opened as a FileInputStream are memory
+ * mapped instead, so a huge key file is bounded by the disk rather than the heap.
+ */
+public class KeyFileProcessor {
+	
+	private static final int RAW_KEY_LENGTH = 32;
+	private static final int HEX_KEY_LENGTH = 64;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Not worth setting up a mapping below this
+	private static final long MAP_THRESHOLD = 1024 * 1024;
+	// Largest single mapping, keeps the address space use of 32 bit devices small
+	private static final long MAP_WINDOW = 32 * 1024 * 1024;
+	
+	public static byte[] getKey(InputStream keyfileStream) throws IOException {
+		return getKey(keyfileStream, new UpdateStatus());
+	}
+	
+	/** Reads keyfileStream to the end and returns the 32 byte file key.
+	 * @param status Receives hashing progress when the length of the key file is known.
+	 */
+	public static byte[] getKey(InputStream keyfileStream, UpdateStatus status) throws IOException {
+		assert(keyfileStream != null);
+		
+		FileChannel channel = null;
+		long total = -1;
+		if ( keyfileStream instanceof FileInputStream ) {
+			channel = ((FileInputStream) keyfileStream).getChannel();
+			total = channel.size();
+		}
+		
+		// One byte more than the longest special format, so a longer file is never mistaken for one
+		byte[] head = new byte[HEX_KEY_LENGTH + 1];
+		int headLength = readFully(keyfileStream, head);
+		
+		if ( headLength == RAW_KEY_LENGTH ) {
+			return Arrays.copyOf(head, RAW_KEY_LENGTH);
+		} else if ( headLength == HEX_KEY_LENGTH ) {
+			try {
+				return PwDatabaseV3.hexStringToByteArray(new String(head, 0, HEX_KEY_LENGTH));
+			} catch (IndexOutOfBoundsException e) {
+				// Key is not hex, treat it as binary data
+			}
+		}
+		
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 not supported");
+		}
+		md.update(head, 0, headLength);
+		
+		if ( headLength == head.length ) {
+			if ( channel != null && total - channel.position() >= MAP_THRESHOLD ) {
+				hashMapped(channel, md, status);
+			} else {
+				hashStream(keyfileStream, md, status, headLength, total);
+			}
+		}
+		
+		return md.digest();
+	}
+	
+	private static void hashMapped(FileChannel channel, MessageDigest md, UpdateStatus status) throws IOException {
+		long position = channel.position();
+		long size = channel.size();
+		
+		// MessageDigest.update(ByteBuffer) copies through a small internal
+		// array for direct buffers, a larger one of our own is faster
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while ( position < size ) {
+			long length = Math.min(MAP_WINDOW, size - position);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			while ( map.hasRemaining() ) {
+				int count = Math.min(buffer.length, map.remaining());
+				map.get(buffer, 0, count);
+				md.update(buffer, 0, count);
+			}
+			
+			position += length;
+			status.updateProgress(position, size);
+		}
+		
+		// Leave the stream at the end, as if it had been read
+		channel.position(size);
+	}
+	
+	private static void hashStream(InputStream is, MessageDigest md, UpdateStatus status, long done, long total) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		
+		int bytesRead;
+		while ( (bytesRead = is.read(buffer)) != -1 ) {
+			md.update(buffer, 0, bytesRead);
+			
+			done += bytesRead;
+			if ( total > 0 ) {
+				status.updateProgress(done, total);
+			}
+		}
+	}
+	
+	/** Fills buf unless the stream ends first
+	 * @return Number of bytes read
+	 */
+	private static int readFully(InputStream is, byte[] buf) throws IOException {
+		int offset = 0;
+		while ( offset < buf.length ) {
+			int bytesRead = is.read(buf, offset, buf.length - offset);
+			if ( bytesRead == -1 ) {
+				break;
+			}
+			offset += bytesRead;
+		}
+		
+		return offset;
+	}
+
+}
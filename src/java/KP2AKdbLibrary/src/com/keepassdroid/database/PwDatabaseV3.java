@@ -47,8 +47,6 @@ package com.keepassdroid.database;
 
 // Java
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -60,13 +58,21 @@ import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.UUID;
+import com.keepassdroid.UpdateStatus;
 import com.keepassdroid.crypto.finalkey.FinalKey;
 import com.keepassdroid.crypto.finalkey.FinalKeyFactory;
+import com.keepassdroid.crypto.finalkey.TransformedKeyCache;
 import com.keepassdroid.database.exception.InvalidKeyFileException;
 import com.keepassdroid.database.exception.KeyFileEmptyException;
+import com.keepassdroid.database.save.EncodedRecordCache;
 import com.keepassdroid.stream.NullOutputStream;
+import com.keepassdroid.utils.IntObjectMap;
+import com.keepassdroid.utils.Types;
+import com.keepassdroid.utils.UuidObjectMap;
 
 /**
  * @author Naomaru Itoi <nao@phoneid.org>
@@ -88,12 +94,35 @@ public class PwDatabaseV3 {
 	
 
 	// all entries
-	public List<PwEntryV3> entries = new ArrayList<PwEntryV3>();
+	public List<PwEntryV3> entries = new RecordList<PwEntryV3>();
 	// all groups
-	public List<PwGroupV3> groups = new ArrayList<PwGroupV3>();
+	public List<PwGroupV3> groups = new RecordList<PwGroupV3>();
 	// Algorithm used to encrypt the database
 	public PwEncryptionAlgorithm algorithm;
 	public int numKeyEncRounds;
+	
+	// Lookup indexes over groups and entries. They are kept in sync by the add/remove
+	// methods, PwGroupV3.setId() and PwEntryV3.setUUID(), and rebuilt on demand when
+	// the lists were replaced or changed directly. A list which is not a RecordList
+	// is only checked by its size. Ids assigned directly to the public fields are
+	// not noticed, only a lookup finding a record with a different id rebuilds.
+	private IntObjectMap<PwGroupV3> groupIndex;
+	private boolean groupIndexHasDuplicates;
+	private List<PwGroupV3> indexedGroups;
+	private int indexedGroupState;
+	private UuidObjectMap<PwEntryV3> entryIndex;
+	private List<PwEntryV3> indexedEntries;
+	private int indexedEntryState;
+	
+	// Encoded groups and entries from the last save, null unless incremental saving is enabled
+	private EncodedRecordCache recordCache;
+	
+	// Built on first use by getSearchIndex()
+	private EntrySearchIndex searchIndex;
+	
+	// Decrypted contents the entries decode their fields from, null unless loaded lazily
+	private PwRecordBuffer recordBuffer;
+	private AttachmentStore attachmentStore;
 
 	
 	
@@ -112,6 +141,7 @@ public class PwDatabaseV3 {
 		byte[] transformedMasterKey = transformMasterKey(masterSeed2, masterKey, numRounds); 
 		dos.write(masterSeed);
 		dos.write(transformedMasterKey);
+		Arrays.fill(transformedMasterKey, (byte) 0);
 
 		finalKey = md.digest();
 	}
@@ -122,25 +152,39 @@ public class PwDatabaseV3 {
 	 */
 	private static byte[] transformMasterKey( byte[] pKeySeed, byte[] pKey, int rounds ) throws IOException
 	{
+		byte[] cached = TransformedKeyCache.get(pKeySeed, pKey, rounds);
+		if ( cached != null ) {
+			return cached;
+		}
+		
 		FinalKey key = FinalKeyFactory.createFinalKey();
 		
-		return key.transformMasterKey(pKeySeed, pKey, rounds);
+		byte[] transformed = key.transformMasterKey(pKeySeed, pKey, rounds);
+		TransformedKeyCache.put(pKeySeed, pKey, rounds, transformed);
+		
+		return transformed;
 	}
 
 
 	
 	public void setMasterKey(String key, InputStream keyfileStream)
+			throws InvalidKeyFileException, IOException {
+				setMasterKey(key, keyfileStream, new UpdateStatus());
+			}
+	
+	/** @param status Receives progress while a large key file is hashed. */
+	public void setMasterKey(String key, InputStream keyfileStream, UpdateStatus status)
 			throws InvalidKeyFileException, IOException {
 				assert( key != null && keyfileStream != null );
 			
-				masterKey = getMasterKey(key, keyfileStream);
+				masterKey = getMasterKey(key, keyfileStream, status);
 			}
 
-	protected byte[] getCompositeKey(String key, InputStream keyfileStream)
+	protected byte[] getCompositeKey(String key, InputStream keyfileStream, UpdateStatus status)
 			throws InvalidKeyFileException, IOException {
 				assert(key != null && keyfileStream != null);
 				
-				byte[] fileKey = getFileKey(keyfileStream);
+				byte[] fileKey = getFileKey(keyfileStream, status);
 				
 				byte[] passwordKey = getPasswordKey(key);
 				
@@ -158,73 +202,15 @@ public class PwDatabaseV3 {
 	
 	protected byte[] getFileKey(InputStream keyfileStream)
 			throws InvalidKeyFileException, IOException {
-				assert(keyfileStream != null);
-				
-				
-				byte[] buff = new byte[8000];
-
-				int bytesRead = 0;
-
-				ByteArrayOutputStream bao = new ByteArrayOutputStream();
-
-				while ((bytesRead = keyfileStream.read(buff)) != -1) {
-					bao.write(buff, 0, bytesRead);
-				}
-
-				byte[] keyFileData = bao.toByteArray();
-
-				ByteArrayInputStream bin = new ByteArrayInputStream(keyFileData);
-				
-				
-				
-				if ( keyFileData.length == 32 ) {
-					byte[] outputKey = new byte[32];
-					if ( bin.read(outputKey, 0, 32) != 32 ) {
-						throw new IOException("Error reading key.");
-					}
-					
-					return outputKey;
-				} else if ( keyFileData.length == 64 ) {
-					byte[] hex = new byte[64];
-					
-					bin.mark(64);
-					if ( bin.read(hex, 0, 64) != 64 ) {
-						throw new IOException("Error reading key.");
-					}
-			
-					try {
-						return hexStringToByteArray(new String(hex));
-					} catch (IndexOutOfBoundsException e) {
-						// Key is not base 64, treat it as binary data
-						bin.reset();
-					}
-				}
-			
-				MessageDigest md;
-				try {
-					md = MessageDigest.getInstance("SHA-256");
-				} catch (NoSuchAlgorithmException e) {
-					throw new IOException("SHA-256 not supported");
-				}
-				//SHA256Digest md = new SHA256Digest();
-				byte[] buffer = new byte[2048];
-				int offset = 0;
-				
-				try {
-					while (true) {
-						bytesRead = bin.read(buffer, 0, 2048);
-						if ( bytesRead == -1 ) break;  // End of file
-						
-						md.update(buffer, 0, bytesRead);
-						offset += bytesRead;
-						
-					}
-				} catch (Exception e) {
-					System.out.println(e.toString());
-				}
-			
-				return md.digest();
-			}
+		return getFileKey(keyfileStream, new UpdateStatus());
+	}
+	
+	protected byte[] getFileKey(InputStream keyfileStream, UpdateStatus status)
+			throws InvalidKeyFileException, IOException {
+		assert(keyfileStream != null);
+		
+		return KeyFileProcessor.getKey(keyfileStream, status);
+	}
 
 	
 	public static byte[] hexStringToByteArray(String s) {
@@ -309,16 +295,150 @@ public class PwDatabaseV3 {
 	 * @return True if the ID is used, false otherwise
 	 */
 	protected boolean isGroupIdUsed(PwGroupIdV3 id) {
-		List<PwGroupV3> groups = getGroups();
+		return getGroupById(id.getId()) != null;
+	}
+	
+	/**
+	 * Find a group by its id
+	 * 
+	 * @param id
+	 *            ID number of the group
+	 * @return The first group in the group list with that id, or null
+	 */
+	public PwGroupV3 getGroupById(int id) {
+		PwGroupV3 group = getGroupIndex().get(id);
+		if (group != null && group.groupId != id) {
+			// The groupId field was assigned directly after the group was indexed
+			rebuildGroupIndex();
+			group = groupIndex.get(id);
+		}
+		
+		return group;
+	}
+	
+	/**
+	 * Find an entry by its UUID
+	 * 
+	 * @param uuid
+	 *            16 byte UUID as stored in the database
+	 * @return The entry with that UUID, or null
+	 */
+	public PwEntryV3 getEntryByUUID(byte[] uuid) {
+		PwEntryV3 entry = getEntryIndex().get(uuid);
+		if (entry != null && !Arrays.equals(entry.uuid, uuid)) {
+			// The uuid field was assigned directly after the entry was indexed
+			rebuildEntryIndex();
+			entry = entryIndex.get(uuid);
+		}
+		
+		return entry;
+	}
+	
+	public PwEntryV3 getEntryByUUID(UUID uuid) {
+		return getEntryByUUID(Types.UUIDtoBytes(uuid));
+	}
+	
+	private IntObjectMap<PwGroupV3> getGroupIndex() {
+		if (!groupIndexValid()) {
+			rebuildGroupIndex();
+		}
 		
+		return groupIndex;
+	}
+	
+	private void rebuildGroupIndex() {
+		groupIndex = new IntObjectMap<PwGroupV3>(groups.size());
+		groupIndexHasDuplicates = false;
 		for (int i = 0; i < groups.size(); i++) {
-			PwGroupV3 group =groups.get(i);
-			if (group.getId().equals(id)) {
-				return true;
+			indexGroup(groups.get(i));
+		}
+		indexedGroups = groups;
+		indexedGroupState = listState(groups);
+	}
+	
+	private void indexGroup(PwGroupV3 group) {
+		group.indexedBy = this;
+		if (groupIndex.containsKey(group.groupId)) {
+			groupIndexHasDuplicates = true;
+		} else {
+			groupIndex.put(group.groupId, group);
+		}
+	}
+	
+	/** Called by PwGroupV3.setId() for groups this database indexed */
+	void groupIdChanged(PwGroupV3 group, int oldId) {
+		if (!groupIndexValid()) {
+			return;
+		}
+		
+		if (groupIndex.get(oldId) == group) {
+			groupIndex.remove(oldId);
+			if (groupIndexHasDuplicates) {
+				// Another group may have the old id, let the next lookup rebuild the index
+				groupIndex = null;
+			} else {
+				indexGroup(group);
 			}
+		} else if (groupIndexHasDuplicates) {
+			groupIndex = null;
 		}
-
-		return false;
+		// Otherwise the group is no longer in this database
+	}
+	
+	private UuidObjectMap<PwEntryV3> getEntryIndex() {
+		if (!entryIndexValid()) {
+			rebuildEntryIndex();
+		}
+		
+		return entryIndex;
+	}
+	
+	private void rebuildEntryIndex() {
+		entryIndex = new UuidObjectMap<PwEntryV3>(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			indexEntry(entries.get(i));
+		}
+		indexedEntries = entries;
+		indexedEntryState = listState(entries);
+	}
+	
+	private void indexEntry(PwEntryV3 entry) {
+		entry.indexedBy = this;
+		if (entry.uuid != null) {
+			entryIndex.put(entry.uuid, entry);
+		}
+	}
+	
+	/** Called by PwEntryV3.setUUID() for entries this database indexed */
+	void entryUuidChanged(PwEntryV3 entry, byte[] oldUuid) {
+		if (!entryIndexValid()) {
+			return;
+		}
+		
+		if (oldUuid != null && entryIndex.get(oldUuid) == entry) {
+			entryIndex.remove(oldUuid);
+			indexEntry(entry);
+		} else if (oldUuid == null || entryIndex.get(oldUuid) != null) {
+			// Can't tell whether it is still in this database, or it shared
+			// its uuid with another entry
+			entryIndex = null;
+		}
+	}
+	
+	private static int listState(List<?> list) {
+		if (list instanceof RecordList) {
+			return ((RecordList<?>) list).changeCount();
+		}
+		
+		return list.size();
+	}
+	
+	private boolean groupIndexValid() {
+		return groupIndex != null && indexedGroups == groups && indexedGroupState == listState(groups);
+	}
+	
+	private boolean entryIndexValid() {
+		return entryIndex != null && indexedEntries == entries && indexedEntryState == listState(entries);
 	}
 	
 	
@@ -380,6 +500,23 @@ public class PwDatabaseV3 {
 		groups = grp;
 	}
 
+	/**
+	 * Freeze the current groups and entries, for searching or saving on
+	 * another thread while this database keeps changing. Call it from the
+	 * thread that modifies the database.
+	 */
+	public PwDatabaseV3Snapshot snapshot() {
+		return snapshot(true);
+	}
+	
+	/**
+	 * @param copyRecords False to only freeze the order of the records, for a
+	 *   reader running on the thread that modifies the database.
+	 */
+	public PwDatabaseV3Snapshot snapshot(boolean copyRecords) {
+		return new PwDatabaseV3Snapshot(this, copyRecords);
+	}
+
 	public ArrayList<PwGroupV3> getGrpRoots() {
 		int target = 0;
 		ArrayList<PwGroupV3> kids = new ArrayList<PwGroupV3>();
@@ -438,18 +575,7 @@ public class PwDatabaseV3 {
 	public void constructTree(PwGroupV3 currentGroup) {
 		// I'm in root
 		if (currentGroup == null) {
-			PwGroupV3 root = new PwGroupV3();
-			rootGroup = root;
-
-			ArrayList<PwGroupV3> rootChildGroups = getGrpRoots();
-			root.setGroups(rootChildGroups);
-			root.childEntries = new ArrayList<PwEntryV3>();
-			root.level = -1;
-			for (int i = 0; i < rootChildGroups.size(); i++) {
-				PwGroupV3 grp = (PwGroupV3) rootChildGroups.get(i);
-				grp.parent = root;
-				constructTree(grp);
-			}
+			constructTree();
 			return;
 		}
 
@@ -472,6 +598,87 @@ public class PwDatabaseV3 {
 		return;
 	}
 
+	/**
+	 * Build the whole tree in one pass over the groups and entries.
+	 * 
+	 * Entries are bucketed by their group id first. The group list is then
+	 * walked in order while the chain of ancestors is kept on a stack, so a
+	 * group is linked to the closest preceding group one level above it. This
+	 * gives the same links as scanning for the children of every group, including
+	 * leaving groups without a matching parent level out of the tree.
+	 */
+	private void constructTree() {
+		PwGroupV3 root = new PwGroupV3();
+		rootGroup = root;
+
+		ArrayList<PwGroupV3> rootChildGroups = new ArrayList<PwGroupV3>();
+		root.setGroups(rootChildGroups);
+		root.childEntries = new ArrayList<PwEntryV3>();
+		root.level = -1;
+		
+		IntObjectMap<ArrayList<PwEntryV3>> entriesByGroup = new IntObjectMap<ArrayList<PwEntryV3>>(groups.size());
+		for (int i = 0; i < entries.size(); i++) {
+			PwEntryV3 ent = entries.get(i);
+			ArrayList<PwEntryV3> bucket = entriesByGroup.get(ent.groupId);
+			if (bucket == null) {
+				bucket = new ArrayList<PwEntryV3>();
+				entriesByGroup.put(ent.groupId, bucket);
+			}
+			bucket.add(ent);
+		}
+		// Groups which already own the entry list of their id, only matters for duplicate ids
+		IntObjectMap<PwGroupV3> bucketOwners = new IntObjectMap<PwGroupV3>(groups.size());
+		
+		PwGroupV3[] stack = new PwGroupV3[16];
+		boolean[] inTree = new boolean[16];
+		int depth = 0;
+		for (int i = 0; i < groups.size(); i++) {
+			PwGroupV3 grp = groups.get(i);
+			
+			while (depth > 0 && stack[depth - 1].level >= grp.level) {
+				depth--;
+			}
+			
+			PwGroupV3 parent = null;
+			if (grp.level == 0) {
+				parent = root;
+			} else if (depth > 0 && inTree[depth - 1] && stack[depth - 1].level == grp.level - 1) {
+				parent = stack[depth - 1];
+			}
+			
+			if (depth == stack.length) {
+				stack = Arrays.copyOf(stack, depth * 2);
+				inTree = Arrays.copyOf(inTree, depth * 2);
+			}
+			stack[depth] = grp;
+			inTree[depth] = parent != null;
+			depth++;
+			
+			if (parent == null) {
+				// Not reachable from the root
+				continue;
+			}
+			
+			grp.parent = parent;
+			parent.childGroups.add(grp);
+			grp.setGroups(new ArrayList<PwGroupV3>());
+			
+			ArrayList<PwEntryV3> kids = entriesByGroup.get(grp.groupId);
+			if (kids == null) {
+				kids = new ArrayList<PwEntryV3>();
+			} else if (bucketOwners.containsKey(grp.groupId)) {
+				kids = new ArrayList<PwEntryV3>(kids);
+			} else {
+				bucketOwners.put(grp.groupId, grp);
+			}
+			grp.childEntries = kids;
+			
+			for (int j = 0; j < kids.size(); j++) {
+				kids.get(j).parent = grp;
+			}
+		}
+	}
+
 	/*
 	public void removeGroup(PwGroupV3 group) {
 		group.parent.childGroups.remove(group);
@@ -480,29 +687,33 @@ public class PwDatabaseV3 {
 	*/
 
 	public PwGroupIdV3 newGroupId() {
-		PwGroupIdV3 newId = new PwGroupIdV3(0);
+		IntObjectMap<PwGroupV3> index = getGroupIndex();
 
 		Random random = new Random();
 
-		while (true) {
-			newId = new PwGroupIdV3(random.nextInt());
+		int id;
+		do {
+			id = random.nextInt();
+		} while (index.containsKey(id));
 
-			if (!isGroupIdUsed(newId)) break;
-		}
-
-		return newId;
+		return new PwGroupIdV3(id);
 	}
 
 	public byte[] getMasterKey(String key, InputStream keyfileStream)
 			throws InvalidKeyFileException, IOException {
+		return getMasterKey(key, keyfileStream, new UpdateStatus());
+	}
+
+	public byte[] getMasterKey(String key, InputStream keyfileStream, UpdateStatus status)
+			throws InvalidKeyFileException, IOException {
 		assert (key != null && keyfileStream != null);
 
 		if (key.length() > 0 && keyfileStream != null) {
-			return getCompositeKey(key, keyfileStream);
+			return getCompositeKey(key, keyfileStream, status);
 		} else if (key.length() > 0) {
 			return getPasswordKey(key);
 		} else if (keyfileStream != null) {
-			return getFileKey(keyfileStream);
+			return getFileKey(keyfileStream, status);
 		} else {
 			throw new IllegalArgumentException("Key cannot be empty.");
 		}
@@ -533,35 +744,162 @@ public class PwDatabaseV3 {
 	
 	public void addEntryTo(PwEntryV3 newEntry, PwGroupV3 parent) {
 		super_addEntryTo(newEntry, parent);
+		newEntry.setDirty(true);
+		
+		if (searchIndex != null) {
+			searchIndex.add(newEntry);
+		}
+		
+		boolean indexed = entryIndexValid();
 		
 		// Add entry to root entries
 		entries.add(newEntry);
 		
+		if (indexed) {
+			indexEntry(newEntry);
+			indexedEntryState = listState(entries);
+		}
 	}
 
 	
 	public void addGroupTo(PwGroupV3 newGroup, PwGroupV3 parent) {
 		super_addGroupTo(newGroup, parent);
+		newGroup.setDirty(true);
+		
+		boolean indexed = groupIndexValid();
 		
 		// Add group to root groups
 		groups.add(newGroup);
 		
+		if (indexed) {
+			indexGroup(newGroup);
+			indexedGroupState = listState(groups);
+		}
 	}
 
 	
 	public void removeEntryFrom(PwEntryV3 remove, PwGroupV3 parent) {
 		super_removeEntryFrom(remove, parent);
 		
+		if (recordCache != null) {
+			recordCache.remove(remove);
+		}
+		
+		if (searchIndex != null) {
+			searchIndex.remove(remove);
+		}
+		
+		boolean indexed = entryIndexValid();
+		
 		// Remove entry from root entry
-		entries.remove(remove);
+		if (entries.remove(remove) && indexed) {
+			if (remove.uuid == null || entryIndex.get(remove.uuid) != remove) {
+				// Not indexed under its current UUID, let the next lookup rebuild the index
+				entryIndex = null;
+			} else {
+				entryIndex.remove(remove.uuid);
+				indexedEntryState = listState(entries);
+			}
+			remove.indexedBy = null;
+		}
 	}
 
 	
 	public void removeGroupFrom(PwGroupV3 remove, PwGroupV3 parent) {
 		super_removeGroupFrom(remove, parent);
 		
+		if (recordCache != null) {
+			recordCache.remove(remove);
+		}
+		
+		boolean indexed = groupIndexValid();
+		
 		// Remove group from root entry
-		groups.remove(remove);
+		if (groups.remove(remove) && indexed) {
+			if (groupIndexHasDuplicates || groupIndex.get(remove.groupId) != remove) {
+				// Another group may share the id, let the next lookup rebuild the index
+				groupIndex = null;
+			} else {
+				groupIndex.remove(remove.groupId);
+				indexedGroupState = listState(groups);
+			}
+			remove.indexedBy = null;
+		}
+	}
+
+	/**
+	 * Keep the encoded groups and entries between saves, so a save only
+	 * re-encodes the records which changed. The cache holds plaintext, call
+	 * wipeRecordCache() when the database is locked.
+	 */
+	public void setIncrementalSave(boolean enable) {
+		if (enable) {
+			if (recordCache == null) {
+				recordCache = new EncodedRecordCache();
+			}
+		} else {
+			wipeRecordCache();
+			recordCache = null;
+		}
+	}
+	
+	public EncodedRecordCache getRecordCache() {
+		return recordCache;
+	}
+	
+	public void wipeRecordCache() {
+		if (recordCache != null) {
+			recordCache.wipe();
+		}
+	}
+
+	/**
+	 * Returns the full text index over the entries, building it on first use.
+	 * Building decodes all fields of lazily loaded entries.
+	 */
+	public synchronized EntrySearchIndex getSearchIndex() {
+		if (searchIndex == null) {
+			searchIndex = new EntrySearchIndex(this);
+			searchIndex.build();
+		}
+		
+		return searchIndex;
+	}
+	
+	/** Drops the search index and the entry text it holds */
+	public synchronized void clearSearchIndex() {
+		if (searchIndex != null) {
+			searchIndex.clear();
+			searchIndex = null;
+		}
+	}
+	
+	public PwRecordBuffer getRecordBuffer() {
+		return recordBuffer;
+	}
+	
+	public void setRecordBuffer(PwRecordBuffer buffer) {
+		recordBuffer = buffer;
+	}
+	
+	/**
+	 * Zero the decrypted contents of a lazily loaded database. Fields which
+	 * were not read yet can't be decoded afterwards, so only call this when
+	 * the database is locked.
+	 */
+	public void wipeRecordBuffer() {
+		if (recordBuffer != null) {
+			recordBuffer.wipe();
+		}
+	}
+
+	/** Store for large attachments, used by ImporterV3 and PwEntryV3.setBinaryData */
+	public AttachmentStore getAttachmentStore() {
+		return attachmentStore;
+	}
+	
+	public void setAttachmentStore(AttachmentStore store) {
+		attachmentStore = store;
 	}
 
 	public PwGroupV3 createGroup() {
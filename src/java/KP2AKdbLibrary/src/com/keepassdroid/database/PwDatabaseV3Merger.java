@@ -0,0 +1,680 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.keepassdroid.utils.IntObjectMap;
+import com.keepassdroid.utils.Types;
+import com.keepassdroid.utils.UuidObjectMap;
+
+/** Three-way merge of two versions of a database that were both changed
+ * since a common base, e.g. the local database and the file changed on the
+ * server since the last sync.
+ * 
+ * Entries are matched by uuid and groups by groupId through hash indexes, so
+ * the merge is linear in the number of records. A record changed on one side
+ * only takes that change. A record changed on both sides keeps the version
+ * with the newer tLastMod and is reported as a conflict. A record missing
+ * on one side was deleted there, the deletion wins unless the other side
+ * changed the record since the base. Deletion times from PwDeletedObject
+ * tombstones decide those cases for entries, without one the change is kept.
+ * Without a base every record missing on one side counts as added.
+ * 
+ * KeePass 1.x gives its meta stream entries a new uuid on every save, so they
+ * are matched by their stream name in the notes instead. The local meta
+ * streams are kept, remote ones are only added for streams the local side
+ * doesn't have.
+ * 
+ * The merge is written into the local database. Records taken from the remote
+ * side are moved over, not copied, so the remote database can't be used
+ * afterwards. Their lazily loaded fields are decoded and their attachments
+ * copied into the local AttachmentStore, so the remote record buffer and store
+ * can be wiped once the merge is done. Run it on the thread that owns the
+ * local database.
+ */
+public class PwDatabaseV3Merger {
+	
+	public enum ConflictType {
+		/** Changed on both sides, the version with the newer tLastMod was kept */
+		MODIFIED_BOTH,
+		/** Deleted on one side and changed on the other */
+		DELETED_AND_MODIFIED,
+		/** A group deleted on one side is kept, it still holds entries or groups */
+		DELETED_GROUP_KEPT,
+		/** Both sides added a different group with the same id, the remote one got a new id */
+		GROUP_ID_COLLISION,
+		/** The group is gone, the group was moved to the top level or the entry into the first group */
+		ORPHANED
+	}
+	
+	/** A record the merge could not decide without losing a change.
+	 * local or remote is null if the record was deleted on that side, kept is
+	 * null if it was deleted by the merge.
+	 */
+	public static class Conflict<T> {
+		public final ConflictType type;
+		public final T local;
+		public final T remote;
+		public final T kept;
+		
+		Conflict(ConflictType type, T local, T remote, T kept) {
+			this.type = type;
+			this.local = local;
+			this.remote = remote;
+			this.kept = kept;
+		}
+	}
+	
+	public static class Result {
+		/** The local database, now holding the merged groups and entries */
+		public final PwDatabaseV3 merged;
+		public final List<Conflict<PwGroupV3>> groupConflicts;
+		public final List<Conflict<PwEntryV3>> entryConflicts;
+		
+		Result(PwDatabaseV3 merged, List<Conflict<PwGroupV3>> groupConflicts, List<Conflict<PwEntryV3>> entryConflicts) {
+			this.merged = merged;
+			this.groupConflicts = Collections.unmodifiableList(groupConflicts);
+			this.entryConflicts = Collections.unmodifiableList(entryConflicts);
+		}
+		
+		public boolean hasConflicts() {
+			return ! groupConflicts.isEmpty() || ! entryConflicts.isEmpty();
+		}
+	}
+	
+	// Group ids 0 and 0xFFFFFFFF are reserved by KeePass, so -1 can stand for the root
+	private static final int ROOT_ID = -1;
+	
+	private static final int COMPARE_CHUNK_SIZE = 64 * 1024;
+	
+	private static class Side {
+		final PwDatabaseV3 db;
+		final UuidObjectMap<PwEntryV3> entries;
+		final IntObjectMap<PwGroupV3> groups;
+		// Never matched by uuid, see mergeMetaStreams()
+		final List<PwEntryV3> metaStreams = new ArrayList<PwEntryV3>();
+		UuidObjectMap<PwDeletedObject> deleted;
+		
+		Side(PwDatabaseV3 db) {
+			this.db = db;
+			
+			List<PwEntryV3> entryList = db == null ? Collections.<PwEntryV3>emptyList() : db.entries;
+			entries = new UuidObjectMap<PwEntryV3>(entryList.size());
+			for ( int i = 0; i < entryList.size(); i++ ) {
+				PwEntryV3 entry = entryList.get(i);
+				if ( entry.isMetaStream() ) {
+					metaStreams.add(entry);
+				} else if ( entry.uuid != null ) {
+					entries.put(entry.uuid, entry);
+				}
+			}
+			
+			List<PwGroupV3> groupList = db == null ? Collections.<PwGroupV3>emptyList() : db.groups;
+			groups = new IntObjectMap<PwGroupV3>(groupList.size());
+			for ( int i = 0; i < groupList.size(); i++ ) {
+				PwGroupV3 group = groupList.get(i);
+				if ( ! groups.containsKey(group.groupId) ) {
+					groups.put(group.groupId, group);
+				}
+			}
+		}
+		
+		PwDeletedObject getDeleted(byte[] uuid) {
+			return deleted == null ? null : deleted.get(uuid);
+		}
+		
+		boolean isMetaStream(PwEntryV3 entry) {
+			for ( int i = 0; i < metaStreams.size(); i++ ) {
+				if ( metaStreams.get(i) == entry ) {
+					return true;
+				}
+			}
+			
+			return false;
+		}
+	}
+	
+	private final Side mBase;
+	private final Side mLocal;
+	private final Side mRemote;
+	
+	private final List<Conflict<PwGroupV3>> mGroupConflicts = new ArrayList<Conflict<PwGroupV3>>();
+	private final List<Conflict<PwEntryV3>> mEntryConflicts = new ArrayList<Conflict<PwEntryV3>>();
+	
+	// Groups of the merge, in the order they were decided
+	private final List<PwGroupV3> mKept = new ArrayList<PwGroupV3>();
+	private final IntObjectMap<PwGroupV3> mKeptById = new IntObjectMap<PwGroupV3>();
+	// Groups deleted by the merge, restored if a kept record still needs them
+	private final IntObjectMap<PwGroupV3> mDropped = new IntObjectMap<PwGroupV3>();
+	
+	// Kept entries whose group changes, applied once nothing can fail any more
+	private final List<PwEntryV3> mMoved = new ArrayList<PwEntryV3>();
+	private final List<Integer> mMovedTo = new ArrayList<Integer>();
+	// Kept entries coming from the remote database
+	private final List<PwEntryV3> mAdopted = new ArrayList<PwEntryV3>();
+	
+	private boolean mMerged = false;
+	
+	/**
+	 * @param base The version both sides started from, null for a two-way merge.
+	 * @param local Receives the merge.
+	 * @param remote Consumed by the merge.
+	 */
+	public PwDatabaseV3Merger(PwDatabaseV3 base, PwDatabaseV3 local, PwDatabaseV3 remote) {
+		mBase = new Side(base);
+		mLocal = new Side(local);
+		mRemote = new Side(remote);
+	}
+	
+	/** Entries deleted from the local database, with their deletion times */
+	public void setLocalDeletions(Collection<PwDeletedObject> deleted) {
+		mLocal.deleted = indexDeleted(deleted);
+	}
+	
+	/** Entries deleted from the remote database, with their deletion times */
+	public void setRemoteDeletions(Collection<PwDeletedObject> deleted) {
+		mRemote.deleted = indexDeleted(deleted);
+	}
+	
+	private static UuidObjectMap<PwDeletedObject> indexDeleted(Collection<PwDeletedObject> deleted) {
+		UuidObjectMap<PwDeletedObject> index = new UuidObjectMap<PwDeletedObject>(deleted.size());
+		for ( PwDeletedObject obj : deleted ) {
+			index.put(Types.UUIDtoBytes(obj.uuid), obj);
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * @throws IOException if an attachment of a remote entry can't be read.
+	 *   The local database is left as it was.
+	 */
+	public Result merge() throws IOException {
+		if ( mMerged ) {
+			throw new IllegalStateException("The databases have already been merged");
+		}
+		mMerged = true;
+		
+		renameCollidingGroups();
+		mergeGroups();
+		List<PwEntryV3> entries = mergeEntries();
+		mergeMetaStreams(entries);
+		adoptRemoteEntries();
+		
+		for ( int i = 0; i < mMoved.size(); i++ ) {
+			PwEntryV3 entry = mMoved.get(i);
+			entry.groupId = mMovedTo.get(i);
+			entry.setDirty(true);
+		}
+		List<PwGroupV3> groups = buildGroupTree();
+		
+		PwDatabaseV3 db = mLocal.db;
+		db.groups = new RecordList<PwGroupV3>(groups);
+		db.entries = new RecordList<PwEntryV3>(entries);
+		db.constructTree(null);
+		db.clearSearchIndex();
+		mRemote.db.clearSearchIndex();
+		
+		return new Result(db, mGroupConflicts, mEntryConflicts);
+	}
+	
+	/** Give remote groups which were added with the id of a different local group a new id.
+	 * Children in the remote tree follow through their parent reference.
+	 */
+	private void renameCollidingGroups() {
+		List<PwGroupV3> localGroups = mLocal.db.groups;
+		Random random = null;
+		for ( int i = 0; i < localGroups.size(); i++ ) {
+			PwGroupV3 l = localGroups.get(i);
+			PwGroupV3 r = mRemote.groups.get(l.groupId);
+			if ( r == null || mBase.groups.containsKey(l.groupId) || sameDate(l.tCreation, r.tCreation) ) {
+				continue;
+			}
+			
+			if ( random == null ) {
+				random = new Random();
+			}
+			int id;
+			do {
+				id = random.nextInt();
+			} while ( id == 0 || id == ROOT_ID || mLocal.groups.containsKey(id)
+					|| mRemote.groups.containsKey(id) || mBase.groups.containsKey(id) );
+			
+			mRemote.groups.remove(r.groupId);
+			r.groupId = id;
+			r.setDirty(true);
+			mRemote.groups.put(id, r);
+			mGroupConflicts.add(new Conflict<PwGroupV3>(ConflictType.GROUP_ID_COLLISION, l, r, r));
+		}
+	}
+	
+	private void mergeGroups() {
+		List<PwGroupV3> localGroups = mLocal.db.groups;
+		for ( int i = 0; i < localGroups.size(); i++ ) {
+			PwGroupV3 l = localGroups.get(i);
+			if ( mLocal.groups.get(l.groupId) != l ) {
+				// Duplicate id within the local database, the first one wins as for lookups
+				continue;
+			}
+			
+			PwGroupV3 b = mBase.groups.get(l.groupId);
+			PwGroupV3 r = mRemote.groups.get(l.groupId);
+			if ( r == null ) {
+				keepOneSidedGroup(l, b, true);
+			} else {
+				keepGroup(resolveBoth(l, r, b, sameGroup(l, r), changed(l, b), changed(r, b),
+						l.tLastMod, r.tLastMod, mGroupConflicts));
+			}
+		}
+		
+		List<PwGroupV3> remoteGroups = mRemote.db.groups;
+		for ( int i = 0; i < remoteGroups.size(); i++ ) {
+			PwGroupV3 r = remoteGroups.get(i);
+			if ( mRemote.groups.get(r.groupId) != r || mLocal.groups.containsKey(r.groupId) ) {
+				continue;
+			}
+			
+			keepOneSidedGroup(r, mBase.groups.get(r.groupId), false);
+		}
+	}
+	
+	private void keepOneSidedGroup(PwGroupV3 present, PwGroupV3 b, boolean isLocal) {
+		if ( b == null ) {
+			// Added on this side
+			keepGroup(present);
+		} else if ( ! changed(present, b) ) {
+			// Deleted on the other side, keep it only if something still needs it
+			mDropped.put(present.groupId, present);
+		} else {
+			keepGroup(present);
+			mGroupConflicts.add(new Conflict<PwGroupV3>(ConflictType.DELETED_AND_MODIFIED,
+					isLocal ? present : null, isLocal ? null : present, present));
+		}
+	}
+	
+	private void keepGroup(PwGroupV3 group) {
+		mKept.add(group);
+		mKeptById.put(group.groupId, group);
+	}
+	
+	/** Keep the group with this id if it was dropped, along with its dropped parents */
+	private boolean restoreGroup(int id) {
+		while ( id != ROOT_ID && ! mKeptById.containsKey(id) ) {
+			PwGroupV3 dropped = mDropped.remove(id);
+			if ( dropped == null ) {
+				return false;
+			}
+			
+			keepGroup(dropped);
+			mGroupConflicts.add(new Conflict<PwGroupV3>(ConflictType.DELETED_GROUP_KEPT,
+					mLocal.groups.get(id) == dropped ? dropped : null,
+					mRemote.groups.get(id) == dropped ? dropped : null, dropped));
+			id = parentId(dropped);
+		}
+		
+		return true;
+	}
+	
+	private List<PwEntryV3> mergeEntries() throws IOException {
+		List<PwEntryV3> merged = new ArrayList<PwEntryV3>(mLocal.db.entries.size());
+		
+		List<PwEntryV3> localEntries = mLocal.db.entries;
+		for ( int i = 0; i < localEntries.size(); i++ ) {
+			PwEntryV3 l = localEntries.get(i);
+			if ( mLocal.isMetaStream(l) ) {
+				continue;
+			}
+			if ( l.uuid == null || mLocal.entries.get(l.uuid) != l ) {
+				// Can't be matched, keep as it is
+				addEntry(l, merged);
+				continue;
+			}
+			
+			PwEntryV3 b = mBase.entries.get(l.uuid);
+			PwEntryV3 r = mRemote.entries.get(l.uuid);
+			PwEntryV3 kept;
+			if ( r == null ) {
+				kept = resolveOneSidedEntry(l, b, mRemote.getDeleted(l.uuid), true);
+			} else {
+				kept = resolveBoth(l, r, b, sameEntry(l, r), changed(l, b), changed(r, b),
+						l.tLastMod, r.tLastMod, mEntryConflicts);
+			}
+			
+			if ( kept != null ) {
+				if ( kept != l ) {
+					mAdopted.add(kept);
+				}
+				addEntry(kept, merged);
+			}
+		}
+		
+		List<PwEntryV3> remoteEntries = mRemote.db.entries;
+		for ( int i = 0; i < remoteEntries.size(); i++ ) {
+			PwEntryV3 r = remoteEntries.get(i);
+			if ( r.uuid == null || mRemote.entries.get(r.uuid) != r || mLocal.entries.containsKey(r.uuid) ) {
+				continue;
+			}
+			
+			PwEntryV3 kept = resolveOneSidedEntry(r, mBase.entries.get(r.uuid), mLocal.getDeleted(r.uuid), false);
+			if ( kept != null ) {
+				mAdopted.add(kept);
+				addEntry(kept, merged);
+			}
+		}
+		
+		return merged;
+	}
+	
+	/** Keep the local meta streams and add remote ones for streams the local side lacks.
+	 * They go last, where KeePass writes them.
+	 */
+	private void mergeMetaStreams(List<PwEntryV3> merged) {
+		Set<String> localStreams = new HashSet<String>();
+		for ( int i = 0; i < mLocal.metaStreams.size(); i++ ) {
+			PwEntryV3 l = mLocal.metaStreams.get(i);
+			localStreams.add(l.getNotes());
+			addEntry(l, merged);
+		}
+		
+		for ( int i = 0; i < mRemote.metaStreams.size(); i++ ) {
+			PwEntryV3 r = mRemote.metaStreams.get(i);
+			if ( ! localStreams.contains(r.getNotes()) ) {
+				mAdopted.add(r);
+				addEntry(r, merged);
+			}
+		}
+	}
+	
+	/** Detach the kept remote entries from the remote record buffer and attachment store */
+	private void adoptRemoteEntries() throws IOException {
+		AttachmentStore localStore = mLocal.db.getAttachmentStore();
+		AttachmentStore remoteStore = mRemote.db.getAttachmentStore();
+		
+		for ( int i = 0; i < mAdopted.size(); i++ ) {
+			PwEntryV3 entry = mAdopted.get(i);
+			entry.decodeLazyFields();
+			
+			if ( entry.getBinaryAttachment() != null && localStore != remoteStore ) {
+				AttachmentStore.Attachment attachment = entry.getBinaryAttachment();
+				InputStream is = attachment.openStream();
+				try {
+					entry.setBinaryData(is, attachment.length(), localStore);
+				} finally {
+					is.close();
+				}
+			}
+			
+			entry.setDirty(true);
+		}
+	}
+	
+	private PwEntryV3 resolveOneSidedEntry(PwEntryV3 present, PwEntryV3 b, PwDeletedObject deleted, boolean isLocal) throws IOException {
+		boolean modified = b == null || changed(present, b);
+		if ( b == null && deleted == null ) {
+			// Added on this side
+			return present;
+		} else if ( ! modified ) {
+			// Deleted on the other side
+			return null;
+		}
+		
+		PwEntryV3 kept = present;
+		if ( deleted != null && deleted.getDeletionTime().getTime() >= time(present.tLastMod) ) {
+			kept = null;
+		}
+		mEntryConflicts.add(new Conflict<PwEntryV3>(ConflictType.DELETED_AND_MODIFIED,
+				isLocal ? present : null, isLocal ? null : present, kept));
+		
+		return kept;
+	}
+	
+	private <T> T resolveBoth(T l, T r, T b, boolean same, boolean localChanged, boolean remoteChanged,
+			PwDate localMod, PwDate remoteMod, List<Conflict<T>> conflicts) {
+		if ( same || ! remoteChanged ) {
+			return l;
+		} else if ( ! localChanged ) {
+			return r;
+		}
+		
+		T kept = time(remoteMod) > time(localMod) ? r : l;
+		conflicts.add(new Conflict<T>(ConflictType.MODIFIED_BOTH, l, r, kept));
+		
+		return kept;
+	}
+	
+	private void addEntry(PwEntryV3 entry, List<PwEntryV3> merged) {
+		int groupId = groupIdOf(entry);
+		if ( ! restoreGroup(groupId) || groupId == ROOT_ID ) {
+			if ( mKept.isEmpty() ) {
+				// Nothing to put it in, KeePass 1 keeps every entry in a group
+				return;
+			}
+			
+			groupId = mKept.get(0).groupId;
+			if ( ! mLocal.isMetaStream(entry) && ! mRemote.isMetaStream(entry) ) {
+				mEntryConflicts.add(new Conflict<PwEntryV3>(ConflictType.ORPHANED,
+						mLocal.entries.get(entry.uuid), mRemote.entries.get(entry.uuid), entry));
+			}
+		}
+		
+		if ( entry.groupId != groupId ) {
+			mMoved.add(entry);
+			mMovedTo.add(groupId);
+		}
+		merged.add(entry);
+	}
+	
+	/** Put the kept groups into tree order and set their levels */
+	private List<PwGroupV3> buildGroupTree() {
+		// Restore dropped parents first, this may add to mKept
+		for ( int i = 0; i < mKept.size(); i++ ) {
+			restoreGroup(parentId(mKept.get(i)));
+		}
+		
+		IntObjectMap<ArrayList<PwGroupV3>> children = new IntObjectMap<ArrayList<PwGroupV3>>(mKept.size());
+		ArrayList<PwGroupV3> roots = new ArrayList<PwGroupV3>();
+		for ( int i = 0; i < mKept.size(); i++ ) {
+			PwGroupV3 group = mKept.get(i);
+			int parent = parentId(group);
+			
+			ArrayList<PwGroupV3> siblings;
+			if ( parent == ROOT_ID ) {
+				siblings = roots;
+			} else if ( mKeptById.get(parent) == null ) {
+				siblings = roots;
+				mGroupConflicts.add(new Conflict<PwGroupV3>(ConflictType.ORPHANED,
+						mLocal.groups.get(group.groupId), mRemote.groups.get(group.groupId), group));
+			} else {
+				siblings = children.get(parent);
+				if ( siblings == null ) {
+					siblings = new ArrayList<PwGroupV3>();
+					children.put(parent, siblings);
+				}
+			}
+			siblings.add(group);
+		}
+		
+		List<PwGroupV3> ordered = new ArrayList<PwGroupV3>(mKept.size());
+		IntObjectMap<PwGroupV3> placed = new IntObjectMap<PwGroupV3>(mKept.size());
+		for ( int i = 0; i < roots.size(); i++ ) {
+			placeGroup(roots.get(i), 0, children, placed, ordered);
+		}
+		
+		// Groups moved under each other on the two sides form a cycle the roots don't reach
+		for ( int i = 0; i < mKept.size(); i++ ) {
+			PwGroupV3 group = mKept.get(i);
+			if ( ! placed.containsKey(group.groupId) ) {
+				mGroupConflicts.add(new Conflict<PwGroupV3>(ConflictType.ORPHANED,
+						mLocal.groups.get(group.groupId), mRemote.groups.get(group.groupId), group));
+				placeGroup(group, 0, children, placed, ordered);
+			}
+		}
+		
+		return ordered;
+	}
+	
+	private static void placeGroup(PwGroupV3 group, int level, IntObjectMap<ArrayList<PwGroupV3>> children,
+			IntObjectMap<PwGroupV3> placed, List<PwGroupV3> ordered) {
+		placed.put(group.groupId, group);
+		ordered.add(group);
+		if ( group.level != level ) {
+			group.level = level;
+			group.setDirty(true);
+		}
+		
+		ArrayList<PwGroupV3> kids = children.get(group.groupId);
+		if ( kids == null ) {
+			return;
+		}
+		for ( int i = 0; i < kids.size(); i++ ) {
+			PwGroupV3 kid = kids.get(i);
+			if ( ! placed.containsKey(kid.groupId) ) {
+				placeGroup(kid, level + 1, children, placed, ordered);
+			}
+		}
+	}
+	
+	private static int parentId(PwGroupV3 group) {
+		PwGroupV3 parent = group.parent;
+		if ( parent == null || parent.level < 0 ) {
+			return ROOT_ID;
+		}
+		
+		return parent.groupId;
+	}
+	
+	private static int groupIdOf(PwEntryV3 entry) {
+		PwGroupV3 parent = entry.parent;
+		if ( parent == null ) {
+			return entry.groupId;
+		} else if ( parent.level < 0 ) {
+			return ROOT_ID;
+		}
+		
+		return parent.groupId;
+	}
+	
+	private static boolean changed(PwGroupV3 group, PwGroupV3 b) {
+		return b == null || ! sameGroup(group, b);
+	}
+	
+	private static boolean changed(PwEntryV3 entry, PwEntryV3 b) throws IOException {
+		return b == null || ! sameEntry(entry, b);
+	}
+	
+	private static boolean sameGroup(PwGroupV3 a, PwGroupV3 b) {
+		return sameDate(a.tLastMod, b.tLastMod)
+				&& sameDate(a.tExpire, b.tExpire)
+				&& equal(a.name, b.name)
+				&& iconId(a.icon) == iconId(b.icon)
+				&& a.flags == b.flags
+				&& parentId(a) == parentId(b);
+	}
+	
+	private static boolean sameEntry(PwEntryV3 a, PwEntryV3 b) throws IOException {
+		if ( ! sameDate(a.tLastMod, b.tLastMod)
+				|| ! sameDate(a.tExpire, b.tExpire)
+				|| groupIdOf(a) != groupIdOf(b)
+				|| iconId(a.icon) != iconId(b.icon)
+				|| ! equal(a.getTitle(), b.getTitle())
+				|| ! equal(a.getUsername(), b.getUsername())
+				|| ! equal(a.getUrl(), b.getUrl())
+				|| ! equal(a.getNotes(), b.getNotes())
+				|| ! equal(a.getBinaryDesc(), b.getBinaryDesc())
+				|| a.getBinaryLength() != b.getBinaryLength()
+				|| ! Arrays.equals(a.getPasswordBytes(), b.getPasswordBytes()) ) {
+			return false;
+		}
+		
+		return a.getBinaryLength() <= 0 || sameBinaryData(a, b);
+	}
+	
+	/** Stored attachments are compared chunk by chunk instead of being read into memory */
+	private static boolean sameBinaryData(PwEntryV3 a, PwEntryV3 b) throws IOException {
+		if ( a.getBinaryAttachment() == null && b.getBinaryAttachment() == null ) {
+			return Arrays.equals(a.getBinaryData(), b.getBinaryData());
+		}
+		
+		InputStream as = a.getBinaryStream();
+		InputStream bs = b.getBinaryStream();
+		byte[] abuf = new byte[COMPARE_CHUNK_SIZE];
+		byte[] bbuf = new byte[COMPARE_CHUNK_SIZE];
+		try {
+			while ( true ) {
+				int alen = readChunk(as, abuf);
+				if ( alen != readChunk(bs, bbuf) ) {
+					return false;
+				}
+				if ( alen == 0 ) {
+					return true;
+				}
+				for ( int i = 0; i < alen; i++ ) {
+					if ( abuf[i] != bbuf[i] ) {
+						return false;
+					}
+				}
+			}
+		} finally {
+			Arrays.fill(abuf, (byte) 0);
+			Arrays.fill(bbuf, (byte) 0);
+			as.close();
+			bs.close();
+		}
+	}
+	
+	/** Fills buf unless the stream ends first, returns the bytes read */
+	private static int readChunk(InputStream is, byte[] buf) throws IOException {
+		int pos = 0;
+		while ( pos < buf.length ) {
+			int read = is.read(buf, pos, buf.length - pos);
+			if ( read == -1 ) {
+				break;
+			}
+			pos += read;
+		}
+		return pos;
+	}
+	
+	private static boolean sameDate(PwDate a, PwDate b) {
+		return time(a) == time(b);
+	}
+	
+	/** Seconds, the resolution of the file format */
+	private static long time(PwDate date) {
+		return date == null ? 0 : date.getTime() / 1000;
+	}
+	
+	private static int iconId(PwIconStandard icon) {
+		return icon == null ? -1 : icon.iconId;
+	}
+	
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** The groups and entries of a PwDatabaseV3 as they were when the snapshot
+ * was taken, for readers and saves running on another thread.
+ * 
+ * The snapshot owns its group and entry arrays and never changes them, so
+ * adding, removing or reordering groups and entries in the database does not
+ * affect it. The groups are held in the order they are written to a file, a
+ * depth first walk of the tree with groups outside the tree left out.
+ * 
+ * getGroup() and getEntry() return the records of the database, which keep
+ * changing. getGroupState() and getEntryState() return shallow copies taken
+ * with the snapshot, with the field values of that moment. The values
+ * themselves are shared: strings, dates and stored attachments are never
+ * changed in place, and the password and binary data setters of a copied
+ * entry replace the old array instead of wiping it. Lazily loaded fields are
+ * decoded from the record buffer, so it must not be wiped while the snapshot
+ * is in use.
+ * 
+ * Taking a snapshot copies the records, not their contents. It has to happen
+ * on the thread that modifies the database.
+ */
+public final class PwDatabaseV3Snapshot {
+	
+	private final PwGroupV3[] groups;
+	private final PwEntryV3[] entries;
+	// Copies of the records, the same arrays if they were not copied
+	private final PwGroupV3[] groupStates;
+	private final PwEntryV3[] entryStates;
+	
+	public final String name;
+	public final PwEncryptionAlgorithm algorithm;
+	public final int numKeyEncRounds;
+	
+	PwDatabaseV3Snapshot(PwDatabaseV3 db, boolean copyRecords) {
+		ArrayList<PwGroupV3> groupList = new ArrayList<PwGroupV3>(db.groups.size());
+		List<PwGroupV3> roots = db.getGrpRoots();
+		for ( int i = 0; i < roots.size(); i++ ) {
+			addGroup(roots.get(i), groupList);
+		}
+		
+		groups = groupList.toArray(new PwGroupV3[groupList.size()]);
+		entries = db.entries.toArray(new PwEntryV3[db.entries.size()]);
+		
+		if ( copyRecords ) {
+			groupStates = new PwGroupV3[groups.length];
+			for ( int i = 0; i < groups.length; i++ ) {
+				groupStates[i] = groups[i].copyState();
+			}
+			entryStates = new PwEntryV3[entries.length];
+			for ( int i = 0; i < entries.length; i++ ) {
+				entryStates[i] = entries[i].copyState();
+			}
+		} else {
+			groupStates = groups;
+			entryStates = entries;
+		}
+		
+		name = db.name;
+		algorithm = db.algorithm;
+		numKeyEncRounds = db.numKeyEncRounds;
+	}
+	
+	private static void addGroup(PwGroupV3 group, List<PwGroupV3> groupList) {
+		groupList.add(group);
+		
+		for ( int i = 0; i < group.childGroups.size(); i++ ) {
+			addGroup(group.childGroups.get(i), groupList);
+		}
+	}
+	
+	/** Groups in file order, the list can't be modified */
+	public List<PwGroupV3> getGroups() {
+		return Collections.unmodifiableList(Arrays.asList(groups));
+	}
+	
+	/** The list can't be modified */
+	public List<PwEntryV3> getEntries() {
+		return Collections.unmodifiableList(Arrays.asList(entries));
+	}
+	
+	public int getGroupCount() {
+		return groups.length;
+	}
+	
+	public int getEntryCount() {
+		return entries.length;
+	}
+	
+	public PwGroupV3 getGroup(int index) {
+		return groups[index];
+	}
+	
+	public PwEntryV3 getEntry(int index) {
+		return entries[index];
+	}
+	
+	/** The fields of getGroup(index) when the snapshot was taken. Read only,
+	 * changing the copy does not change the database.
+	 */
+	public PwGroupV3 getGroupState(int index) {
+		return groupStates[index];
+	}
+	
+	/** The fields of getEntry(index) when the snapshot was taken. Read only,
+	 * changing the copy does not change the database.
+	 */
+	public PwEntryV3 getEntryState(int index) {
+		return entryStates[index];
+	}
+
+}
@@ -19,15 +19,17 @@
  */
 package com.keepassdroid.database;
 
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.TimeZone;
 
-import com.keepassdroid.utils.Types;
-
-/** Converting from the C Date format to the Java data format is
- *  expensive when done for every record at once.  I use this class to
- *  allow lazy conversions between the formats.
+/** A date in the packed 5 byte format of the file, the local date and time
+ *  fields down to the second. Immutable, so dates can be shared between
+ *  threads and decoded by parallel loads.
+ *  
+ *  The fields are kept packed in a long and only converted to a point in
+ *  time when it is asked for. The conversion is plain arithmetic on the
+ *  fields and the offset of the time zone, without a Calendar.
  * @author bpellin
  *
  */
@@ -35,142 +37,237 @@ public class PwDate implements Cloneable {
 	
 	private static final int DATE_SIZE = 5; 
 	
-	private boolean cDateBuilt = false;
-	private boolean jDateBuilt = false;
+	// Packed value of a PwDate made from a null Date
+	private static final long NONE = -1;
+	// The Date a PwDate was made from isn't known
+	private static final long UNKNOWN = Long.MIN_VALUE;
+	
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+	
+	// Zone of the local fields. Taken once, like the shared Calendar before.
+	private static volatile TimeZone timeZone = null;
 	
-	private Date jDate;
-	private byte[] cDate;
+	private final long packed;
+	// Exact time this date was made from, UNKNOWN if made from the 5 bytes
+	private final long millis;
 	
 	public PwDate(byte[] buf, int offset) {
-		cDate = new byte[DATE_SIZE];
-		System.arraycopy(buf, offset, cDate, 0, DATE_SIZE);
-		cDateBuilt = true;
+		packed = readPacked(buf, offset);
+		millis = UNKNOWN;
 	}
 	
 	public PwDate(Date date) {
-		jDate = date;
-		jDateBuilt = true;
+		if ( date == null ) {
+			packed = NONE;
+			millis = UNKNOWN;
+		} else {
+			millis = date.getTime();
+			packed = pack(millis, getTimeZone());
+		}
 	}
 	
 	public PwDate(long millis) {
-		jDate = new Date(millis);
-		jDateBuilt = true;
+		this.millis = millis;
+		packed = pack(millis, getTimeZone());
 	}
 	
-	private PwDate() {
-		
+	private PwDate(long packed, long millis) {
+		this.packed = packed;
+		this.millis = millis;
 	}
 	
 	@Override
 	public Object clone() {
-		PwDate copy = new PwDate();
-		
-		if ( cDateBuilt ) {
-			byte[] newC = new byte[DATE_SIZE];
-			System.arraycopy(cDate, 0, newC, 0, DATE_SIZE);
-			copy.cDate = newC;
-			copy.cDateBuilt = true;
+		return new PwDate(packed, millis);
+	}
+
+	/** A new Date for this date, null if it was made from a null Date */
+	public Date getJDate() {
+		if ( packed == NONE ) {
+			return null;
 		}
 		
-		if ( jDateBuilt ) {
-			copy.jDate = (Date) jDate.clone();
-			copy.jDateBuilt = true;
-		}
-			
-		return copy;
+		return new Date(getTime());
 	}
-
-
 	
-	public Date getJDate() {
-		if ( ! jDateBuilt ) {
-			jDate = readTime(cDate, 0, getCalendar());
-			jDateBuilt = true;
+	/** Milliseconds since the epoch, without creating a Date */
+	public long getTime() {
+		if ( packed == NONE ) {
+			throw new NullPointerException("No date");
+		} else if ( millis != UNKNOWN ) {
+			return millis;
 		}
 		
-		return jDate;
+		return unpack(packed, getTimeZone());
 	}
 	
+	/** The 5 bytes of the file format in a new array, null if this was made from a null Date */
 	public byte[] getCDate() {
-		if ( ! cDateBuilt ) {
-			cDate = writeTime(jDate, getCalendar());
-			cDateBuilt = true;
+		if ( packed == NONE ) {
+			return null;
 		}
 		
-		return cDate;
+		byte[] buf = new byte[DATE_SIZE];
+		writePacked(packed, buf, 0);
+		return buf;
 	}
 	
-	private static Calendar calendar = null;
-	private static Calendar getCalendar() {
-		if ( calendar == null ) {
-			calendar = Calendar.getInstance();
+	/** The 5 bytes of the file format as a long, the first byte highest */
+	public long getPacked() {
+		return packed;
+	}
+	
+	private static TimeZone getTimeZone() {
+		TimeZone zone = timeZone;
+		if ( zone == null ) {
+			zone = TimeZone.getDefault();
+			timeZone = zone;
 		}
 		
-		return calendar;
+		return zone;
 	}
 	
+	/** Read the 5 bytes at offset into a long, the first byte highest */
+	public static long readPacked(byte[] buf, int offset) {
+		return ((long) (buf[offset] & 0xFF) << 32)
+				| ((long) (buf[offset + 1] & 0xFF) << 24)
+				| ((buf[offset + 2] & 0xFF) << 16)
+				| ((buf[offset + 3] & 0xFF) << 8)
+				| (buf[offset + 4] & 0xFF);
+	}
+	
+	public static void writePacked(long packed, byte[] buf, int offset) {
+		buf[offset] = (byte) (packed >>> 32);
+		buf[offset + 1] = (byte) (packed >>> 24);
+		buf[offset + 2] = (byte) (packed >>> 16);
+		buf[offset + 3] = (byte) (packed >>> 8);
+		buf[offset + 4] = (byte) packed;
+	}
 	
 	/**
-	 * Unpack date from 5 byte format. The five bytes at 'offset' are unpacked
-	 * to a java.util.Date instance.
+	 * Milliseconds since the epoch of the local date and time in the packed 5
+	 * byte format. Fields out of range carry over like in a lenient Calendar,
+	 * dates before 1583 are taken as Gregorian.
 	 */
-	public static Date readTime(byte[] buf, int offset, Calendar time) {
-		int dw1 = Types.readUByte(buf, offset);
-		int dw2 = Types.readUByte(buf, offset + 1);
-		int dw3 = Types.readUByte(buf, offset + 2);
-		int dw4 = Types.readUByte(buf, offset + 3);
-		int dw5 = Types.readUByte(buf, offset + 4);
-
+	public static long unpack(long packed, TimeZone zone) {
 		// Unpack 5 byte structure to date and time
-		int year = (dw1 << 6) | (dw2 >> 2);
-		int month = ((dw2 & 0x00000003) << 2) | (dw3 >> 6);
-
-		int day = (dw3 >> 1) & 0x0000001F;
-		int hour = ((dw3 & 0x00000001) << 4) | (dw4 >> 4);
-		int minute = ((dw4 & 0x0000000F) << 2) | (dw5 >> 6);
-		int second = dw5 & 0x0000003F;
-
-		if (time == null) {
-			time = Calendar.getInstance();
+		int year = (int) (packed >>> 26) & 0x3FFF;
+		int month = (int) (packed >>> 22) & 0x0F;
+		int day = (int) (packed >>> 17) & 0x1F;
+		int hour = (int) (packed >>> 12) & 0x1F;
+		int minute = (int) (packed >>> 6) & 0x3F;
+		int second = (int) packed & 0x3F;
+		
+		// File format is a 1 based month, carry month 0 and 13 to 15 into the year
+		int monthIndex = month - 1;
+		year += floorDiv(monthIndex, 12);
+		month = monthIndex - floorDiv(monthIndex, 12) * 12 + 1;
+		
+		long local = (daysFromCivil(year, month, 1) + day - 1) * MILLIS_PER_DAY
+				+ (hour * 3600L + minute * 60L + second) * 1000;
+		
+		return localToUtc(local, zone);
+	}
+	
+	/** The local date and time of millis, packed in the 5 byte format. */
+	public static long pack(long millis, TimeZone zone) {
+		long local = millis + zone.getOffset(millis);
+		long days = floorDiv(local, MILLIS_PER_DAY);
+		int secondOfDay = (int) ((local - days * MILLIS_PER_DAY) / 1000);
+		
+		// Civil date of the day count, see daysFromCivil
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		int dayOfEra = (int) (z - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		
+		int hour = secondOfDay / 3600;
+		int minute = secondOfDay / 60 % 60;
+		int second = secondOfDay % 60;
+		
+		return ((year & 0x0FFF) << 26)
+				| ((long) (month & 0x0F) << 22)
+				| ((day & 0x1F) << 17)
+				| ((hour & 0x1F) << 12)
+				| ((minute & 0x3F) << 6)
+				| (second & 0x3F);
+	}
+	
+	/** Days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+	 * Counts in 400 year eras starting March 1st, so the leap day comes last.
+	 */
+	private static long daysFromCivil(long year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = floorDiv(year, 400);
+		int yearOfEra = (int) (year - era * 400);
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+	
+	/** Resolves local times like Calendar does. A time skipped by a daylight
+	 * saving change is moved forward, a time that occurs twice takes the
+	 * earlier one.
+	 */
+	private static long localToUtc(long local, TimeZone zone) {
+		int offset = zone.getOffset(local - zone.getRawOffset());
+		long utc = local - offset;
+		int actual = zone.getOffset(utc);
+		if ( actual == offset ) {
+			return utc;
 		}
-		// File format is a 1 based month, java Calendar uses a zero based month
-		// File format is a 1 based day, java Calendar uses a 1 based day
-		time.set(year, month - 1, day, hour, minute, second);
-
-		return time.getTime();
-
+		
+		long other = local - actual;
+		if ( zone.getOffset(other) == actual ) {
+			return other;
+		}
+		
+		return local - Math.min(offset, actual);
+	}
+	
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ( (x % y != 0) && ((x ^ y) < 0) ) {
+			q--;
+		}
+		return q;
+	}
+	
+	private static int floorDiv(int x, int y) {
+		int q = x / y;
+		if ( (x % y != 0) && ((x ^ y) < 0) ) {
+			q--;
+		}
+		return q;
+	}
+	
+	/**
+	 * Unpack date from 5 byte format. The five bytes at 'offset' are unpacked
+	 * to a java.util.Date instance, in the time zone of time if it is given.
+	 */
+	public static Date readTime(byte[] buf, int offset, Calendar time) {
+		TimeZone zone = time == null ? getTimeZone() : time.getTimeZone();
+		return new Date(unpack(readPacked(buf, offset), zone));
 	}
 
 	public static byte[] writeTime(Date date) {
 		return writeTime(date, null);
 	}
 	
+	/** Pack date to the 5 byte format, in the time zone of cal if it is given. */
 	public static byte[] writeTime(Date date, Calendar cal) {
 		if (date == null) {
 			return null;
 		}
 
-		byte[] buf = new byte[5];
-		if (cal == null) {
-			cal = Calendar.getInstance();
-		}
-		cal.setTime(date);
-
-		int year = cal.get(Calendar.YEAR);
-		// File format is a 1 based month, java Calendar uses a zero based month
-		int month = cal.get(Calendar.MONTH) + 1;
-		int day = cal.get(Calendar.DAY_OF_MONTH);
-		int hour = cal.get(Calendar.HOUR_OF_DAY);
-		int minute = cal.get(Calendar.MINUTE);
-		int second = cal.get(Calendar.SECOND);
-
-		buf[0] = Types.writeUByte(((year >> 6) & 0x0000003F));
-		buf[1] = Types.writeUByte(((year & 0x0000003F) << 2)
-				| ((month >> 2) & 0x00000003));
-		buf[2] = (byte) (((month & 0x00000003) << 6)
-				| ((day & 0x0000001F) << 1) | ((hour >> 4) & 0x00000001));
-		buf[3] = (byte) (((hour & 0x0000000F) << 4) | ((minute >> 2) & 0x0000000F));
-		buf[4] = (byte) (((minute & 0x00000003) << 6) | (second & 0x0000003F));
+		TimeZone zone = cal == null ? getTimeZone() : cal.getTimeZone();
+		byte[] buf = new byte[DATE_SIZE];
+		writePacked(pack(date.getTime(), zone), buf, 0);
 
 		return buf;
 	}
@@ -187,34 +284,18 @@ public class PwDate implements Cloneable {
 			return false;
 		}
 		
-		PwDate date = (PwDate) o;
-		if ( cDateBuilt && date.cDateBuilt ) {
-			return Arrays.equals(cDate, date.cDate);
-		} else if ( jDateBuilt && date.jDateBuilt ) {
-			return IsSameDate(jDate, date.jDate);
-		} else if ( cDateBuilt && date.jDateBuilt ) {
-			return Arrays.equals(date.getCDate(), cDate);
-		} else {
-			return IsSameDate(date.getJDate(), jDate);
-		}
+		return packed == ((PwDate) o).packed;
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (packed ^ (packed >>> 32));
 	}
 
+	/** True if both are the same to the second in local time, as they would be saved */
 	public static boolean IsSameDate(Date d1, Date d2) {
-		Calendar cal1 = Calendar.getInstance();
-		cal1.setTime(d1);
-		cal1.set(Calendar.MILLISECOND, 0);
-	
-		Calendar cal2 = Calendar.getInstance();
-		cal2.setTime(d2);
-		cal2.set(Calendar.MILLISECOND, 0);
-		
-		return (cal1.get(Calendar.YEAR) == cal2.get(Calendar.YEAR)) && 
-		(cal1.get(Calendar.MONTH) == cal2.get(Calendar.MONTH)) &&
-		(cal1.get(Calendar.DAY_OF_MONTH) == cal2.get(Calendar.DAY_OF_MONTH)) &&
-		(cal1.get(Calendar.HOUR) == cal2.get(Calendar.HOUR)) &&
-		(cal1.get(Calendar.MINUTE) == cal2.get(Calendar.MINUTE)) &&
-		(cal1.get(Calendar.SECOND) == cal2.get(Calendar.SECOND));
-	
+		TimeZone zone = getTimeZone();
+		return pack(d1.getTime(), zone) == pack(d2.getTime(), zone);
 	}
 
 }
@@ -43,7 +43,11 @@ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
 package com.keepassdroid.database;
 
 // PhoneID
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Random;
@@ -96,6 +100,7 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 	
 	public void setIcon(PwIconStandard _icon) {
 		icon = _icon;
+		dirty = true;
 	}
 
 	public boolean isTan() {
@@ -120,6 +125,10 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 		
 		if (modified) {
 			setLastModificationTime(now);
+			
+			if (searchIndex != null) {
+				searchIndex.update(this);
+			}
 		}
 		
 		PwGroupV3 parent = getParent();
@@ -130,6 +139,17 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 	
 	public void touchLocation() { }
 	
+	/** True if the entry was changed through its methods since it was last
+	 * encoded for saving. Direct writes to the public fields are not tracked.
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+	
+	public void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+	
 
 
 	public static final Date NEVER_EXPIRE = getNeverExpire();
@@ -166,6 +186,14 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 	/** A string describing what is in pBinaryData */
 	public String           binaryDesc;
 	private byte[]          binaryData;
+	// Set instead of binaryData when a large attachment was spilled to an AttachmentStore
+	private AttachmentStore.Attachment binaryAttachment;
+	
+	// The arrays are also held by a snapshot copy, replace them without wiping
+	private boolean passwordShared;
+	private boolean binaryDataShared;
+	// Entry a snapshot copy was taken from, lazy fields are decoded through it
+	private PwEntryV3 lazySource;
 
 	private static Date getDefaultDate() {
 		Calendar cal = Calendar.getInstance();
@@ -215,6 +243,29 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 	
 	// for tree traversing
 	public PwGroupV3 parent = null;
+	
+	private boolean dirty = true;
+	
+	// Database whose entry index holds this entry, told about uuid changes
+	PwDatabaseV3 indexedBy;
+	
+	// Index this entry is in, told about changes by touch() and the text setters
+	EntrySearchIndex searchIndex;
+	
+	// Fields which are still encoded in a record buffer, see setLazyField().
+	// The lazy state and the fields it covers only change while holding the
+	// entry's lock, so a snapshot reader decoding a field can't race an edit.
+	private static final int LAZY_TITLE = 0;
+	private static final int LAZY_URL = 1;
+	private static final int LAZY_USERNAME = 2;
+	private static final int LAZY_ADDITIONAL = 3;
+	private static final int LAZY_BINARY_DESC = 4;
+	private static final int LAZY_BINARY_DATA = 5;
+	private static final int LAZY_FIELDS = 6;
+	
+	private PwRecordBuffer lazyBuffer;
+	private int[] lazyOffsets;
+	private int lazyBinaryLength;
 
 
 	public PwEntryV3() {
@@ -282,11 +333,15 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 	/** Securely erase old password before copying new. */
 	public void setPassword( byte[] buf, int offset, int len ) {
 		if( password != null ) {
-			fill( password, (byte)0 );
+			if ( !passwordShared ) {
+				fill( password, (byte)0 );
+			}
 			password = null;
 		}
+		passwordShared = false;
 		password = new byte[len];
 		System.arraycopy( buf, offset, password, 0, len );
+		dirty = true;
 	}
 
 
@@ -304,10 +359,227 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 	}
 
 	/**
-	 * @return the actual binaryData byte array.
+	 * @return the actual binaryData byte array. For an attachment kept in an
+	 * AttachmentStore this is a fresh copy, prefer getBinaryStream() for those.
 	 */
 	public byte[] getBinaryData() {
-		return binaryData;
+		if (binaryAttachment != null) {
+			try {
+				return binaryAttachment.getBytes();
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to read attachment: " + e.getMessage());
+			}
+		}
+		
+		synchronized (this) {
+			if (binaryData == null && isLazy(LAZY_BINARY_DATA)) {
+				Object shared = lazySource != null ? lazySource.decodeForCopy(LAZY_BINARY_DATA, lazyOffsets[LAZY_BINARY_DATA]) : null;
+				if (shared != null) {
+					binaryData = (byte[]) shared;
+					binaryDataShared = true;
+				} else {
+					binaryData = lazyBuffer.readBytes(lazyOffsets[LAZY_BINARY_DATA], lazyBinaryLength);
+				}
+				clearLazy(LAZY_BINARY_DATA);
+			}
+			
+			return binaryData;
+		}
+	}
+	
+	/** Length of the binary data without reading it, -1 if there is none */
+	public synchronized int getBinaryLength() {
+		if (binaryAttachment != null) {
+			return binaryAttachment.length();
+		}
+		
+		if (binaryData == null && isLazy(LAZY_BINARY_DATA)) {
+			return lazyBinaryLength;
+		}
+		
+		return binaryData == null ? -1 : binaryData.length;
+	}
+	
+	/** @return a stream over the binary data, or null if there is none */
+	public InputStream getBinaryStream() throws IOException {
+		if (binaryAttachment != null) {
+			return binaryAttachment.openStream();
+		}
+		
+		byte[] data = getBinaryData();
+		return data == null ? null : new ByteArrayInputStream(data);
+	}
+	
+	/** @return the store attachment holding the binary data, or null if it is in memory */
+	public AttachmentStore.Attachment getBinaryAttachment() {
+		return binaryAttachment;
+	}
+	
+	public String getBinaryDesc() {
+		String desc = binaryDesc;
+		if (desc == null) {
+			desc = decodeLazyString(LAZY_BINARY_DESC);
+		}
+		
+		return desc;
+	}
+	
+	/**
+	 * Leave a string or binary field encoded in the record buffer until it is
+	 * first read through its getter. Used by ImporterV3 when loading lazily.
+	 * Direct reads of the public fields see null until the field was decoded.
+	 */
+	public synchronized void setLazyField(PwRecordBuffer buffer, int fieldType, int offset, int fieldSize) {
+		int field;
+		switch (fieldType) {
+		case 0x0004:
+			field = LAZY_TITLE;
+			title = null;
+			break;
+		case 0x0005:
+			field = LAZY_URL;
+			url = null;
+			break;
+		case 0x0006:
+			field = LAZY_USERNAME;
+			username = null;
+			break;
+		case 0x0008:
+			field = LAZY_ADDITIONAL;
+			additional = null;
+			break;
+		case 0x000D:
+			field = LAZY_BINARY_DESC;
+			binaryDesc = null;
+			break;
+		case 0x000E:
+			field = LAZY_BINARY_DATA;
+			binaryData = null;
+			binaryAttachment = null;
+			lazyBinaryLength = fieldSize;
+			break;
+		default:
+			throw new IllegalArgumentException("Field type can't be loaded lazily: " + fieldType);
+		}
+		
+		if (lazyOffsets == null) {
+			lazyOffsets = new int[LAZY_FIELDS];
+			Arrays.fill(lazyOffsets, -1);
+		}
+		lazyBuffer = buffer;
+		lazyOffsets[field] = offset;
+	}
+	
+	private boolean isLazy(int field) {
+		return lazyOffsets != null && lazyOffsets[field] >= 0;
+	}
+	
+	private void clearLazy(int field) {
+		if (lazyOffsets == null) {
+			return;
+		}
+		
+		lazyOffsets[field] = -1;
+		for (int i = 0; i < LAZY_FIELDS; i++) {
+			if (lazyOffsets[i] >= 0) {
+				return;
+			}
+		}
+		
+		// Everything is decoded, drop the reference to the shared buffer
+		lazyOffsets = null;
+		lazyBuffer = null;
+		lazySource = null;
+	}
+	
+	/**
+	 * Decode a lazy string field and store it, unless a setter or another
+	 * reader got there first.
+	 * @return the field's current value
+	 */
+	private synchronized String decodeLazyString(int field) {
+		String value = lazyString(field);
+		if (value != null || !isLazy(field)) {
+			return value;
+		}
+		
+		if (lazySource != null) {
+			value = (String) lazySource.decodeForCopy(field, lazyOffsets[field]);
+		}
+		if (value == null) {
+			value = lazyBuffer.readString(lazyOffsets[field]);
+		}
+		switch (field) {
+		case LAZY_TITLE:
+			title = value;
+			break;
+		case LAZY_URL:
+			url = value;
+			break;
+		case LAZY_USERNAME:
+			username = value;
+			break;
+		case LAZY_ADDITIONAL:
+			additional = value;
+			break;
+		case LAZY_BINARY_DESC:
+			binaryDesc = value;
+			break;
+		default:
+			throw new IllegalArgumentException("Not a string field: " + field);
+		}
+		clearLazy(field);
+		return value;
+	}
+	
+	/** Decodes a field for a snapshot copy if it is still unread here, so the
+	 * copy and this entry end up with the same value objects. Returns null if
+	 * the field has been decoded or set since the copy was taken.
+	 */
+	private synchronized Object decodeForCopy(int field, int offset) {
+		if (!isLazy(field) || lazyOffsets[field] != offset) {
+			return null;
+		}
+		
+		if (field == LAZY_BINARY_DATA) {
+			binaryData = lazyBuffer.readBytes(offset, lazyBinaryLength);
+			binaryDataShared = true;
+			clearLazy(LAZY_BINARY_DATA);
+			return binaryData;
+		}
+		
+		return decodeLazyString(field);
+	}
+	
+	private String lazyString(int field) {
+		switch (field) {
+		case LAZY_TITLE:
+			return title;
+		case LAZY_URL:
+			return url;
+		case LAZY_USERNAME:
+			return username;
+		case LAZY_ADDITIONAL:
+			return additional;
+		case LAZY_BINARY_DESC:
+			return binaryDesc;
+		default:
+			throw new IllegalArgumentException("Not a string field: " + field);
+		}
+	}
+	
+	/** Decode every field still held in the record buffer */
+	public synchronized void decodeLazyFields() {
+		if (lazyOffsets == null) {
+			return;
+		}
+		
+		decodeLazyString(LAZY_TITLE);
+		decodeLazyString(LAZY_URL);
+		decodeLazyString(LAZY_USERNAME);
+		decodeLazyString(LAZY_ADDITIONAL);
+		decodeLazyString(LAZY_BINARY_DESC);
+		getBinaryData();
 	}
 
 
@@ -315,22 +587,84 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 	/** Securely erase old data before copying new. */
 	public void setBinaryData( byte[] buf, int offset, int len ) {
 		if( binaryData != null ) {
-			fill( binaryData, (byte)0 );
+			if ( !binaryDataShared ) {
+				fill( binaryData, (byte)0 );
+			}
+			binaryData = null;
+		}
+		binaryDataShared = false;
+		byte[] data = new byte[len];
+		System.arraycopy( buf, offset, data, 0, len );
+		synchronized (this) {
+			binaryData = data;
+			binaryAttachment = null;
+			clearLazy(LAZY_BINARY_DATA);
+		}
+		dirty = true;
+	}
+	
+	/** Like setBinaryData(byte[], int, int), but moves large data into the store */
+	public void setBinaryData( byte[] buf, int offset, int len, AttachmentStore store ) throws IOException {
+		if ( store == null || !store.shouldStore(len) ) {
+			setBinaryData(buf, offset, len);
+			return;
+		}
+		
+		setBinaryAttachment(store.store(buf, offset, len));
+	}
+	
+	/** Like setBinaryData(byte[], int, int, AttachmentStore), but reads len bytes
+	 * from is. Data moved into the store is copied in chunks and never held in
+	 * memory as a whole.
+	 */
+	public void setBinaryData( InputStream is, int len, AttachmentStore store ) throws IOException {
+		if ( store == null || !store.shouldStore(len) ) {
+			byte[] data = new byte[len];
+			try {
+				int pos = 0;
+				while ( pos < len ) {
+					int read = is.read(data, pos, len - pos);
+					if ( read == -1 ) {
+						throw new IOException("Binary data truncated");
+					}
+					pos += read;
+				}
+				setBinaryData(data, 0, len);
+			} finally {
+				fill( data, (byte)0 );
+			}
+			return;
+		}
+		
+		setBinaryAttachment(store.store(is, len));
+	}
+	
+	private void setBinaryAttachment( AttachmentStore.Attachment attachment ) {
+		if( binaryData != null ) {
+			if ( !binaryDataShared ) {
+				fill( binaryData, (byte)0 );
+			}
 			binaryData = null;
 		}
-		binaryData = new byte[len];
-		System.arraycopy( buf, offset, binaryData, 0, len );
+		binaryDataShared = false;
+		synchronized (this) {
+			binaryAttachment = attachment;
+			clearLazy(LAZY_BINARY_DATA);
+		}
+		dirty = true;
 	}
 
 	// Determine if this is a MetaStream entry
 	public boolean isMetaStream() {
-		if ( binaryData == null ) return false;
-		if ( additional == null || additional.length() == 0 ) return false;
-		if ( ! binaryDesc.equals(PMS_ID_BINDESC) ) return false;
+		if ( getBinaryLength() < 0 ) return false;
+		String notes = getNotes();
+		if ( notes == null || notes.length() == 0 ) return false;
+		if ( ! getBinaryDesc().equals(PMS_ID_BINDESC) ) return false;
+		String title = getTitle();
 		if ( title == null ) return false;
 		if ( ! title.equals(PMS_ID_TITLE) ) return false;
-		if ( username == null ) return false;
-		if ( ! username.equals(PMS_ID_USER) ) return false;
+		if ( ! getUsername().equals(PMS_ID_USER) ) return false;
+		String url = getUrl();
 		if ( url == null ) return false;
 		if ( ! url.equals(PMS_ID_URL)) return false;
 		if ( !icon.isMetaStreamIcon() ) return false;
@@ -340,6 +674,43 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 
 	
 
+	/** Shallow copy of the fields written to a file, see PwDatabaseV3Snapshot.
+	 * Fields still in the record buffer stay lazy in the copy.
+	 */
+	synchronized PwEntryV3 copyState() {
+		PwEntryV3 copy = new PwEntryV3();
+		copy.parent = parent;
+		copy.icon = icon;
+		copy.groupId = groupId;
+		copy.uuid = uuid;
+		copy.username = username;
+		copy.title = title;
+		copy.url = url;
+		copy.additional = additional;
+		copy.tCreation = tCreation;
+		copy.tLastMod = tLastMod;
+		copy.tLastAccess = tLastAccess;
+		copy.tExpire = tExpire;
+		copy.binaryDesc = binaryDesc;
+		copy.binaryAttachment = binaryAttachment;
+		
+		copy.password = password;
+		copy.binaryData = binaryData;
+		passwordShared = password != null;
+		binaryDataShared = binaryData != null;
+		copy.passwordShared = passwordShared;
+		copy.binaryDataShared = binaryDataShared;
+		
+		if (lazyOffsets != null) {
+			copy.lazyBuffer = lazyBuffer;
+			copy.lazyOffsets = lazyOffsets.clone();
+			copy.lazyBinaryLength = lazyBinaryLength;
+			copy.lazySource = this;
+		}
+		
+		return copy;
+	}
+
 	private void assign(PwEntryV3 source) {
 		title = source.title;
 		url = source.url;
@@ -364,6 +735,7 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 			binaryData = new byte[descLen]; 
 			System.arraycopy(source.binaryData, 0, binaryData, 0, descLen);
 		}
+		binaryAttachment = source.binaryAttachment;
 
 		parent = source.parent;
 
@@ -384,8 +756,11 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 		newEntry.tLastAccess = (PwDate) tLastAccess.clone();
 		newEntry.tExpire = (PwDate) tExpire.clone();
 		
-		newEntry.binaryDesc = binaryDesc;
+		newEntry.binaryDesc = getBinaryDesc();
 
+		// Stored attachments are never modified, so the clone can share it
+		newEntry.binaryAttachment = binaryAttachment;
+		byte[] binaryData = binaryAttachment == null ? getBinaryData() : null;
 		if ( binaryData != null ) {
 			int descLen = binaryData.length;
 			newEntry.binaryData = new byte[descLen]; 
@@ -416,27 +791,29 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 
 	public void setCreationTime(Date create) {
 		tCreation = new PwDate(create);
-		
+		dirty = true;
 	}
 
 	public void setLastModificationTime(Date mod) {
 		tLastMod = new PwDate(mod);
-		
+		dirty = true;
 	}
 
 	public void setLastAccessTime(Date access) {
 		tLastAccess = new PwDate(access);
-		
+		dirty = true;
 	}
 
 	public void setExpires(boolean expires) {
 		if (!expires) {
 			tExpire = PW_NEVER_EXPIRE;
+			dirty = true;
 		}
 	}
 
 	public void setExpiryTime(Date expires) {
 		tExpire = new PwDate(expires);
+		dirty = true;
 	}
 
 	public PwGroupV3 getParent() {
@@ -448,55 +825,108 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 	}
 
 	public void setUUID(UUID u) {
+		byte[] oldUuid = uuid;
 		uuid = Types.UUIDtoBytes(u);
+		dirty = true;
+		
+		if (indexedBy != null) {
+			indexedBy.entryUuidChanged(this, oldUuid);
+		}
 	}
 
 	public String getUsername() {
-		if (username == null) {
+		String value = username;
+		if (value == null) {
+			value = decodeLazyString(LAZY_USERNAME);
+		}
+		
+		if (value == null) {
 			return "";
 		}
 		
-		return username;
+		return value;
 	}
 
 	public void setUsername(String user, PwDatabaseV3 db) {
-		username = user;
+		synchronized (this) {
+			username = user;
+			clearLazy(LAZY_USERNAME);
+		}
+		dirty = true;
+		searchTextChanged();
 	}
 
 	public String getTitle() {
-		return title;
+		String value = title;
+		if (value == null) {
+			value = decodeLazyString(LAZY_TITLE);
+		}
+		
+		return value;
 	}
 
 	public void setTitle(String title, PwDatabaseV3 db) {
-		this.title = title;
+		synchronized (this) {
+			this.title = title;
+			clearLazy(LAZY_TITLE);
+		}
+		dirty = true;
+		searchTextChanged();
 	}
 
 	public String getNotes() {
-		return additional;
+		String value = additional;
+		if (value == null) {
+			value = decodeLazyString(LAZY_ADDITIONAL);
+		}
+		
+		return value;
 	}
 
 	public void setNotes(String notes, PwDatabaseV3 db) {
-		additional = notes;
+		synchronized (this) {
+			additional = notes;
+			clearLazy(LAZY_ADDITIONAL);
+		}
+		dirty = true;
+		searchTextChanged();
 	}
 
 	public String getUrl() {
-		return url;
+		String value = url;
+		if (value == null) {
+			value = decodeLazyString(LAZY_URL);
+		}
+		
+		return value;
 	}
 
 	public void setUrl(String url, PwDatabaseV3 db) {
-		this.url = url;
+		synchronized (this) {
+			this.url = url;
+			clearLazy(LAZY_URL);
+		}
+		dirty = true;
+		searchTextChanged();
+	}
+
+	private void searchTextChanged() {
+		EntrySearchIndex index = searchIndex;
+		if (index != null) {
+			index.invalidate(this);
+		}
 	}
 
 	public boolean expires() {
 		return ! IsNever(tExpire.getJDate());
 	}
 	
-	public void populateBlankFields(PwDatabaseV3 db) {
+	public synchronized void populateBlankFields(PwDatabaseV3 db) {
 		if (icon == null) {
 			icon = db.iconFactory.getIcon(1);
 		}
 		
-		if (username == null) {
+		if (username == null && !isLazy(LAZY_USERNAME)) {
 			username = "";
 		}
 		
@@ -508,15 +938,15 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 			uuid = Types.UUIDtoBytes(UUID.randomUUID());
 		}
 		
-		if (title == null) {
+		if (title == null && !isLazy(LAZY_TITLE)) {
 			title = "";
 		}
 		
-		if (url == null) {
+		if (url == null && !isLazy(LAZY_URL)) {
 			url = "";
 		}
 		
-		if (additional == null) {
+		if (additional == null && !isLazy(LAZY_ADDITIONAL)) {
 			additional = "";
 		}
 		
@@ -536,13 +966,15 @@ protected static final String PMS_TAN_ENTRY = "<TAN>";
 			tExpire = PW_NEVER_EXPIRE;
 		}
 		
-		if (binaryDesc == null) {
+		if (binaryDesc == null && !isLazy(LAZY_BINARY_DESC)) {
 			binaryDesc = "";
 		}
 		
-		if (binaryData == null) {
+		if (binaryData == null && binaryAttachment == null && !isLazy(LAZY_BINARY_DATA)) {
 			binaryData = new byte[0];
 		}
+		
+		dirty = true;
 	}
 
 	public void setParent(PwGroupV3 parent) {
@@ -69,11 +69,13 @@ public class PwGroupV3 {
 	}
 	public void setIcon(PwIconStandard _icon) {
 		icon = _icon;
+		dirty = true;
 	}
 
 	public void super_initNewGroup(String nm, PwGroupIdV3 newId) {
 		setId(newId);
 		name = nm;
+		dirty = true;
 	}
 
 	public boolean isContainedIn(PwGroupV3 container) {
@@ -127,6 +129,39 @@ public class PwGroupV3 {
 
 	/** Used by KeePass internally, don't use */
 	public int flags;
+	
+	private boolean dirty = true;
+	
+	// Database whose group index holds this group, told about id changes
+	PwDatabaseV3 indexedBy;
+	
+	/** True if the group was changed through its methods since it was last
+	 * encoded for saving. Direct writes to the public fields are not tracked.
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+	
+	public void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+
+	/** Shallow copy of the fields written to a file, see PwDatabaseV3Snapshot */
+	PwGroupV3 copyState() {
+		PwGroupV3 copy = new PwGroupV3();
+		copy.parent = parent;
+		copy.groupId = groupId;
+		copy.name = name;
+		copy.icon = icon;
+		copy.tCreation = tCreation;
+		copy.tLastMod = tLastMod;
+		copy.tLastAccess = tLastAccess;
+		copy.tExpire = tExpire;
+		copy.level = level;
+		copy.flags = flags;
+		
+		return copy;
+	}
 
 	public void setGroups(ArrayList<PwGroupV3> groups) {
 		childGroups = groups;
@@ -142,7 +177,13 @@ public class PwGroupV3 {
 
 	public void setId(PwGroupIdV3 id) {
 		PwGroupIdV3 id3 = (PwGroupIdV3) id;
+		int oldId = groupId;
 		groupId = id3.getId();
+		dirty = true;
+		
+		if (indexedBy != null && oldId != groupId) {
+			indexedBy.groupIdChanged(this, oldId);
+		}
 	}
 
 	public String getName() {
@@ -150,6 +191,7 @@ public class PwGroupV3 {
 	}
 	public void setName(String n) {
 		name = n;
+		dirty = true;
 	}
 
 
@@ -160,7 +202,7 @@ public class PwGroupV3 {
 	public void setParent(PwGroupV3 prt) {
 		parent = (PwGroupV3) prt;
 		level = parent.level + 1;
-
+		dirty = true;
 	}
 
 	public void initNewGroup(String nm, PwGroupIdV3 newId) {
@@ -171,7 +213,7 @@ public class PwGroupV3 {
 		tLastAccess = new PwDate(now);
 		tLastMod = new PwDate(now);
 		tExpire = new PwDate(PwGroupV3.NEVER_EXPIRE);
-
+		dirty = true;
 	}
 
 	public void populateBlankFields(PwDatabaseV3 db) {
@@ -198,14 +240,18 @@ public class PwGroupV3 {
 		if (tExpire == null) {
 			tExpire = PwEntryV3.DEFAULT_PWDATE;
 		}
+		
+		dirty = true;
 	}
 
 	public void setLastAccessTime(Date date) {
 		tLastAccess = new PwDate(date);
+		dirty = true;
 	}
 
 	public void setLastModificationTime(Date date) {
 		tLastMod = new PwDate(date);
+		dirty = true;
 	}
 
 }
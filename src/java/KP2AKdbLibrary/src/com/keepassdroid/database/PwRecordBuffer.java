@@ -0,0 +1,72 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import com.keepassdroid.utils.Types;
+
+/** Decrypted database contents shared by lazily loaded entries, which decode
+ * their fields from it on first access. Wiping the buffer zeroes the
+ * plaintext, fields which were not decoded before can't be read afterwards.
+ */
+public class PwRecordBuffer {
+	
+	private byte[] mData;
+	
+	public PwRecordBuffer(byte[] data) {
+		mData = data;
+	}
+	
+	public synchronized String readString(int offset) {
+		checkValid();
+		
+		try {
+			return Types.readCString(mData, offset);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported");
+		}
+	}
+	
+	public synchronized byte[] readBytes(int offset, int length) {
+		checkValid();
+		
+		byte[] result = new byte[length];
+		System.arraycopy(mData, offset, result, 0, length);
+		return result;
+	}
+	
+	public synchronized boolean isWiped() {
+		return mData == null;
+	}
+	
+	public synchronized void wipe() {
+		if ( mData != null ) {
+			Arrays.fill(mData, (byte) 0);
+			mData = null;
+		}
+	}
+	
+	private void checkValid() {
+		if ( mData == null ) {
+			throw new IllegalStateException("Record buffer was wiped");
+		}
+	}
+
+}
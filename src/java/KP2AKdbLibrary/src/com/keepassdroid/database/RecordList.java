@@ -0,0 +1,53 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/** The group and entry lists of a PwDatabaseV3. Counts every change,
+ * including replacing an element in place, so the lookup indexes can tell
+ * when the list was changed directly.
+ */
+class RecordList<T> extends ArrayList<T> {
+	
+	private static final long serialVersionUID = -2754382017420376521L;
+	
+	// ArrayList does not count set() in modCount
+	private int sets = 0;
+	
+	RecordList() {
+		super();
+	}
+	
+	RecordList(Collection<? extends T> records) {
+		super(records);
+	}
+	
+	@Override
+	public T set(int index, T element) {
+		sets++;
+		return super.set(index, element);
+	}
+	
+	/** Changes whenever the list changes */
+	int changeCount() {
+		return modCount + sets;
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Collects the stages logged while loading or saving a database, to be
+ * logged or shown by the app. Pass the same instance to several loads or
+ * saves to add up their stages, or clear() it in between.
+ */
+public class StageMetrics implements IStageTimeLogger {
+	
+	public static final class Stage {
+		public final String name;
+		public final long startNanos;
+		public final long endNanos;
+		public final long bytes;
+		
+		Stage(String name, long startNanos, long endNanos, long bytes) {
+			this.name = name;
+			this.startNanos = startNanos;
+			this.endNanos = endNanos;
+			this.bytes = bytes;
+		}
+		
+		public long getDurationNanos() {
+			return endNanos - startNanos;
+		}
+	}
+	
+	private final List<Stage> mStages = new ArrayList<Stage>();
+
+	public synchronized void logStage(String stage, long startNanos, long endNanos, long bytes) {
+		mStages.add(new Stage(stage, startNanos, endNanos, bytes));
+	}
+	
+	/** The stages in the order they were logged */
+	public synchronized List<Stage> getStages() {
+		return Collections.unmodifiableList(new ArrayList<Stage>(mStages));
+	}
+	
+	/** Total time of the stage in nanoseconds, -1 if it wasn't logged */
+	public synchronized long getNanos(String stage) {
+		long nanos = -1;
+		for ( int i = 0; i < mStages.size(); i++ ) {
+			Stage s = mStages.get(i);
+			if ( s.name.equals(stage) ) {
+				nanos = Math.max(nanos, 0) + s.getDurationNanos();
+			}
+		}
+		
+		return nanos;
+	}
+	
+	/** Total bytes of the stage, -1 if it wasn't logged with a byte count */
+	public synchronized long getBytes(String stage) {
+		long bytes = -1;
+		for ( int i = 0; i < mStages.size(); i++ ) {
+			Stage s = mStages.get(i);
+			if ( s.name.equals(stage) && s.bytes >= 0 ) {
+				bytes = Math.max(bytes, 0) + s.bytes;
+			}
+		}
+		
+		return bytes;
+	}
+	
+	public synchronized void clear() {
+		mStages.clear();
+	}
+	
+	/** One line per stage with its time in milliseconds and its bytes */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for ( int i = 0; i < mStages.size(); i++ ) {
+			Stage s = mStages.get(i);
+			if ( i > 0 ) {
+				sb.append('\n');
+			}
+			
+			long micros = s.getDurationNanos() / 1000;
+			sb.append(s.name).append(": ").append(micros / 1000).append('.');
+			long fraction = micros % 1000;
+			if ( fraction < 100 ) {
+				sb.append(fraction < 10 ? "00" : "0");
+			}
+			sb.append(fraction).append(" ms");
+			if ( s.bytes >= 0 ) {
+				sb.append(", ").append(s.bytes).append(" bytes");
+			}
+		}
+		
+		return sb.toString();
+	}
+
+}
@@ -46,15 +46,26 @@ Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
 package com.keepassdroid.database.load;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
 import java.security.DigestOutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -68,6 +79,8 @@ import android.util.Log;
 
 import com.keepassdroid.UpdateStatus;
 import com.keepassdroid.crypto.CipherFactory;
+import com.keepassdroid.database.AttachmentStore;
+import com.keepassdroid.database.IStageTimeLogger;
 import com.keepassdroid.database.PwDatabaseV3;
 import com.keepassdroid.database.PwDate;
 import com.keepassdroid.database.PwDbHeader;
@@ -75,12 +88,15 @@ import com.keepassdroid.database.PwDbHeaderV3;
 import com.keepassdroid.database.PwEncryptionAlgorithm;
 import com.keepassdroid.database.PwEntryV3;
 import com.keepassdroid.database.PwGroupV3;
+import com.keepassdroid.database.PwRecordBuffer;
 import com.keepassdroid.database.exception.InvalidAlgorithmException;
 import com.keepassdroid.database.exception.InvalidDBException;
 import com.keepassdroid.database.exception.InvalidDBSignatureException;
 import com.keepassdroid.database.exception.InvalidDBVersionException;
 import com.keepassdroid.database.exception.InvalidKeyFileException;
 import com.keepassdroid.database.exception.InvalidPasswordException;
+import com.keepassdroid.stream.BetterCipherInputStream;
+import com.keepassdroid.stream.CountInputStream;
 import com.keepassdroid.stream.LEDataInputStream;
 import com.keepassdroid.stream.LEDataOutputStream;
 import com.keepassdroid.stream.NullOutputStream;
@@ -93,10 +109,70 @@ import com.keepassdroid.utils.Types;
  * @author Bill Zwicky <wrzwicky@pobox.com>
  */
 public class ImporterV3  {
+	
+	public static final String STAGE_READ = IStageTimeLogger.STAGE_READ;
+	public static final String STAGE_KEY_TRANSFORM = IStageTimeLogger.STAGE_KEY_TRANSFORM;
+	public static final String STAGE_DECRYPT = IStageTimeLogger.STAGE_DECRYPT;
+	public static final String STAGE_HASH = IStageTimeLogger.STAGE_HASH;
+	public static final String STAGE_PARSE = IStageTimeLogger.STAGE_PARSE;
+	public static final String STAGE_TREE = IStageTimeLogger.STAGE_TREE;
+	public static final String STAGE_TOTAL = IStageTimeLogger.STAGE_TOTAL;
+	
+	private static final int DECRYPT_BLOCK_SIZE = 64 * 1024;
+	// AES and Twofish both use 128 bit blocks
+	private static final int CIPHER_BLOCK_SIZE = 16;
 
+	private boolean mLazyEntries = false;
+	private boolean mQuickPasswordCheck = true;
+	private AttachmentStore mAttachmentStore;
+	private IStageTimeLogger mStageTimeLogger;
+	
 	public ImporterV3() {
 		super();
 	}
+	
+	/**
+	 * Leave the string and binary fields of entries encoded in the decrypted
+	 * file buffer until they are first read through the getters of PwEntryV3.
+	 * Only used by openDatabase, the buffer is kept by the database and must
+	 * be wiped with PwDatabaseV3.wipeRecordBuffer() on lock.
+	 */
+	public void setLazyEntries(boolean lazy) {
+		mLazyEntries = lazy;
+	}
+	
+	/**
+	 * Move large entry attachments into the store instead of keeping them on
+	 * the heap. Ignored for fields left in the buffer by setLazyEntries(true).
+	 * The store is set on the loaded database, wipe it on lock.
+	 */
+	public void setAttachmentStore(AttachmentStore store) {
+		mAttachmentStore = store;
+	}
+
+	/**
+	 * Decrypt only the last block of the payload after the key transform and
+	 * reject the key straight away if its padding is wrong, instead of after
+	 * decrypting the whole file. On by default. openDatabaseStreaming can only
+	 * do this when it is given a FileInputStream.
+	 */
+	public void setQuickPasswordCheck(boolean quick) {
+		mQuickPasswordCheck = quick;
+	}
+	
+	/**
+	 * Log the time and bytes of each stage of the following loads, e.g. to a
+	 * StageMetrics. openDatabasePipelined uses its own logger if it is given one.
+	 */
+	public void setStageTimeLogger(IStageTimeLogger logger) {
+		mStageTimeLogger = logger;
+	}
+	
+	private void logStage(String stage, long startNanos, long endNanos, long bytes) {
+		if ( mStageTimeLogger != null ) {
+			mStageTimeLogger.logStage(stage, startNanos, endNanos, bytes);
+		}
+	}
 
 	protected PwDatabaseV3 createDB() {
 		return new PwDatabaseV3();
@@ -134,6 +210,7 @@ public class ImporterV3  {
 	{
 		PwDatabaseV3        newManager;
 
+		long startTotal = System.nanoTime();
 
 		// Load entire file, most of it's encrypted.
 		
@@ -159,83 +236,140 @@ public class ImporterV3  {
 		inStream.close();
 		
 		byte[] filebuf = buffer.toByteArray();
+		logStage(STAGE_READ, startTotal, System.nanoTime(), fileSize);
 
 		// Parse header (unencrypted)
 		if( fileSize < PwDbHeaderV3.BUF_SIZE )
 			throw new IOException( "File too short for header: "+fileSize+"<"+PwDbHeaderV3.BUF_SIZE  );
-		PwDbHeaderV3 hdr = new PwDbHeaderV3();
-		hdr.loadFromFile(filebuf, 0 );
+		PwDbHeaderV3 hdr = readHeader(filebuf);
 
-		if( (hdr.signature1 != PwDbHeader.PWM_DBSIG_1) || (hdr.signature2 != PwDbHeaderV3.DBSIG_2) ) {
-			throw new InvalidDBSignatureException();
-		}
+		newManager = initDatabase(hdr, password, keyfileStream, status);
 
-		if( !hdr.matchesVersion() ) {
-			throw new InvalidDBVersionException();
-		}
+		checkFinalBlock(newManager, hdr, filebuf, PwDbHeaderV3.BUF_SIZE, fileSize - PwDbHeaderV3.BUF_SIZE);
 
-		newManager = createDB();
-		newManager.setMasterKey( password, keyfileStream );
+		Cipher cipher = createCipher(newManager, hdr);
 
-		// Select algorithm
-		if( (hdr.flags & PwDbHeaderV3.FLAG_RIJNDAEL) != 0 ) {
-			newManager.algorithm = PwEncryptionAlgorithm.Rjindal;
-		} else if( (hdr.flags & PwDbHeaderV3.FLAG_TWOFISH) != 0 ) {
-			newManager.algorithm = PwEncryptionAlgorithm.Twofish;
-		} else {
-			throw new InvalidAlgorithmException();
+		// Decrypt! The first bytes aren't encrypted (that's the header)
+		long startDecrypt = System.nanoTime();
+		int encryptedPartSize;
+		try {
+			encryptedPartSize = cipher.doFinal(filebuf, PwDbHeaderV3.BUF_SIZE, fileSize - PwDbHeaderV3.BUF_SIZE, filebuf, PwDbHeaderV3.BUF_SIZE );
+		} catch (ShortBufferException e1) {
+			throw new IOException("Buffer too short");
+		} catch (IllegalBlockSizeException e1) {
+			throw new IOException("Invalid block size");
+		} catch (BadPaddingException e1) {
+			throw new InvalidPasswordException("Invalid key!");
 		}
+		logStage(STAGE_DECRYPT, startDecrypt, System.nanoTime(), fileSize - PwDbHeaderV3.BUF_SIZE);
 
-		// Copy for testing
-		newManager.copyHeader(hdr);
+		readPayload(newManager, hdr, filebuf, PwDbHeaderV3.BUF_SIZE, encryptedPartSize);
 		
-		newManager.numKeyEncRounds = hdr.numKeyEncRounds;
-
-		newManager.name = "KeePass Password Manager";
-
-		// Generate transformedMasterKey from masterKey
-		newManager.makeFinalKey(hdr.masterSeed, hdr.transformSeed, newManager.numKeyEncRounds);
-
-		// Initialize Rijndael algorithm
-		Cipher cipher;
-		try {
-			if ( newManager.algorithm == PwEncryptionAlgorithm.Rjindal ) {
-				cipher = CipherFactory.getInstance("AES/CBC/PKCS5Padding");
-			} else if ( newManager.algorithm == PwEncryptionAlgorithm.Twofish ) {
-				cipher = CipherFactory.getInstance("TWOFISH/CBC/PKCS7PADDING");
-			} else {
-				throw new IOException( "Encryption algorithm is not supported" );
-			}
+		logStage(STAGE_TOTAL, startTotal, System.nanoTime(), fileSize);
+		
+		return newManager;
+	}
 
-		} catch (NoSuchAlgorithmException e1) {
-			throw new IOException("No such algorithm");
-		} catch (NoSuchPaddingException e1) {
-			throw new IOException("No such pdading");
+	/**
+	 * Load a v3 database file through its channel. The payload is decrypted
+	 * out of a read-only mapping of the file into a single plaintext buffer
+	 * sized from the file length, instead of buffering the whole file first.
+	 * The file is paged in while it is decrypted, so no read stage is logged.
+	 * 
+	 * @param channel Channel of the database file. Read from without moving its
+	 *   position and left open.
+	 * @param password Pass phrase for the database.
+	 * @param keyfileStream Stream of the key file, may be null.
+	 * @param status Progress reporting.
+	 * @return new PwDatabaseV3 container.
+	 * 
+	 * @throws IOException on any file error.
+	 * @throws InvalidDBException if the database can not be decrypted or is malformed.
+	 */
+	public PwDatabaseV3 openDatabase( FileChannel channel, String password, InputStream keyfileStream, UpdateStatus status )
+	throws IOException, InvalidDBException
+	{
+		long startTotal = System.nanoTime();
+		
+		long fileSize = channel.size();
+		if( fileSize < PwDbHeaderV3.BUF_SIZE )
+			throw new IOException( "File too short for header: "+fileSize+"<"+PwDbHeaderV3.BUF_SIZE  );
+		if ( fileSize - PwDbHeaderV3.BUF_SIZE > Integer.MAX_VALUE - CIPHER_BLOCK_SIZE ) {
+			throw new IOException( "File too large: "+fileSize );
 		}
-
-		try {
-			cipher.init( Cipher.DECRYPT_MODE, new SecretKeySpec( newManager.finalKey, "AES" ), new IvParameterSpec( hdr.encryptionIV ) );
-		} catch (InvalidKeyException e1) {
-			throw new IOException("Invalid key");
-		} catch (InvalidAlgorithmParameterException e1) {
-			throw new IOException("Invalid algorithm parameter.");
+		int length = (int) (fileSize - PwDbHeaderV3.BUF_SIZE);
+		
+		// Parse header (unencrypted)
+		ByteBuffer hdrBuf = ByteBuffer.allocate(PwDbHeaderV3.BUF_SIZE);
+		while ( hdrBuf.hasRemaining() ) {
+			if ( channel.read(hdrBuf, hdrBuf.position()) == -1 ) {
+				throw new IOException( "File too short for header" );
+			}
 		}
-
-		// Decrypt! The first bytes aren't encrypted (that's the header)
-		int encryptedPartSize;
+		PwDbHeaderV3 hdr = readHeader(hdrBuf.array());
+		
+		PwDatabaseV3 newManager = initDatabase(hdr, password, keyfileStream, status);
+		
+		checkFinalBlock(newManager, hdr, channel);
+		
+		Cipher cipher = createCipher(newManager, hdr);
+		
+		ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, PwDbHeaderV3.BUF_SIZE, length);
+		
+		// Room for a block more than the payload, since Android 4.3 tries to write more to the buffer
+		byte[] plain = new byte[length + CIPHER_BLOCK_SIZE];
+		
+		// Go through a small chunk, ByteBuffer input would be copied whole by some providers
+		byte[] chunk = new byte[Math.min(DECRYPT_BLOCK_SIZE, length)];
+		long startDecrypt = System.nanoTime();
+		int decrypted = 0;
 		try {
-			encryptedPartSize = cipher.doFinal(filebuf, PwDbHeaderV3.BUF_SIZE, fileSize - PwDbHeaderV3.BUF_SIZE, filebuf, PwDbHeaderV3.BUF_SIZE );
+			while ( mapped.hasRemaining() ) {
+				int count = Math.min(chunk.length, mapped.remaining());
+				mapped.get(chunk, 0, count);
+				decrypted += cipher.update(chunk, 0, count, plain, decrypted);
+			}
+			decrypted += cipher.doFinal(plain, decrypted);
 		} catch (ShortBufferException e1) {
 			throw new IOException("Buffer too short");
 		} catch (IllegalBlockSizeException e1) {
 			throw new IOException("Invalid block size");
 		} catch (BadPaddingException e1) {
+			Arrays.fill(plain, (byte) 0);
 			throw new InvalidPasswordException("Invalid key!");
+		} finally {
+			Arrays.fill(chunk, (byte) 0);
 		}
+		logStage(STAGE_DECRYPT, startDecrypt, System.nanoTime(), length);
+		
+		readPayload(newManager, hdr, plain, 0, decrypted);
+		
+		logStage(STAGE_TOTAL, startTotal, System.nanoTime(), fileSize);
+		
+		return newManager;
+	}
+
+	/** openDatabase for a database file, see openDatabase(FileChannel, ...). */
+	public PwDatabaseV3 openDatabase( File file, String password, InputStream keyfileStream, UpdateStatus status )
+	throws IOException, InvalidDBException
+	{
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			return openDatabase(fis.getChannel(), password, keyfileStream, status);
+		} finally {
+			fis.close();
+		}
+	}
 
+	/** Check the contents hash of the decrypted payload and read its groups and entries.
+	 */
+	private void readPayload(PwDatabaseV3 newManager, PwDbHeaderV3 hdr, byte[] filebuf, int offset, int length)
+	throws IOException, InvalidDBException
+	{
 		// Copy decrypted data for testing
-		newManager.copyEncrypted(filebuf, PwDbHeaderV3.BUF_SIZE, encryptedPartSize);
+		newManager.copyEncrypted(filebuf, offset, length);
 
+		long startHash = System.nanoTime();
 		MessageDigest md = null;
 		try {
 			md = MessageDigest.getInstance("SHA-256");
@@ -244,7 +378,7 @@ public class ImporterV3  {
 		}
 		NullOutputStream nos = new NullOutputStream();
 		DigestOutputStream dos = new DigestOutputStream(nos, md);
-		dos.write(filebuf, PwDbHeaderV3.BUF_SIZE, encryptedPartSize);
+		dos.write(filebuf, offset, length);
 		dos.close();
 		byte[] hash = md.digest();
 		
@@ -253,10 +387,12 @@ public class ImporterV3  {
 			Log.w("KeePassDroid","Database file did not decrypt correctly. (checksum code is broken)");
 			throw new InvalidPasswordException("Invalid key!");
 		}
+		logStage(STAGE_HASH, startHash, System.nanoTime(), length);
 
 		// Import all groups
 
-		int pos = PwDbHeaderV3.BUF_SIZE;
+		long startParse = System.nanoTime();
+		int pos = offset;
 		PwGroupV3 newGrp = new PwGroupV3();
 		for( int i = 0; i < hdr.numGroups; ) {
 			int fieldType = LEDataInputStream.readUShort( filebuf, pos );
@@ -278,6 +414,12 @@ public class ImporterV3  {
 			pos += fieldSize;
 		}
 
+		PwRecordBuffer lazyBuffer = null;
+		if ( mLazyEntries ) {
+			lazyBuffer = new PwRecordBuffer(filebuf);
+			newManager.setRecordBuffer(lazyBuffer);
+		}
+
 		// Import all entries
 		PwEntryV3 newEnt = new PwEntryV3();
 		for( int i = 0; i < hdr.numEntries; ) {
@@ -291,16 +433,617 @@ public class ImporterV3  {
 				newEnt = new PwEntryV3();
 				i++;
 			}
+			else if ( lazyBuffer != null && isLazyEntryField(fieldType) ) {
+				newEnt.setLazyField(lazyBuffer, fieldType, pos + 6, fieldSize);
+			}
 			else {
 				readEntryField(newManager, newEnt, filebuf, pos);
 			}
 			pos += 2 + 4 + fieldSize;
 		}
+		logStage(STAGE_PARSE, startParse, System.nanoTime(), pos - offset);
 
+		long startTree = System.nanoTime();
 		newManager.constructTree(null);
+		logStage(STAGE_TREE, startTree, System.nanoTime(), -1);
+	}
+
+	/**
+	 * Load a v3 database file without buffering the whole file in memory.
+	 * 
+	 * The payload is decrypted through a cipher stream and groups and entries
+	 * are built directly from the field records as they are read, so the peak
+	 * heap usage stays close to the size of the largest field record. The
+	 * contents hash is computed incrementally and checked once the end of the
+	 * stream has been reached. Reading, decrypting, hashing and parsing are
+	 * interleaved, so they are logged as a single decrypt stage.
+	 * 
+	 * @param inStream Stream of the database file. Closed when done.
+	 * @param password Pass phrase for the database.
+	 * @param keyfileStream Stream of the key file, may be null.
+	 * @param status Progress reporting.
+	 * @return new PwDatabaseV3 container.
+	 * 
+	 * @throws IOException on any file error.
+	 * @throws InvalidDBException if the database can not be decrypted or is malformed.
+	 */
+	public PwDatabaseV3 openDatabaseStreaming( InputStream inStream, String password, InputStream keyfileStream, UpdateStatus status )
+	throws IOException, InvalidDBException
+	{
+		long startTotal = System.nanoTime();
+		
+		CountInputStream cis = new CountInputStream(inStream);
+		LEDataInputStream is = new LEDataInputStream(cis);
+		
+		// Parse header (unencrypted)
+		byte[] hdrBuf = is.readBytes(PwDbHeaderV3.BUF_SIZE);
+		if ( hdrBuf.length < PwDbHeaderV3.BUF_SIZE ) {
+			throw new IOException( "File too short for header: "+hdrBuf.length+"<"+PwDbHeaderV3.BUF_SIZE  );
+		}
+		PwDbHeaderV3 hdr = readHeader(hdrBuf);
+		
+		PwDatabaseV3 newManager = initDatabase(hdr, password, keyfileStream, status);
+		
+		if ( inStream instanceof FileInputStream ) {
+			checkFinalBlock(newManager, hdr, ((FileInputStream) inStream).getChannel());
+		}
+		
+		Cipher cipher = createCipher(newManager, hdr);
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("No SHA-256 algorithm");
+		}
+		
+		DigestInputStream dis = new DigestInputStream(new BetterCipherInputStream(is, cipher), md);
+		FieldReader reader = new FieldReader(dis);
+		
+		long startDecrypt = System.nanoTime();
+		try {
+			readGroupsAndEntries(newManager, hdr, reader);
+			
+			// Hash whatever follows the last record and let the cipher check the padding
+			reader.drain();
+		} catch (IOException e) {
+			if ( e.getCause() instanceof BadPaddingException ) {
+				throw new InvalidPasswordException("Invalid key!");
+			}
+			throw e;
+		} finally {
+			reader.wipe();
+			dis.close();
+		}
+		logStage(STAGE_DECRYPT, startDecrypt, System.nanoTime(), cis.getCount() - PwDbHeaderV3.BUF_SIZE);
+		
+		byte[] hash = md.digest();
+		if( ! Arrays.equals(hash, hdr.contentsHash) ) {
+
+			Log.w("KeePassDroid","Database file did not decrypt correctly. (checksum code is broken)");
+			throw new InvalidPasswordException("Invalid key!");
+		}
+		
+		long startTree = System.nanoTime();
+		newManager.constructTree(null);
+		logStage(STAGE_TREE, startTree, System.nanoTime(), -1);
+		
+		logStage(STAGE_TOTAL, startTotal, System.nanoTime(), cis.getCount());
 		
 		return newManager;
 	}
+	
+	/**
+	 * Load a v3 database file, overlapping the work of the individual stages.
+	 * 
+	 * The key transform runs on its own thread while the ciphertext is read.
+	 * Decrypted blocks are then handed to a decoder thread which builds the
+	 * groups and entries while the remaining payload is still being decrypted
+	 * and hashed.
+	 * 
+	 * @param inStream Stream of the database file. Closed when done.
+	 * @param password Pass phrase for the database.
+	 * @param keyfileStream Stream of the key file, may be null.
+	 * @param status Progress reporting.
+	 * @param timeLogger Receives the interval of each stage, may be null to use
+	 *   the one from setStageTimeLogger. The contents hash is computed as part of
+	 *   the decrypt stage.
+	 * @return new PwDatabaseV3 container.
+	 * 
+	 * @throws IOException on any file error.
+	 * @throws InvalidDBException if the database can not be decrypted or is malformed.
+	 */
+	public PwDatabaseV3 openDatabasePipelined( InputStream inStream, String password, InputStream keyfileStream, UpdateStatus status, IStageTimeLogger timeLogger )
+	throws IOException, InvalidDBException
+	{
+		long startTotal = System.nanoTime();
+		
+		LEDataInputStream is = new LEDataInputStream(inStream);
+		
+		// Parse header (unencrypted)
+		byte[] hdrBuf = is.readBytes(PwDbHeaderV3.BUF_SIZE);
+		if ( hdrBuf.length < PwDbHeaderV3.BUF_SIZE ) {
+			throw new IOException( "File too short for header: "+hdrBuf.length+"<"+PwDbHeaderV3.BUF_SIZE  );
+		}
+		final PwDbHeaderV3 hdr = readHeader(hdrBuf);
+		
+		final PwDatabaseV3 newManager = prepareDatabase(hdr, password, keyfileStream, status);
+		
+		// Generate transformedMasterKey from masterKey while the ciphertext is read
+		final long[] keyTime = new long[2];
+		FutureTask<Void> keyTask = new FutureTask<Void>(new Callable<Void>() {
+			public Void call() throws Exception {
+				keyTime[0] = System.nanoTime();
+				newManager.makeFinalKey(hdr.masterSeed, hdr.transformSeed, newManager.numKeyEncRounds);
+				keyTime[1] = System.nanoTime();
+				return null;
+			}
+		});
+		new Thread(keyTask, "KeyTransform").start();
+		
+		long startRead = System.nanoTime();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		int nRead;
+		byte[] data = new byte[16384];
+		while ((nRead = is.read(data, 0, data.length)) != -1) {
+			buffer.write(data, 0, nRead);
+		}
+		is.close();
+		byte[] cipherText = buffer.toByteArray();
+		long endRead = System.nanoTime();
+		
+		try {
+			keyTask.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Key transform interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof IOException ) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Key transform failed: " + cause);
+		}
+		
+		try {
+			checkFinalBlock(newManager, hdr, cipherText, 0, cipherText.length);
+		} catch (InvalidDBException e) {
+			Arrays.fill(cipherText, (byte) 0);
+			throw e;
+		}
+		
+		Cipher cipher = createCipher(newManager, hdr);
+		
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("No SHA-256 algorithm");
+		}
+		
+		// Decode records on a separate thread as the decrypted blocks become available
+		final BlockPipe pipe = new BlockPipe();
+		final Throwable[] decodeError = new Throwable[1];
+		final long[] parseTime = new long[2];
+		Thread decoder = new Thread(new Runnable() {
+			public void run() {
+				parseTime[0] = System.nanoTime();
+				FieldReader reader = new FieldReader(pipe);
+				try {
+					readGroupsAndEntries(newManager, hdr, reader);
+					reader.drain();
+				} catch (Throwable e) {
+					decodeError[0] = e;
+				} finally {
+					reader.wipe();
+					pipe.abandon();
+				}
+				parseTime[1] = System.nanoTime();
+			}
+		}, "RecordDecoder");
+		decoder.start();
+		
+		long startDecrypt = System.nanoTime();
+		boolean badPadding = false;
+		long plainLength = 0;
+		try {
+			for ( int pos = 0; pos < cipherText.length; pos += DECRYPT_BLOCK_SIZE ) {
+				byte[] plain = cipher.update(cipherText, pos, Math.min(DECRYPT_BLOCK_SIZE, cipherText.length - pos));
+				if ( plain != null && plain.length > 0 ) {
+					md.update(plain);
+					pipe.put(plain);
+					plainLength += plain.length;
+				}
+			}
+			
+			byte[] plain = cipher.doFinal();
+			if ( plain != null && plain.length > 0 ) {
+				md.update(plain);
+				pipe.put(plain);
+				plainLength += plain.length;
+			}
+		} catch (IllegalBlockSizeException e) {
+			throw new IOException("Invalid block size");
+		} catch (BadPaddingException e) {
+			badPadding = true;
+		} finally {
+			pipe.close();
+			Arrays.fill(cipherText, (byte) 0);
+		}
+		long endDecrypt = System.nanoTime();
+		
+		try {
+			decoder.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Record decoder interrupted");
+		}
+		
+		byte[] hash = md.digest();
+		if( badPadding || ! Arrays.equals(hash, hdr.contentsHash) ) {
+
+			Log.w("KeePassDroid","Database file did not decrypt correctly. (checksum code is broken)");
+			throw new InvalidPasswordException("Invalid key!");
+		}
+		
+		Throwable error = decodeError[0];
+		if ( error instanceof InvalidDBException ) {
+			throw (InvalidDBException) error;
+		} else if ( error instanceof IOException ) {
+			throw (IOException) error;
+		} else if ( error instanceof RuntimeException ) {
+			throw (RuntimeException) error;
+		} else if ( error != null ) {
+			throw new IOException("Failed to decode records: " + error);
+		}
+		
+		long startTree = System.nanoTime();
+		newManager.constructTree(null);
+		long endTree = System.nanoTime();
+		
+		if ( timeLogger == null ) {
+			timeLogger = mStageTimeLogger;
+		}
+		if ( timeLogger != null ) {
+			long fileSize = PwDbHeaderV3.BUF_SIZE + cipherText.length;
+			timeLogger.logStage(STAGE_READ, startRead, endRead, fileSize);
+			timeLogger.logStage(STAGE_KEY_TRANSFORM, keyTime[0], keyTime[1], -1);
+			timeLogger.logStage(STAGE_DECRYPT, startDecrypt, endDecrypt, cipherText.length);
+			timeLogger.logStage(STAGE_PARSE, parseTime[0], parseTime[1], plainLength);
+			timeLogger.logStage(STAGE_TREE, startTree, endTree, -1);
+			timeLogger.logStage(STAGE_TOTAL, startTotal, System.nanoTime(), fileSize);
+		}
+		
+		return newManager;
+	}
+	
+	/** Hands decrypted blocks from the decrypting thread to the record decoder.
+	 * Once the decoder has given up, further blocks are dropped instead of blocking
+	 * the producer.
+	 */
+	private static class BlockPipe extends InputStream {
+		private static final byte[] END = new byte[0];
+		
+		private final BlockingQueue<byte[]> mQueue = new ArrayBlockingQueue<byte[]>(8);
+		private volatile boolean mAbandoned = false;
+		private byte[] mCurrent;
+		private int mPos;
+		
+		void put(byte[] block) throws IOException {
+			try {
+				while ( ! mAbandoned && ! mQueue.offer(block, 50, TimeUnit.MILLISECONDS) ) { }
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			put(END);
+		}
+		
+		void abandon() {
+			mAbandoned = true;
+			mQueue.clear();
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int read = read(b, 0, 1);
+			return (read == -1) ? -1 : b[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			if ( length == 0 ) {
+				return 0;
+			}
+			
+			while ( mCurrent == null || mPos == mCurrent.length ) {
+				if ( mCurrent == END ) {
+					return -1;
+				}
+				try {
+					mCurrent = mQueue.take();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+				mPos = 0;
+			}
+			
+			int count = Math.min(length, mCurrent.length - mPos);
+			System.arraycopy(mCurrent, mPos, b, offset, count);
+			mPos += count;
+			if ( mPos == mCurrent.length ) {
+				Arrays.fill(mCurrent, (byte) 0);
+			}
+			
+			return count;
+		}
+	}
+	
+	/** Read all group and entry records from the decrypted payload stream.
+	 */
+	void readGroupsAndEntries(PwDatabaseV3 db, PwDbHeaderV3 hdr, FieldReader reader) throws IOException, InvalidDBException {
+		// Import all groups
+		PwGroupV3 newGrp = new PwGroupV3();
+		for( int i = 0; i < hdr.numGroups; ) {
+			reader.next();
+			
+			if( reader.fieldType == 0xFFFF ) {
+				// End-Group record.  Save group and count it.
+				newGrp.populateBlankFields(db);
+				db.groups.add(newGrp);
+				newGrp = new PwGroupV3();
+				i++;
+			}
+			else {
+				readGroupField(db, newGrp, reader.fieldType, reader.buf, 0);
+			}
+		}
+
+		// Import all entries
+		PwEntryV3 newEnt = new PwEntryV3();
+		for( int i = 0; i < hdr.numEntries; ) {
+			reader.next();
+
+			if( reader.fieldType == 0xFFFF ) {
+				// End-Group record.  Save group and count it.
+				newEnt.populateBlankFields(db);
+				db.entries.add(newEnt);
+				newEnt = new PwEntryV3();
+				i++;
+			}
+			else {
+				readEntryField(db, newEnt, reader.fieldType, reader.fieldSize, reader.buf, 0);
+			}
+		}
+	}
+	
+	/** Reads one field record at a time from a stream into a reusable buffer.
+	 * The field data is always followed by a zero byte, so unterminated strings
+	 * can not run into stale data of a previous record.
+	 */
+	static class FieldReader {
+		private static final int CHUNK_SIZE = 16384;
+		
+		private final InputStream mIS;
+		private final byte[] mHeader = new byte[6];
+		
+		byte[] buf = new byte[256];
+		int fieldType;
+		int fieldSize;
+		
+		FieldReader(InputStream is) {
+			mIS = is;
+		}
+		
+		void next() throws IOException, InvalidDBException {
+			if ( readFully(mHeader, 0, 6) != 6 ) {
+				throw new InvalidPasswordException("Invalid key!");
+			}
+			fieldType = LEDataInputStream.readUShort(mHeader, 0);
+			fieldSize = LEDataInputStream.readInt(mHeader, 2);
+			if ( fieldSize < 0 ) {
+				throw new InvalidPasswordException("Invalid key!");
+			}
+			
+			// Grow the buffer as data actually arrives, a garbage size from a wrong key
+			// must not be able to allocate an arbitrarily large array up front
+			int read = 0;
+			while ( read < fieldSize ) {
+				int chunk = Math.min(fieldSize - read, CHUNK_SIZE);
+				ensureCapacity(read + chunk + 1);
+				if ( readFully(buf, read, chunk) != chunk ) {
+					throw new InvalidPasswordException("Invalid key!");
+				}
+				read += chunk;
+			}
+			ensureCapacity(fieldSize + 1);
+			buf[fieldSize] = 0;
+		}
+		
+		void drain() throws IOException {
+			ensureCapacity(CHUNK_SIZE);
+			while ( mIS.read(buf, 0, CHUNK_SIZE) != -1 ) { }
+		}
+		
+		void wipe() {
+			Arrays.fill(buf, (byte) 0);
+		}
+		
+		private void ensureCapacity(int size) {
+			if ( buf.length < size ) {
+				byte[] newBuf = new byte[Math.max(size, buf.length * 2)];
+				System.arraycopy(buf, 0, newBuf, 0, buf.length);
+				Arrays.fill(buf, (byte) 0);
+				buf = newBuf;
+			}
+		}
+		
+		private int readFully(byte[] b, int offset, int length) throws IOException {
+			int count = 0;
+			while ( count < length ) {
+				int read = mIS.read(b, offset + count, length - count);
+				if ( read == -1 ) {
+					break;
+				}
+				count += read;
+			}
+			return count;
+		}
+	}
+	
+	/** Parse the unencrypted header and check the signature and version.
+	 */
+	PwDbHeaderV3 readHeader(byte[] buf) throws IOException, InvalidDBException {
+		PwDbHeaderV3 hdr = new PwDbHeaderV3();
+		hdr.loadFromFile(buf, 0 );
+
+		if( (hdr.signature1 != PwDbHeader.PWM_DBSIG_1) || (hdr.signature2 != PwDbHeaderV3.DBSIG_2) ) {
+			throw new InvalidDBSignatureException();
+		}
+
+		if( !hdr.matchesVersion() ) {
+			throw new InvalidDBVersionException();
+		}
+		
+		return hdr;
+	}
+	
+	/** Create the database container for the header and derive the final key.
+	 */
+	PwDatabaseV3 initDatabase(PwDbHeaderV3 hdr, String password, InputStream keyfileStream, UpdateStatus status) throws IOException, InvalidDBException {
+		PwDatabaseV3 newManager = prepareDatabase(hdr, password, keyfileStream, status);
+
+		// Generate transformedMasterKey from masterKey
+		long startKey = System.nanoTime();
+		newManager.makeFinalKey(hdr.masterSeed, hdr.transformSeed, newManager.numKeyEncRounds);
+		logStage(STAGE_KEY_TRANSFORM, startKey, System.nanoTime(), -1);
+		
+		return newManager;
+	}
+	
+	/** Create the database container for the header without running the key transform.
+	 */
+	PwDatabaseV3 prepareDatabase(PwDbHeaderV3 hdr, String password, InputStream keyfileStream, UpdateStatus status) throws IOException, InvalidDBException {
+		PwDatabaseV3 newManager = createDB();
+		newManager.setMasterKey( password, keyfileStream, status );
+		newManager.setAttachmentStore(mAttachmentStore);
+
+		// Select algorithm
+		if( (hdr.flags & PwDbHeaderV3.FLAG_RIJNDAEL) != 0 ) {
+			newManager.algorithm = PwEncryptionAlgorithm.Rjindal;
+		} else if( (hdr.flags & PwDbHeaderV3.FLAG_TWOFISH) != 0 ) {
+			newManager.algorithm = PwEncryptionAlgorithm.Twofish;
+		} else {
+			throw new InvalidAlgorithmException();
+		}
+
+		// Copy for testing
+		newManager.copyHeader(hdr);
+		
+		newManager.numKeyEncRounds = hdr.numKeyEncRounds;
+
+		newManager.name = "KeePass Password Manager";
+		
+		return newManager;
+	}
+	
+	/** Create the payload cipher, initialized for decryption with the final key.
+	 */
+	Cipher createCipher(PwDatabaseV3 db, PwDbHeaderV3 hdr) throws IOException {
+		return createCipher(db, hdr.encryptionIV);
+	}
+	
+	/** Create the payload cipher for decrypting from a point where the
+	 * previous ciphertext block, or the header IV at the start, is the IV.
+	 */
+	Cipher createCipher(PwDatabaseV3 db, byte[] iv) throws IOException {
+		// Initialize Rijndael algorithm
+		Cipher cipher;
+		try {
+			if ( db.algorithm == PwEncryptionAlgorithm.Rjindal ) {
+				cipher = CipherFactory.getInstance("AES/CBC/PKCS5Padding");
+			} else if ( db.algorithm == PwEncryptionAlgorithm.Twofish ) {
+				cipher = CipherFactory.getInstance("TWOFISH/CBC/PKCS7PADDING");
+			} else {
+				throw new IOException( "Encryption algorithm is not supported" );
+			}
+
+		} catch (NoSuchAlgorithmException e1) {
+			throw new IOException("No such algorithm");
+		} catch (NoSuchPaddingException e1) {
+			throw new IOException("No such pdading");
+		}
+
+		try {
+			cipher.init( Cipher.DECRYPT_MODE, new SecretKeySpec( db.finalKey, "AES" ), new IvParameterSpec( iv ) );
+		} catch (InvalidKeyException e1) {
+			throw new IOException("Invalid key");
+		} catch (InvalidAlgorithmParameterException e1) {
+			throw new IOException("Invalid algorithm parameter.");
+		}
+		
+		return cipher;
+	}
+
+	/**
+	 * Decrypt the last block of the payload and throw InvalidPasswordException
+	 * if its padding is invalid. With CBC only the previous ciphertext block
+	 * is needed as the IV. A wrong key still passes by chance about once in
+	 * 256 tries, so the contents hash remains the final check. A payload that
+	 * is not a whole number of blocks is left for the full decryption to report.
+	 * 
+	 * @param buf Holds the end of the payload.
+	 * @param length Bytes of payload in buf, the whole payload if it is shorter than two blocks.
+	 */
+	void checkFinalBlock(PwDatabaseV3 db, PwDbHeaderV3 hdr, byte[] buf, int offset, int length) throws IOException, InvalidDBException {
+		if ( ! mQuickPasswordCheck || length < CIPHER_BLOCK_SIZE || length % CIPHER_BLOCK_SIZE != 0 ) {
+			return;
+		}
+		
+		int last = offset + length - CIPHER_BLOCK_SIZE;
+		byte[] iv;
+		if ( length == CIPHER_BLOCK_SIZE ) {
+			iv = hdr.encryptionIV;
+		} else {
+			iv = Arrays.copyOfRange(buf, last - CIPHER_BLOCK_SIZE, last);
+		}
+		
+		Cipher cipher = createCipher(db, iv);
+		try {
+			byte[] plain = cipher.doFinal(buf, last, CIPHER_BLOCK_SIZE);
+			Arrays.fill(plain, (byte) 0);
+		} catch (IllegalBlockSizeException e) {
+			// Leave it to the full decryption
+		} catch (BadPaddingException e) {
+			throw new InvalidPasswordException("Invalid key!");
+		}
+	}
+	
+	/** checkFinalBlock for a database file, reads the last two blocks without moving the channel.
+	 */
+	void checkFinalBlock(PwDatabaseV3 db, PwDbHeaderV3 hdr, FileChannel channel) throws IOException, InvalidDBException {
+		if ( ! mQuickPasswordCheck ) {
+			return;
+		}
+		
+		long size = channel.size();
+		long length = size - PwDbHeaderV3.BUF_SIZE;
+		if ( length < CIPHER_BLOCK_SIZE || length % CIPHER_BLOCK_SIZE != 0 ) {
+			return;
+		}
+		int tailLength = (int) Math.min(length, 2 * CIPHER_BLOCK_SIZE);
+		
+		ByteBuffer tail = ByteBuffer.allocate(tailLength);
+		while ( tail.hasRemaining() ) {
+			if ( channel.read(tail, size - tailLength + tail.position()) == -1 ) {
+				return;
+			}
+		}
+		
+		checkFinalBlock(db, hdr, tail.array(), 0, tailLength);
+	}
 
 	/**
 	 * KeePass's custom pad style.
@@ -389,14 +1132,34 @@ public class ImporterV3  {
 
 
 
+	private static boolean isLazyEntryField(int fieldType) {
+		switch ( fieldType ) {
+		case 0x0004 :
+		case 0x0005 :
+		case 0x0006 :
+		case 0x0008 :
+		case 0x000D :
+		case 0x000E :
+			return true;
+		default:
+			return false;
+		}
+	}
+
 	void readEntryField(PwDatabaseV3 db, PwEntryV3 ent, byte[] buf, int offset)
-	throws UnsupportedEncodingException
+	throws IOException
 	{
 		int fieldType = LEDataInputStream.readUShort(buf, offset);
 		offset += 2;
 		int fieldSize = LEDataInputStream.readInt(buf, offset);
 		offset += 4;
 
+		readEntryField(db, ent, fieldType, fieldSize, buf, offset);
+	}
+
+	void readEntryField(PwDatabaseV3 db, PwEntryV3 ent, int fieldType, int fieldSize, byte[] buf, int offset)
+	throws IOException
+	{
 		switch( fieldType ) {
 		case 0x0000 :
 			// Ignore field
@@ -448,7 +1211,7 @@ public class ImporterV3  {
 			ent.binaryDesc = Types.readCString(buf, offset);
 			break;
 		case 0x000E :
-			ent.setBinaryData(buf, offset, fieldSize);
+			ent.setBinaryData(buf, offset, fieldSize, db.getAttachmentStore());
 			break;
 		}
 	}
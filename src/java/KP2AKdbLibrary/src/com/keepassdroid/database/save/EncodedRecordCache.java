@@ -0,0 +1,187 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.save;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.keepassdroid.database.PwEntryV3;
+import com.keepassdroid.database.PwGroupV3;
+import com.keepassdroid.stream.ExposedByteArrayOutputStream;
+
+/** Keeps the encoded bytes of every group and entry from the last save, so
+ * the next save only has to encode the records which changed.
+ * 
+ * A cached record is reused if the object is not dirty and its fields still
+ * reference the same values they were encoded from. The field values are
+ * immutable or replaced by the setters, which also catches writes to the
+ * public fields. Changing the contents of the password or binary data arrays
+ * in place is not detected.
+ * 
+ * The cache holds plaintext and must be wiped when the database is locked.
+ */
+public class EncodedRecordCache {
+	
+	private static class Record {
+		byte[] data;
+		Object[] refs;
+		int[] values;
+		byte[] uuid;
+		
+		void wipe() {
+			Arrays.fill(data, (byte) 0);
+		}
+	}
+	
+	private Map<Object, Record> records = new IdentityHashMap<Object, Record>();
+	private Map<Object, Record> used;
+	private ExposedByteArrayOutputStream scratch = new ExposedByteArrayOutputStream(1024);
+	
+	/** Starts a save, records which are not written before endSave() are dropped */
+	public synchronized void beginSave() {
+		used = new IdentityHashMap<Object, Record>(records.size());
+	}
+	
+	public synchronized void endSave() {
+		if ( used == null ) {
+			return;
+		}
+		
+		for ( Map.Entry<Object, Record> entry : records.entrySet() ) {
+			if ( used.get(entry.getKey()) != entry.getValue() ) {
+				entry.getValue().wipe();
+			}
+		}
+		
+		records = used;
+		used = null;
+		scratch.wipe();
+	}
+	
+	public void writeGroup(PwGroupV3 pg, OutputStream os) throws IOException {
+		writeGroup(pg, pg, os);
+	}
+	
+	/** Writes a group from a copy of its fields, e.g. from a PwDatabaseV3Snapshot.
+	 * Clearing the dirty flag of the group is safe even if it changed since the
+	 * copy, since the next save compares the field values anyway.
+	 * @param pg The group, used as the key of the cache.
+	 * @param state The fields to write.
+	 */
+	public synchronized void writeGroup(PwGroupV3 pg, PwGroupV3 state, OutputStream os) throws IOException {
+		Object[] refs = new Object[] { state.name, state.tCreation, state.tLastMod, state.tLastAccess, state.tExpire };
+		int[] values = new int[] { state.groupId, state.icon.iconId, state.level, state.flags };
+		
+		Record record = records.get(pg);
+		if ( record == null || pg.isDirty() || !matches(record, refs, values, null) ) {
+			scratch.reset();
+			new PwGroupOutputV3(state, scratch).output();
+			record = replace(pg, record, refs, values, null);
+			pg.setDirty(false);
+		}
+		
+		write(pg, record, os);
+	}
+	
+	public void writeEntry(PwEntryV3 pe, OutputStream os) throws IOException {
+		writeEntry(pe, pe, os);
+	}
+	
+	/** Writes an entry from a copy of its fields, like writeGroup(PwGroupV3, PwGroupV3, OutputStream) */
+	public synchronized void writeEntry(PwEntryV3 pe, PwEntryV3 state, OutputStream os) throws IOException {
+		if ( state.getBinaryAttachment() != null ) {
+			// Stream entries with a stored attachment, caching them would pull it into memory
+			remove(pe);
+			new PwEntryOutputV3(state, os).output();
+			pe.setDirty(false);
+			return;
+		}
+		
+		Object[] refs = new Object[] { state.getTitle(), state.getUrl(), state.getUsername(), state.getPasswordBytes(), state.getNotes(),
+				state.tCreation, state.tLastMod, state.tLastAccess, state.tExpire, state.getBinaryDesc(), state.getBinaryData() };
+		int[] values = new int[] { state.groupId, state.icon.iconId };
+		
+		Record record = records.get(pe);
+		if ( record == null || pe.isDirty() || !matches(record, refs, values, state.uuid) ) {
+			scratch.reset();
+			new PwEntryOutputV3(state, scratch).output();
+			record = replace(pe, record, refs, values, state.uuid);
+			pe.setDirty(false);
+		}
+		
+		write(pe, record, os);
+	}
+	
+	/** Drops and wipes the record of a group or entry */
+	public synchronized void remove(Object groupOrEntry) {
+		Record record = records.remove(groupOrEntry);
+		if ( record != null ) {
+			record.wipe();
+		}
+	}
+	
+	/** Drops and wipes all records */
+	public synchronized void wipe() {
+		for ( Record record : records.values() ) {
+			record.wipe();
+		}
+		records.clear();
+		used = null;
+		scratch.wipe();
+	}
+	
+	private void write(Object key, Record record, OutputStream os) throws IOException {
+		if ( used != null ) {
+			used.put(key, record);
+		}
+		os.write(record.data);
+	}
+	
+	private Record replace(Object key, Record old, Object[] refs, int[] values, byte[] uuid) {
+		if ( old != null ) {
+			old.wipe();
+		}
+		
+		Record record = new Record();
+		record.data = new byte[scratch.size()];
+		System.arraycopy(scratch.getBuffer(), 0, record.data, 0, record.data.length);
+		record.refs = refs;
+		record.values = values;
+		if ( uuid != null ) {
+			record.uuid = new byte[uuid.length];
+			System.arraycopy(uuid, 0, record.uuid, 0, uuid.length);
+		}
+		
+		records.put(key, record);
+		return record;
+	}
+	
+	private static boolean matches(Record record, Object[] refs, int[] values, byte[] uuid) {
+		for ( int i = 0; i < refs.length; i++ ) {
+			if ( record.refs[i] != refs[i] ) {
+				return false;
+			}
+		}
+		
+		return Arrays.equals(record.values, values) && Arrays.equals(record.uuid, uuid);
+	}
+
+}
@@ -19,44 +19,88 @@
  */
 package com.keepassdroid.database.save;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import com.keepassdroid.crypto.CipherFactory;
+import com.keepassdroid.database.IStageTimeLogger;
 import com.keepassdroid.database.PwDatabaseV3;
+import com.keepassdroid.database.PwDatabaseV3Snapshot;
 import com.keepassdroid.database.PwDbHeader;
 import com.keepassdroid.database.PwDbHeaderV3;
 import com.keepassdroid.database.PwEncryptionAlgorithm;
 import com.keepassdroid.database.PwEntryV3;
 import com.keepassdroid.database.PwGroupV3;
 import com.keepassdroid.database.exception.PwDbOutputException;
-import com.keepassdroid.stream.NullOutputStream;
+import com.keepassdroid.stream.CountOutputStream;
+import com.keepassdroid.stream.ExposedByteArrayOutputStream;
 
 public class PwDbV3Output extends PwDbOutput {
+	private static final int ENCRYPT_BLOCK_SIZE = 64 * 1024;
+	
 	private PwDatabaseV3 mPM;
+	// Saved instead of the current state of mPM if set
+	private PwDatabaseV3Snapshot mSnapshot;
+	
+	// Plaintext of the groups and entries, serialized once for both the
+	// contents hash and the encryption. Not used if an entry has a stored
+	// attachment, the records are then serialized twice instead so the
+	// attachment is never held in memory.
+	private ExposedByteArrayOutputStream mPlain;
+	
+	private IStageTimeLogger mStageTimeLogger;
 	
 	public PwDbV3Output(PwDatabaseV3 pm, OutputStream os) {
 		super(os);
 		
 		mPM = pm;
 	}
+	
+	/**
+	 * Write the groups and entries of a snapshot instead of the current state of
+	 * the database, so the save can run in the background while the database is
+	 * changed. The records are written as they were when the snapshot was taken.
+	 * The key and settings still come from pm.
+	 */
+	public PwDbV3Output(PwDatabaseV3 pm, PwDatabaseV3Snapshot snapshot, OutputStream os) {
+		this(pm, os);
+		
+		mSnapshot = snapshot;
+	}
+	
+	/**
+	 * Log the time and bytes of each stage of output(), e.g. to a StageMetrics.
+	 * Encrypting and writing alternate, so both are logged with their summed time.
+	 * If an entry has a stored attachment the records are serialized while they
+	 * are hashed and encrypted, and no serialize stage is logged.
+	 */
+	public void setStageTimeLogger(IStageTimeLogger logger) {
+		mStageTimeLogger = logger;
+	}
+	
+	private void logStage(String stage, long startNanos, long endNanos, long bytes) {
+		if ( mStageTimeLogger != null ) {
+			mStageTimeLogger.logStage(stage, startNanos, endNanos, bytes);
+		}
+	}
 
 	public byte[] getFinalKey(PwDbHeader header) throws PwDbOutputException {
+		return getFinalKey(header, mPM.numKeyEncRounds);
+	}
+	
+	private byte[] getFinalKey(PwDbHeader header, int numKeyEncRounds) throws PwDbOutputException {
 		try {
-			mPM.makeFinalKey(header.masterSeed, header.transformSeed, mPM.numKeyEncRounds);
+			mPM.makeFinalKey(header.masterSeed, header.transformSeed, numKeyEncRounds);
 			return mPM.finalKey;
 		} catch (IOException e) {
 			throw new PwDbOutputException("Key creation failed: " + e.getMessage());
@@ -65,70 +109,165 @@ public class PwDbV3Output extends PwDbOutput {
 	
 	@Override
 	public void output() throws PwDbOutputException {
-		prepForOutput();
+		long startTotal = System.nanoTime();
+		PwDatabaseV3Snapshot snapshot = prepForOutput();
+		boolean streaming = hasStoredAttachments(snapshot);
+		CountOutputStream os = new CountOutputStream(mOS);
 		
-		PwDbHeader header = outputHeader(mOS);
+		try {
+			if ( !streaming ) {
+				long startSerialize = System.nanoTime();
+				serializePlain(snapshot);
+				logStage(IStageTimeLogger.STAGE_SERIALIZE, startSerialize, System.nanoTime(), mPlain.size());
+			}
+			
+			PwDbHeaderV3 header = buildHeader(snapshot, streaming);
+			
+			long startWrite = System.nanoTime();
+			writeHeader(os, header);
+			long writeNanos = System.nanoTime() - startWrite;
+			
+			long startKey = System.nanoTime();
+			byte[] finalKey = getFinalKey(header, snapshot.numKeyEncRounds);
+			logStage(IStageTimeLogger.STAGE_KEY_TRANSFORM, startKey, System.nanoTime(), -1);
+			
+			Cipher cipher;
+			try {
+				if (snapshot.algorithm == PwEncryptionAlgorithm.Rjindal) {
+					cipher = CipherFactory.getInstance("AES/CBC/PKCS5Padding");
+				} else if (snapshot.algorithm == PwEncryptionAlgorithm.Twofish){
+					cipher = CipherFactory.getInstance("TWOFISH/CBC/PKCS7PADDING");
+				} else {
+					throw new Exception();
+				}
+			} catch (Exception e) {
+				throw new PwDbOutputException("Algorithm not supported.");
+			}
+	
+			try {
+				cipher.init( Cipher.ENCRYPT_MODE, new SecretKeySpec(finalKey, "AES" ), new IvParameterSpec(header.encryptionIV) );
+				writeNanos += encryptContents(snapshot, streaming, cipher, os);
+				
+				long startClose = System.nanoTime();
+				os.flush();
+				os.close();
+				writeNanos += System.nanoTime() - startClose;
+				logStage(IStageTimeLogger.STAGE_WRITE, startWrite, startWrite + writeNanos, os.getCount());
+	
+			} catch (InvalidKeyException e) {
+				throw new PwDbOutputException("Invalid key");
+			} catch (InvalidAlgorithmParameterException e) {
+				throw new PwDbOutputException("Invalid algorithm parameter.");
+			} catch (IOException e) {
+				throw new PwDbOutputException("Failed to output final encrypted part.");
+			}
+		} finally {
+			wipePlain();
+		}
 		
-		byte[] finalKey = getFinalKey(header);
+		logStage(IStageTimeLogger.STAGE_TOTAL, startTotal, System.nanoTime(), os.getCount());
+	}
+	
+	/** Encrypt the groups and entries to os, from mPlain or serialized again
+	 * if streaming.
+	 * @return Nanoseconds spent writing to os
+	 */
+	private long encryptContents(PwDatabaseV3Snapshot snapshot, boolean streaming, Cipher cipher, OutputStream os) throws IOException, PwDbOutputException {
+		EncryptingOutputStream eos = new EncryptingOutputStream(cipher, os);
 		
-		Cipher cipher;
+		long startEncrypt = System.nanoTime();
 		try {
-			if (mPM.algorithm == PwEncryptionAlgorithm.Rjindal) {
-				cipher = CipherFactory.getInstance("AES/CBC/PKCS5Padding");
-			} else if (mPM.algorithm == PwEncryptionAlgorithm.Twofish){
-				cipher = CipherFactory.getInstance("TWOFISH/CBC/PKCS7PADDING");
+			if ( streaming ) {
+				outputPlanGroupAndEntries(snapshot, eos);
 			} else {
-				throw new Exception();
+				eos.write(mPlain.getBuffer(), 0, mPlain.size());
 			}
-		} catch (Exception e) {
-			throw new PwDbOutputException("Algorithm not supported.");
+			eos.finish();
+		} finally {
+			eos.wipe();
 		}
-
-		try {
-			cipher.init( Cipher.ENCRYPT_MODE, new SecretKeySpec(finalKey, "AES" ), new IvParameterSpec(header.encryptionIV) );
-			CipherOutputStream cos = new CipherOutputStream(mOS, cipher);
-			BufferedOutputStream bos = new BufferedOutputStream(cos);
-			outputPlanGroupAndEntries(bos);
-			bos.flush();
-			bos.close();
-
-		} catch (InvalidKeyException e) {
-			throw new PwDbOutputException("Invalid key");
-		} catch (InvalidAlgorithmParameterException e) {
-			throw new PwDbOutputException("Invalid algorithm parameter.");
-		} catch (IOException e) {
-			throw new PwDbOutputException("Failed to output final encrypted part.");
+		logStage(IStageTimeLogger.STAGE_ENCRYPT, startEncrypt, startEncrypt + eos.encryptNanos, eos.plainBytes);
+		
+		return eos.writeNanos;
+	}
+	
+	private static boolean hasStoredAttachments(PwDatabaseV3Snapshot snapshot) {
+		for ( int i = 0; i < snapshot.getEntryCount(); i++ ) {
+			if ( snapshot.getEntryState(i).getBinaryAttachment() != null ) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private void serializePlain(PwDatabaseV3Snapshot snapshot) throws PwDbOutputException {
+		if ( mPlain == null ) {
+			mPlain = new ExposedByteArrayOutputStream();
+		} else {
+			mPlain.wipe();
+		}
+		
+		outputPlanGroupAndEntries(snapshot, mPlain);
+	}
+	
+	private void wipePlain() {
+		if ( mPlain != null ) {
+			mPlain.wipe();
 		}
 	}
 	
-	private void prepForOutput() {
-		// Before we output the header, we should sort our list of groups and remove any orphaned nodes that are no longer part of the group hierarchy
-		sortGroupsForOutput();
+	private PwDatabaseV3Snapshot prepForOutput() {
+		// The snapshot has the groups in tree order without any orphaned nodes that are no longer
+		// part of the group hierarchy, without sorting the list of groups in the database itself
+		if ( mSnapshot != null ) {
+			return mSnapshot;
+		}
+		
+		// Saving on the modifying thread, the records can't change during the save
+		return mPM.snapshot(false);
 	}
 
 	public PwDbHeader outputHeader(OutputStream os) throws PwDbOutputException {
+		PwDatabaseV3Snapshot snapshot = prepForOutput();
+		boolean streaming = hasStoredAttachments(snapshot);
+		
+		try {
+			if ( !streaming ) {
+				serializePlain(snapshot);
+			}
+			PwDbHeaderV3 header = buildHeader(snapshot, streaming);
+			writeHeader(os, header);
+			return header;
+		} finally {
+			wipePlain();
+		}
+	}
+	
+	private PwDbHeaderV3 buildHeader(PwDatabaseV3Snapshot snapshot, boolean streaming) throws PwDbOutputException {
 		// Build header
 		PwDbHeaderV3 header = new PwDbHeaderV3();
 		header.signature1 = PwDbHeader.PWM_DBSIG_1;
 		header.signature2 = PwDbHeaderV3.DBSIG_2;
 		header.flags = PwDbHeaderV3.FLAG_SHA2;
 		
-		if ( mPM.getEncAlgorithm() == PwEncryptionAlgorithm.Rjindal ) {
+		if ( snapshot.algorithm == PwEncryptionAlgorithm.Rjindal ) {
 			header.flags |= PwDbHeaderV3.FLAG_RIJNDAEL;
-		} else if ( mPM.getEncAlgorithm() == PwEncryptionAlgorithm.Twofish ) {
+		} else if ( snapshot.algorithm == PwEncryptionAlgorithm.Twofish ) {
 			header.flags |= PwDbHeaderV3.FLAG_TWOFISH;
 		} else {
 			throw new PwDbOutputException("Unsupported algorithm.");
 		}
 		
 		header.version = PwDbHeaderV3.DBVER_DW;
-		header.numGroups = mPM.getGroups().size();
-		header.numEntries = mPM.entries.size();
-		header.numKeyEncRounds = mPM.getNumKeyEncRecords();
+		header.numGroups = snapshot.getGroupCount();
+		header.numEntries = snapshot.getEntryCount();
+		header.numKeyEncRounds = snapshot.numKeyEncRounds;
 		
 		setIVs(header);
 		
 		// Write checksum Checksum
+		long startHash = System.nanoTime();
 		MessageDigest md = null;
 		try {
 			md = MessageDigest.getInstance("SHA-256");
@@ -136,38 +275,47 @@ public class PwDbV3Output extends PwDbOutput {
 			throw new PwDbOutputException("SHA-256 not implemented here.");
 		}
 		
-		NullOutputStream nos;
-		nos = new NullOutputStream();
-		DigestOutputStream dos = new DigestOutputStream(nos, md);
-		BufferedOutputStream bos = new BufferedOutputStream(dos);
-		try {
-			outputPlanGroupAndEntries(bos);
-			bos.flush();
-			bos.close();
-		} catch (IOException e) {
-			throw new PwDbOutputException("Failed to generate checksum.");
+		long hashed;
+		if ( streaming ) {
+			DigestingOutputStream dos = new DigestingOutputStream(md);
+			outputPlanGroupAndEntries(snapshot, dos);
+			hashed = dos.bytes;
+		} else {
+			md.update(mPlain.getBuffer(), 0, mPlain.size());
+			hashed = mPlain.size();
 		}
 
 		header.contentsHash = md.digest();
+		logStage(IStageTimeLogger.STAGE_HASH, startHash, System.nanoTime(), hashed);
 		
-		// Output header
+		return header;
+	}
+	
+	private void writeHeader(OutputStream os, PwDbHeaderV3 header) throws PwDbOutputException {
 		PwDbHeaderOutputV3 pho = new PwDbHeaderOutputV3(header, os);
 		try {
 			pho.output();
 		} catch (IOException e) {
 			throw new PwDbOutputException("Failed to output the header.");
 		}
-
-		return header;
 	}
 	
 	public void outputPlanGroupAndEntries(OutputStream os) throws PwDbOutputException  {
+		outputPlanGroupAndEntries(prepForOutput(), os);
+	}
+	
+	private void outputPlanGroupAndEntries(PwDatabaseV3Snapshot snapshot, OutputStream os) throws PwDbOutputException  {
 		//long size = 0;
 		
+		EncodedRecordCache cache = mPM.getRecordCache();
+		if ( cache != null ) {
+			outputCachedGroupAndEntries(snapshot, cache, os);
+			return;
+		}
+		
 		// Groups
-		List<PwGroupV3> groups = mPM.getGroups();
-		for ( int i = 0; i < groups.size(); i++ ) {
-			PwGroupV3 pg = (PwGroupV3) groups.get(i);
+		for ( int i = 0; i < snapshot.getGroupCount(); i++ ) {
+			PwGroupV3 pg = snapshot.getGroupState(i);
 			PwGroupOutputV3 pgo = new PwGroupOutputV3(pg, os);
 			try {
 				pgo.output();
@@ -177,8 +325,8 @@ public class PwDbV3Output extends PwDbOutput {
 		}
 		
 		// Entries
-		for (int i = 0; i < mPM.entries.size(); i++ ) {
-			PwEntryV3 pe = (PwEntryV3) mPM.entries.get(i);
+		for (int i = 0; i < snapshot.getEntryCount(); i++ ) {
+			PwEntryV3 pe = snapshot.getEntryState(i);
 			PwEntryOutputV3 peo = new PwEntryOutputV3(pe, os);
 			try {
 				peo.output();
@@ -188,25 +336,140 @@ public class PwDbV3Output extends PwDbOutput {
 		}
 	}
 	
-	private void sortGroupsForOutput() {
-		List<PwGroupV3> groupList = new ArrayList<PwGroupV3>();
+	private void outputCachedGroupAndEntries(PwDatabaseV3Snapshot snapshot, EncodedRecordCache cache, OutputStream os) throws PwDbOutputException {
+		cache.beginSave();
+		
+		for ( int i = 0; i < snapshot.getGroupCount(); i++ ) {
+			try {
+				cache.writeGroup(snapshot.getGroup(i), snapshot.getGroupState(i), os);
+			} catch (IOException e) {
+				throw new PwDbOutputException("Failed to output a group: " + e.getMessage());
+			}
+		}
+		
+		for ( int i = 0; i < snapshot.getEntryCount(); i++ ) {
+			try {
+				cache.writeEntry(snapshot.getEntry(i), snapshot.getEntryState(i), os);
+			} catch (IOException e) {
+				throw new PwDbOutputException("Failed to output an entry.");
+			}
+		}
+		
+		cache.endSave();
+	}
+	
+	/** Feeds everything written to a digest without keeping it */
+	private static class DigestingOutputStream extends OutputStream {
+		private final MessageDigest mDigest;
+		long bytes = 0;
+		
+		DigestingOutputStream(MessageDigest digest) {
+			mDigest = digest;
+		}
 		
-		// Rebuild list according to coalation sorting order removing any orphaned groups
-		List<PwGroupV3> roots = mPM.getGrpRoots();
-		for ( int i = 0; i < roots.size(); i++ ) {
-			sortGroup((PwGroupV3) roots.get(i), groupList);
+		@Override
+		public void write(int oneByte) {
+			mDigest.update((byte) oneByte);
+			bytes++;
 		}
 		
-		mPM.setGroups(groupList);
+		@Override
+		public void write(byte[] buffer, int offset, int count) {
+			mDigest.update(buffer, offset, count);
+			bytes += count;
+		}
 	}
 	
-	private void sortGroup(PwGroupV3 group, List<PwGroupV3> groupList) {
-		// Add current group
-		groupList.add(group);
+	/** Encrypts everything written in chunks of ENCRYPT_BLOCK_SIZE to os,
+	 * call finish() at the end. Times encrypting and writing separately.
+	 */
+	private static class EncryptingOutputStream extends OutputStream {
+		private final Cipher mCipher;
+		private final OutputStream mOS;
+		private final byte[] mBuffer = new byte[ENCRYPT_BLOCK_SIZE];
+		private final byte[] mOut;
+		private int mBufferLength = 0;
+		long plainBytes = 0;
+		long encryptNanos = 0;
+		long writeNanos = 0;
+		
+		EncryptingOutputStream(Cipher cipher, OutputStream os) {
+			mCipher = cipher;
+			mOS = os;
+			mOut = new byte[ENCRYPT_BLOCK_SIZE + 2 * cipher.getBlockSize()];
+		}
+		
+		@Override
+		public void write(int oneByte) throws IOException {
+			mBuffer[mBufferLength++] = (byte) oneByte;
+			plainBytes++;
+			if ( mBufferLength == mBuffer.length ) {
+				encrypt(mBuffer, 0, mBufferLength);
+				mBufferLength = 0;
+			}
+		}
+		
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException {
+			plainBytes += count;
+			while ( count > 0 ) {
+				if ( mBufferLength == 0 && count >= ENCRYPT_BLOCK_SIZE ) {
+					// Large writes, e.g. the whole buffered plaintext, skip the copy
+					encrypt(buffer, offset, ENCRYPT_BLOCK_SIZE);
+					offset += ENCRYPT_BLOCK_SIZE;
+					count -= ENCRYPT_BLOCK_SIZE;
+					continue;
+				}
+				
+				int len = Math.min(count, mBuffer.length - mBufferLength);
+				System.arraycopy(buffer, offset, mBuffer, mBufferLength, len);
+				mBufferLength += len;
+				offset += len;
+				count -= len;
+				if ( mBufferLength == mBuffer.length ) {
+					encrypt(mBuffer, 0, mBufferLength);
+					mBufferLength = 0;
+				}
+			}
+		}
+		
+		public void finish() throws IOException {
+			if ( mBufferLength > 0 ) {
+				encrypt(mBuffer, 0, mBufferLength);
+				mBufferLength = 0;
+			}
+			
+			long start = System.nanoTime();
+			int outLen;
+			try {
+				outLen = mCipher.doFinal(mOut, 0);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Encryption failed: " + e.getMessage());
+			}
+			long mid = System.nanoTime();
+			mOS.write(mOut, 0, outLen);
+			writeNanos += System.nanoTime() - mid;
+			encryptNanos += mid - start;
+		}
+		
+		private void encrypt(byte[] buffer, int offset, int count) throws IOException {
+			long start = System.nanoTime();
+			int outLen;
+			try {
+				outLen = mCipher.update(buffer, offset, count, mOut, 0);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Encryption failed: " + e.getMessage());
+			}
+			long mid = System.nanoTime();
+			mOS.write(mOut, 0, outLen);
+			writeNanos += System.nanoTime() - mid;
+			encryptNanos += mid - start;
+		}
 		
-		// Recurse over children
-		for ( int i = 0; i < group.childGroups.size(); i++ ) {
-			sortGroup((PwGroupV3) group.childGroups.get(i), groupList);
+		public void wipe() {
+			Arrays.fill(mBuffer, (byte) 0);
+			Arrays.fill(mOut, (byte) 0);
+			mBufferLength = 0;
 		}
 	}
 }
@@ -22,6 +22,7 @@ package com.keepassdroid.database.save;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import com.keepassdroid.database.AttachmentStore;
 import com.keepassdroid.database.PwEntryV3;
 import com.keepassdroid.stream.LEDataOutputStream;
 import com.keepassdroid.utils.Types;
@@ -89,17 +90,17 @@ public class PwEntryOutputV3 {
 		// Title
 		//byte[] title = mPE.title.getBytes("UTF-8");
 		mOS.write(TITLE_FIELD_TYPE);
-		int titleLen = Types.writeCString(mPE.title, mOS);
+		int titleLen = Types.writeCString(mPE.getTitle(), mOS);
 		outputBytes += titleLen;
 
 		// URL
 		mOS.write(URL_FIELD_TYPE);
-		int urlLen = Types.writeCString(mPE.url, mOS);
+		int urlLen = Types.writeCString(mPE.getUrl(), mOS);
 		outputBytes += urlLen;
 		
 		// Username
 		mOS.write(USERNAME_FIELD_TYPE);
-		int userLen = Types.writeCString(mPE.username, mOS);
+		int userLen = Types.writeCString(mPE.getUsername(), mOS);
 		outputBytes += userLen;
 		
 		// Password
@@ -112,7 +113,7 @@ public class PwEntryOutputV3 {
 
 		// Additional
 		mOS.write(ADDITIONAL_FIELD_TYPE);
-		int addlLen = Types.writeCString(mPE.additional, mOS);
+		int addlLen = Types.writeCString(mPE.getNotes(), mOS);
 		outputBytes += addlLen;
 
 		// Create date
@@ -129,11 +130,17 @@ public class PwEntryOutputV3 {
 	
 		// Binary desc
 		mOS.write(BINARY_DESC_FIELD_TYPE);
-		int descLen = Types.writeCString(mPE.binaryDesc, mOS);
+		int descLen = Types.writeCString(mPE.getBinaryDesc(), mOS);
 		outputBytes += descLen;
 	
 		// Binary data
-		int dataLen = writeByteArray(mPE.getBinaryData());
+		int dataLen;
+		AttachmentStore.Attachment attachment = mPE.getBinaryAttachment();
+		if ( attachment != null ) {
+			dataLen = writeAttachment(attachment);
+		} else {
+			dataLen = writeByteArray(mPE.getBinaryData());
+		}
 		outputBytes += dataLen;
 
 		// End
@@ -158,6 +165,15 @@ public class PwEntryOutputV3 {
 
 	}
 	
+	private int writeAttachment(AttachmentStore.Attachment attachment) throws IOException {
+		int dataLen = attachment.length();
+		mOS.write(BINARY_DATA_FIELD_TYPE);
+		mOS.write(LEDataOutputStream.writeIntBuf(dataLen));
+		attachment.writeTo(mOS);
+		
+		return dataLen;
+	}
+	
 	private void writeDate(byte[] type, byte[] date) throws IOException {
 		mOS.write(type);
 		mOS.write(DATE_FIELD_SIZE);
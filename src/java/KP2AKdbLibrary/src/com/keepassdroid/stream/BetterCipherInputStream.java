@@ -24,6 +24,7 @@ import java.security.GeneralSecurityException;
 
 import javax.crypto.Cipher;
 import javax.crypto.NullCipher;
+import javax.crypto.ShortBufferException;
 
 /**
  * This class wraps an {@code InputStream} and a cipher so that {@code read()}
@@ -41,7 +42,8 @@ public class BetterCipherInputStream extends FilterInputStream {
     private static final int I_DEFAULT_BUFFER_SIZE = 8 * 1024;
     private final byte[] i_buffer;
     private int index; // index of the bytes to return from o_buffer
-    private byte[] o_buffer;
+    private byte[] o_buffer; // reused, only grows
+    private int o_length; // number of bytes in o_buffer
     private boolean finished;
 
     /**
@@ -97,31 +99,49 @@ public class BetterCipherInputStream extends FilterInputStream {
     @Override
     public int read() throws IOException {
         if (finished) {
-            return ((o_buffer == null) || (index == o_buffer.length))
+            return (index == o_length)
                             ? -1
                             : o_buffer[index++] & 0xFF;
         }
-        if ((o_buffer != null) && (index < o_buffer.length)) {
+        if (index < o_length) {
             return o_buffer[index++] & 0xFF;
         }
         index = 0;
-        o_buffer = null;
+        o_length = 0;
         int num_read;
-        while (o_buffer == null) {
+        while (o_length == 0) {
             if ((num_read = in.read(i_buffer)) == -1) {
                 try {
-                    o_buffer = cipher.doFinal();
+                    ensureOutputBuffer(cipher.getOutputSize(0));
+                    o_length = cipher.doFinal(o_buffer, 0);
                 } catch (Exception e) {
-                    throw new IOException(e.getMessage());
+                    // The cipher is finalized even when doFinal fails
+                    finished = true;
+                    IOException ioe = new IOException(e.getMessage());
+                    ioe.initCause(e);
+                    throw ioe;
                 }
                 finished = true;
                 break;
             }
-            o_buffer = cipher.update(i_buffer, 0, num_read);
+            ensureOutputBuffer(cipher.getOutputSize(num_read));
+            try {
+                o_length = cipher.update(i_buffer, 0, num_read, o_buffer, 0);
+            } catch (ShortBufferException e) {
+                IOException ioe = new IOException(e.getMessage());
+                ioe.initCause(e);
+                throw ioe;
+            }
         }
         return read();
     }
 
+    private void ensureOutputBuffer(int size) {
+        if ((o_buffer == null) || (o_buffer.length < size)) {
+            o_buffer = new byte[size];
+        }
+    }
+
     /**
      * Reads the next {@code b.length} bytes from this input stream into buffer
      * {@code b}.
@@ -165,14 +185,25 @@ public class BetterCipherInputStream extends FilterInputStream {
         }
 
         int read_b;
-        int i;
-        for (i=0; i<len; i++) {
+        int i = 0;
+        while (i < len) {
+            if (index < o_length) {
+                // Copy as much as possible of the already processed output at once
+                int count = Math.min(len - i, o_length - index);
+                if (b != null) {
+                    System.arraycopy(o_buffer, index, b, off + i, count);
+                }
+                index += count;
+                i += count;
+                continue;
+            }
             if ((read_b = read()) == -1) {
                 return (i == 0) ? -1 : i;
             }
             if (b != null) {
                 b[off+i] = (byte) read_b;
             }
+            i++;
         }
         return i;
     }
@@ -225,6 +256,11 @@ public class BetterCipherInputStream extends FilterInputStream {
     @Override
     public void close() throws IOException {
         in.close();
+        if (finished) {
+            // read() already called doFinal(), a second one fails on
+            // ciphers that release their state, like the native AES
+            return;
+        }
         try {
             cipher.doFinal();
         } catch (GeneralSecurityException ignore) {
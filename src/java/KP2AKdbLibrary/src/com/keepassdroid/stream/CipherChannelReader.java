@@ -0,0 +1,180 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Channel counterpart of {@code BetterCipherInputStream}. The buffers are
+ * direct and allocated once, and data is decrypted straight into direct
+ * buffers passed to read() when they are large enough. With the native AES
+ * cipher the data never passes through the Java heap.
+ */
+public class CipherChannelReader implements ReadableByteChannel {
+	
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	private static final byte[] ZEROS = new byte[4096];
+	
+	private final ReadableByteChannel source;
+	private final Cipher cipher;
+	private final ByteBuffer input;
+	// Decrypted bytes not returned yet, ready to be read from
+	private ByteBuffer output;
+	private boolean finished = false;
+	// A non-blocking source had nothing to read
+	private boolean starved = false;
+	private boolean open = true;
+	
+	public CipherChannelReader(ReadableByteChannel source, Cipher cipher) {
+		this(source, cipher, DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * @param source Channel to read the cipher text from.
+	 * @param cipher Cipher initialized for the operation.
+	 * @param bufferSize Number of bytes read from the source at once.
+	 */
+	public CipherChannelReader(ReadableByteChannel source, Cipher cipher, int bufferSize) {
+		this.source = source;
+		this.cipher = cipher;
+		input = ByteBuffer.allocateDirect(bufferSize);
+		output = ByteBuffer.allocateDirect(cipher.getOutputSize(bufferSize));
+		output.limit(0);
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		if ( ! open ) {
+			throw new ClosedChannelException();
+		}
+		
+		int total = 0;
+		while ( dst.hasRemaining() ) {
+			if ( output.hasRemaining() ) {
+				int count = Math.min(dst.remaining(), output.remaining());
+				ByteBuffer chunk = output.duplicate();
+				chunk.limit(chunk.position() + count);
+				dst.put(chunk);
+				output.position(output.position() + count);
+				total += count;
+				continue;
+			}
+			
+			if ( finished ) {
+				break;
+			}
+			
+			total += process(dst);
+			if ( starved && ! output.hasRemaining() ) {
+				break;
+			}
+		}
+		
+		if ( total == 0 && finished && ! output.hasRemaining() && dst.hasRemaining() ) {
+			return -1;
+		}
+		
+		return total;
+	}
+	
+	/** Reads and decrypts the next block of input.
+	 * @return the number of bytes decrypted directly into dst
+	 */
+	private int process(ByteBuffer dst) throws IOException {
+		input.clear();
+		int read = source.read(input);
+		input.flip();
+		starved = read == 0;
+		
+		int needed = cipher.getOutputSize(read == -1 ? 0 : input.remaining());
+		ByteBuffer target;
+		if ( dst.isDirect() && dst.remaining() >= needed ) {
+			target = dst;
+		} else {
+			if ( output.capacity() < needed ) {
+				wipe(output);
+				output = ByteBuffer.allocateDirect(needed);
+			}
+			output.clear();
+			target = output;
+		}
+		
+		int count = 0;
+		boolean done = false;
+		try {
+			if ( read == -1 ) {
+				try {
+					count = cipher.doFinal(input, target);
+				} finally {
+					// A failed doFinal() resets the cipher, it can't be called again
+					finished = true;
+				}
+			} else {
+				count = cipher.update(input, target);
+			}
+			done = true;
+		} catch (GeneralSecurityException e) {
+			IOException ioe = new IOException(e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		} finally {
+			if ( ! done && target == output ) {
+				// Don't hand out whatever the failed call left in the buffer
+				output.clear();
+				output.limit(0);
+			}
+		}
+		
+		if ( target == output ) {
+			output.flip();
+			return 0;
+		}
+		
+		return count;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public void close() throws IOException {
+		if ( ! open ) {
+			return;
+		}
+		
+		open = false;
+		wipe(input);
+		wipe(output);
+		source.close();
+	}
+	
+	private static void wipe(ByteBuffer buffer) {
+		buffer.clear();
+		while ( buffer.hasRemaining() ) {
+			buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+		}
+		buffer.clear();
+		buffer.limit(0);
+	}
+
+}
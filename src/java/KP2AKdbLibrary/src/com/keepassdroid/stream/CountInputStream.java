@@ -29,6 +29,11 @@ public class CountInputStream extends InputStream {
 	public CountInputStream(InputStream is) {
 		this.is = is;
 	}
+	
+	/** Bytes read or skipped so far */
+	public long getCount() {
+		return bytes;
+	}
 
 	@Override
 	public int available() throws IOException {
@@ -52,20 +57,25 @@ public class CountInputStream extends InputStream {
 
 	@Override
 	public int read() throws IOException {
-		bytes++;
-		return is.read();
+		int b = is.read();
+		if ( b != -1 ) {
+			bytes++;
+		}
+		return b;
 	}
 
 	@Override
 	public int read(byte[] buffer, int offset, int length) throws IOException {
-		bytes += length;
-		return is.read(buffer, offset, length);
+		int read = is.read(buffer, offset, length);
+		if ( read > 0 ) {
+			bytes += read;
+		}
+		return read;
 	}
 
 	@Override
 	public int read(byte[] buffer) throws IOException {
-		bytes += buffer.length;
-		return is.read(buffer);
+		return read(buffer, 0, buffer.length);
 	}
 
 	@Override
@@ -75,8 +85,11 @@ public class CountInputStream extends InputStream {
 
 	@Override
 	public long skip(long byteCount) throws IOException {
-		bytes += byteCount;
-		return is.skip(byteCount);
+		long skipped = is.skip(byteCount);
+		if ( skipped > 0 ) {
+			bytes += skipped;
+		}
+		return skipped;
 	}
 
 }
@@ -29,6 +29,11 @@ public class CountOutputStream extends OutputStream {
 	public CountOutputStream(OutputStream os) {
 		this.os = os;
 	}
+	
+	/** Bytes written so far */
+	public long getCount() {
+		return bytes;
+	}
 
 
 	@Override
@@ -0,0 +1,47 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.stream;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/** ByteArrayOutputStream which gives access to its backing array, so the
+ * contents can be processed without a copy and wiped afterwards.
+ */
+public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+	public ExposedByteArrayOutputStream() {
+		super();
+	}
+	
+	public ExposedByteArrayOutputStream(int size) {
+		super(size);
+	}
+	
+	/** Backing array, only the first size() bytes are valid */
+	public byte[] getBuffer() {
+		return buf;
+	}
+	
+	/** Zeroes the backing array and resets the stream */
+	public void wipe() {
+		Arrays.fill(buf, (byte) 0);
+		count = 0;
+	}
+	
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.stream;
+
+import java.io.IOException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** A reusable block of the hashed block streams. Every block has its own
+ * digest, so one block can be hashed on a worker thread while the stream
+ * reads or fills the next one.
+ */
+class HashedBlock {
+	
+	static final int HASH_SIZE = 32;
+	
+	private static ExecutorService executor;
+	
+	byte[] data;
+	int length;
+	long index;
+	/** Hash read from the stream, only used by HashedBlockInputStream */
+	final byte[] storedHash = new byte[HASH_SIZE];
+	final byte[] computedHash = new byte[HASH_SIZE];
+	/** Read error, reported when the block is reached */
+	IOException error;
+	
+	private MessageDigest md;
+	private FutureTask<Void> task;
+	
+	HashedBlock(int capacity) {
+		data = new byte[capacity];
+	}
+	
+	void ensureCapacity(int size) {
+		if ( data.length < size ) {
+			data = new byte[size];
+		}
+	}
+	
+	void computeHash() throws IOException {
+		if ( md == null ) {
+			try {
+				md = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("SHA-256 not implemented here.");
+			}
+		}
+		
+		md.update(data, 0, length);
+		try {
+			md.digest(computedHash, 0, HASH_SIZE);
+		} catch (DigestException e) {
+			throw new IOException("Hash wrong size");
+		}
+	}
+	
+	void submitHash() {
+		task = new FutureTask<Void>(new Callable<Void>() {
+			public Void call() throws Exception {
+				computeHash();
+				return null;
+			}
+		});
+		getExecutor().execute(task);
+	}
+	
+	/** Waits for a hash started by submitHash() */
+	void awaitHash() throws IOException {
+		if ( task == null ) {
+			return;
+		}
+		
+		FutureTask<Void> pending = task;
+		task = null;
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof IOException ) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Hashing failed: " + cause);
+		}
+	}
+	
+	private static synchronized ExecutorService getExecutor() {
+		if ( executor == null ) {
+			// The stream thread does the reading or writing, leave it a core
+			int threads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "BlockHash");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		
+		return executor;
+	}
+
+}
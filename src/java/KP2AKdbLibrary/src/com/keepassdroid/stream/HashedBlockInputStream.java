@@ -21,21 +21,25 @@ package com.keepassdroid.stream;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 
 public class HashedBlockInputStream extends InputStream {
 	
-	private final static int HASH_SIZE = 32;
+	private final static int HASH_SIZE = HashedBlock.HASH_SIZE;
 
 	private LEDataInputStream baseStream;
 	private int bufferPos = 0;
+	private int bufferLength = 0;
 	private byte[] buffer = new byte[0];
 	private long bufferIndex = 0;
 	private boolean atEnd = false;
 	
+	// Blocks are reused, in parallel mode the next one is read while the current one is hashed
+	private final boolean parallel;
+	private final HashedBlock[] blocks = new HashedBlock[] { new HashedBlock(0), new HashedBlock(0) };
+	private HashedBlock readAhead;
+	
 	
 	@Override
 	public int read(byte[] b) throws IOException {
@@ -43,7 +47,16 @@ public class HashedBlockInputStream extends InputStream {
 	}
 
 	public HashedBlockInputStream(InputStream is) {
+		this(is, false);
+	}
+	
+	/**
+	 * @param parallel Verify each block on a worker thread while the next
+	 * block is read. No data of a block is returned before it is verified.
+	 */
+	public HashedBlockInputStream(InputStream is, boolean parallel) {
 		baseStream = new LEDataInputStream(is);
+		this.parallel = parallel;
 	}
 	
 	@Override
@@ -53,7 +66,7 @@ public class HashedBlockInputStream extends InputStream {
 		int remaining = length;
 		
 		while ( remaining > 0 ) {
-			if ( bufferPos == buffer.length ) {
+			if ( bufferPos == bufferLength ) {
 				// Get more from the source into the buffer
 				if ( ! ReadHashedBlock() ) {
 					return length - remaining;
@@ -62,7 +75,7 @@ public class HashedBlockInputStream extends InputStream {
 			}
 
 			// Copy from buffer out
-			int copyLen = Math.min(buffer.length - bufferPos, remaining);
+			int copyLen = Math.min(bufferLength - bufferPos, remaining);
 			
 			System.arraycopy(buffer, bufferPos, b, offset, copyLen);
 			
@@ -83,15 +96,73 @@ public class HashedBlockInputStream extends InputStream {
 		if ( atEnd ) return false;
 		
 		bufferPos = 0;
+		bufferLength = 0;
+		
+		HashedBlock block;
+		if ( parallel ) {
+			if ( readAhead == null ) {
+				readAhead = readAhead(blocks[0]);
+			}
+			block = readAhead;
+			readAhead = null;
+			
+			// The other block was consumed, read the next one into it
+			if ( block.error == null && block.length > 0 ) {
+				readAhead = readAhead(block == blocks[0] ? blocks[1] : blocks[0]);
+			}
+			
+			block.awaitHash();
+			if ( block.error != null ) {
+				IOException error = block.error;
+				block.error = null;
+				throw error;
+			}
+		} else {
+			block = blocks[0];
+			readBlock(block);
+			if ( block.length > 0 ) {
+				block.computeHash();
+			}
+		}
+		
+		if ( block.length == 0 ) {
+			atEnd = true;
+			return false;
+		}
 		
+		if ( ! Arrays.equals(block.storedHash, block.computedHash) ) {
+			throw new IOException("Hashes didn't match.");
+		}
+		
+		buffer = block.data;
+		bufferLength = block.length;
+
+		return true;
+	}
+	
+	private HashedBlock readAhead(HashedBlock block) {
+		block.error = null;
+		try {
+			readBlock(block);
+			if ( block.length > 0 ) {
+				block.submitHash();
+			}
+		} catch (IOException e) {
+			block.error = e;
+		}
+		
+		return block;
+	}
+	
+	/** Reads the next block, a length of 0 is the terminating block */
+	private void readBlock(HashedBlock block) throws IOException {
 		long index = baseStream.readUInt();
 		if ( index != bufferIndex ) {
 			throw new IOException("Invalid data format");
 		}
 		bufferIndex++;
 		
-		byte[] storedHash = baseStream.readBytes(32);
-		if ( storedHash == null || storedHash.length != HASH_SIZE) {
+		if ( readFully(block.storedHash, HASH_SIZE) != HASH_SIZE ) {
 			throw new IOException("Invalid data format");
 		}
 		
@@ -102,38 +173,33 @@ public class HashedBlockInputStream extends InputStream {
 		
 		if ( bufferSize == 0 ) {
 			for (int hash = 0; hash < HASH_SIZE; hash++) {
-				if ( storedHash[hash] != 0 ) {
+				if ( block.storedHash[hash] != 0 ) {
 					throw new IOException("Invalid data format");
 				}
 			}
 				
-			atEnd = true;
-			buffer = new byte[0];
-			return false;
+			block.length = 0;
+			return;
 		}
 		
-		buffer = baseStream.readBytes(bufferSize);
-		if ( buffer == null || buffer.length != bufferSize ) {
+		block.ensureCapacity(bufferSize);
+		if ( readFully(block.data, bufferSize) != bufferSize ) {
 			throw new IOException("Invalid data format");
 		}
-		
-		MessageDigest md = null;
-		try {
-			md = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new IOException("SHA-256 not implemented here.");
-		}
-		
-		byte[] computedHash = md.digest(buffer);
-		if ( computedHash == null || computedHash.length != HASH_SIZE ) {
-			throw new IOException("Hash wrong size");
+		block.length = bufferSize;
+	}
+	
+	private int readFully(byte[] b, int length) throws IOException {
+		int count = 0;
+		while ( count < length ) {
+			int read = baseStream.read(b, count, length - count);
+			if ( read == -1 ) {
+				break;
+			}
+			count += read;
 		}
 		
-		if ( ! Arrays.equals(storedHash, computedHash) ) {
-			throw new IOException("Hashes didn't match.");
-		}
-
-		return true;
+		return count;
 	}
 
 	@Override
@@ -145,11 +211,11 @@ public class HashedBlockInputStream extends InputStream {
 	public int read() throws IOException {
 		if ( atEnd ) return -1;
 		
-		if ( bufferPos == buffer.length ) {
+		if ( bufferPos == bufferLength ) {
 			if ( ! ReadHashedBlock() ) return -1;
 		}
 		
-		int output = buffer[bufferPos];
+		int output = buffer[bufferPos] & 0xFF;
 		bufferPos++;
 		
 		return output;
@@ -21,8 +21,6 @@ package com.keepassdroid.stream;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 public class HashedBlockOutputStream extends OutputStream {
 
@@ -33,29 +31,51 @@ public class HashedBlockOutputStream extends OutputStream {
 	private byte[] buffer;
 	private long bufferIndex = 0;
 	
+	// Blocks are reused, in parallel mode one is hashed while the other is filled
+	private boolean parallel;
+	private int bufferSize;
+	private HashedBlock[] blocks = new HashedBlock[2];
+	private HashedBlock filling;
+	private HashedBlock pending;
+	
 	public HashedBlockOutputStream(OutputStream os) {
-		init(os, DEFAULT_BUFFER_SIZE);
+		init(os, DEFAULT_BUFFER_SIZE, false);
 	}
 	
 	public HashedBlockOutputStream(OutputStream os, int bufferSize) {
+		this(os, bufferSize, false);
+	}
+	
+	/**
+	 * @param parallel Hash each full block on a worker thread while the next
+	 * block is filled. The output is the same as without.
+	 */
+	public HashedBlockOutputStream(OutputStream os, int bufferSize, boolean parallel) {
 		if ( bufferSize <= 0 ) {
 			bufferSize = DEFAULT_BUFFER_SIZE;
 		}
 		
-		init(os, bufferSize);
+		init(os, bufferSize, parallel);
 	}
 	
-	private void init(OutputStream os, int bufferSize) {
+	private void init(OutputStream os, int bufferSize, boolean parallel) {
 		baseStream = new LEDataOutputStream(os);
-		buffer = new byte[bufferSize];
+		this.bufferSize = bufferSize;
+		this.parallel = parallel;
+		blocks[0] = new HashedBlock(bufferSize);
+		filling = blocks[0];
+		buffer = filling.data;
 		
 	}
 
 	@Override
 	public void write(int oneByte) throws IOException {
-		byte[] buf = new byte[1];
-		buf[0] = (byte)oneByte;
-		write(buf, 0, 1);
+		if ( bufferPos == buffer.length ) {
+			WriteHashedBlock();
+		}
+		
+		buffer[bufferPos] = (byte)oneByte;
+		bufferPos++;
 	}
 
 	@Override
@@ -96,49 +116,64 @@ public class HashedBlockOutputStream extends OutputStream {
 	}
 
 	private void WriteHashedBlock() throws IOException {
-		baseStream.writeUInt(bufferIndex);
-		bufferIndex++;
-		
-		if ( bufferPos > 0 ) {
-			MessageDigest md = null;
-			try {
-				md = MessageDigest.getInstance("SHA-256");
-			} catch (NoSuchAlgorithmException e) {
-				throw new IOException("SHA-256 not implemented here.");
-			}
+		if ( bufferPos == 0 ) {
+			writePending();
 			
-			byte[] hash;
-			md.update(buffer, 0, bufferPos);
-			hash = md.digest();
-			/*
-			if ( bufferPos == buffer.length) {
-				hash = md.digest(buffer);
-			} else {
-				byte[] b = new byte[bufferPos];
-				System.arraycopy(buffer, 0, b, 0, bufferPos);
-				hash = md.digest(b);
-			}
-			*/
+			baseStream.writeUInt(bufferIndex);
+			bufferIndex++;
 			
-			baseStream.write(hash);
-
-		} else {
 			// Write 32-bits of zeros
 			baseStream.writeLong(0L);
 			baseStream.writeLong(0L);
 			baseStream.writeLong(0L);
 			baseStream.writeLong(0L);
+			
+			baseStream.writeInt(0);
+			return;
 		}
 		
-		baseStream.writeInt(bufferPos);
+		HashedBlock block = filling;
+		block.index = bufferIndex;
+		block.length = bufferPos;
+		bufferIndex++;
 		
-		if ( bufferPos > 0 ) {
-			baseStream.write(buffer, 0, bufferPos);
+		if ( parallel ) {
+			// Write the previous block while this one is hashed
+			block.submitHash();
+			writePending();
+			pending = block;
+			
+			if ( blocks[1] == null ) {
+				blocks[1] = new HashedBlock(bufferSize);
+			}
+			filling = block == blocks[0] ? blocks[1] : blocks[0];
+		} else {
+			block.computeHash();
+			writeBlock(block);
 		}
 		
+		buffer = filling.data;
 		bufferPos = 0;
 		
 	}
+	
+	private void writePending() throws IOException {
+		if ( pending == null ) {
+			return;
+		}
+		
+		HashedBlock block = pending;
+		pending = null;
+		block.awaitHash();
+		writeBlock(block);
+	}
+	
+	private void writeBlock(HashedBlock block) throws IOException {
+		baseStream.writeUInt(block.index);
+		baseStream.write(block.computedHash);
+		baseStream.writeInt(block.length);
+		baseStream.write(block.data, 0, block.length);
+	}
 
 	@Override
 	public void write(byte[] buffer) throws IOException {
@@ -0,0 +1,169 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.utils;
+
+import java.util.Arrays;
+
+/** Open addressing hash map from primitive int keys to objects.
+ * Keys are never boxed, lookups do not allocate.
+ *
+ * @param <V> value type
+ */
+public class IntObjectMap<V> {
+	
+	private static final int MIN_CAPACITY = 16;
+	
+	private int[] mKeys;
+	private Object[] mValues;
+	private boolean[] mUsed;
+	private int mSize = 0;
+	private int mMask;
+	
+	public IntObjectMap() {
+		this(MIN_CAPACITY);
+	}
+	
+	public IntObjectMap(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+	
+	public int size() {
+		return mSize;
+	}
+	
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+	
+	public boolean containsKey(int key) {
+		return mUsed[indexOf(key)];
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int i = indexOf(key);
+		return mUsed[i] ? (V) mValues[i] : null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		int i = indexOf(key);
+		if ( mUsed[i] ) {
+			V old = (V) mValues[i];
+			mValues[i] = value;
+			return old;
+		}
+		
+		mKeys[i] = key;
+		mValues[i] = value;
+		mUsed[i] = true;
+		mSize++;
+		
+		// Keep the load factor at or below 1/2
+		if ( mSize * 2 > mKeys.length ) {
+			rehash(mKeys.length * 2);
+		}
+		
+		return null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int i = indexOf(key);
+		if ( ! mUsed[i] ) {
+			return null;
+		}
+		
+		V old = (V) mValues[i];
+		mSize--;
+		
+		// Shift following entries of the probe sequence back into the hole
+		int hole = i;
+		int j = i;
+		while ( true ) {
+			j = (j + 1) & mMask;
+			if ( ! mUsed[j] ) {
+				break;
+			}
+			
+			int home = hash(mKeys[j]) & mMask;
+			if ( ((j - home) & mMask) >= ((j - hole) & mMask) ) {
+				mKeys[hole] = mKeys[j];
+				mValues[hole] = mValues[j];
+				hole = j;
+			}
+		}
+		mUsed[hole] = false;
+		mValues[hole] = null;
+		
+		return old;
+	}
+	
+	public void clear() {
+		Arrays.fill(mUsed, false);
+		Arrays.fill(mValues, null);
+		mSize = 0;
+	}
+	
+	private int indexOf(int key) {
+		int i = hash(key) & mMask;
+		while ( mUsed[i] && mKeys[i] != key ) {
+			i = (i + 1) & mMask;
+		}
+		
+		return i;
+	}
+	
+	private static int hash(int key) {
+		// Spread the bits, group ids are often random but may also be sequential
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while ( capacity < expectedSize * 2 ) {
+			capacity <<= 1;
+		}
+		
+		return capacity;
+	}
+	
+	private void allocate(int capacity) {
+		mKeys = new int[capacity];
+		mValues = new Object[capacity];
+		mUsed = new boolean[capacity];
+		mMask = capacity - 1;
+	}
+	
+	private void rehash(int capacity) {
+		int[] oldKeys = mKeys;
+		Object[] oldValues = mValues;
+		boolean[] oldUsed = mUsed;
+		
+		allocate(capacity);
+		for ( int i = 0; i < oldKeys.length; i++ ) {
+			if ( oldUsed[i] ) {
+				int j = indexOf(oldKeys[i]);
+				mKeys[j] = oldKeys[i];
+				mValues[j] = oldValues[i];
+				mUsed[j] = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.utils;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import com.keepassdroid.stream.LEDataInputStream;
+
+/** Open addressing hash map from 16 byte UUIDs to objects.
+ * Each key is stored as two primitive longs, neither the key bytes nor a
+ * UUID object are kept or allocated for lookups.
+ *
+ * @param <V> value type
+ */
+public class UuidObjectMap<V> {
+	
+	private static final int MIN_CAPACITY = 16;
+	
+	private long[] mHigh;
+	private long[] mLow;
+	private Object[] mValues;
+	private boolean[] mUsed;
+	private int mSize = 0;
+	private int mMask;
+	
+	public UuidObjectMap() {
+		this(MIN_CAPACITY);
+	}
+	
+	public UuidObjectMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while ( capacity < expectedSize * 2 ) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+	
+	public int size() {
+		return mSize;
+	}
+	
+	public boolean containsKey(byte[] uuid) {
+		return mUsed[indexOf(high(uuid), low(uuid))];
+	}
+	
+	public V get(byte[] uuid) {
+		return get(high(uuid), low(uuid));
+	}
+	
+	public V get(UUID uuid) {
+		// Types.UUIDtoBytes stores both halves little endian
+		return get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+	
+	@SuppressWarnings("unchecked")
+	private V get(long high, long low) {
+		int i = indexOf(high, low);
+		return mUsed[i] ? (V) mValues[i] : null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V put(byte[] uuid, V value) {
+		long high = high(uuid);
+		long low = low(uuid);
+		int i = indexOf(high, low);
+		if ( mUsed[i] ) {
+			V old = (V) mValues[i];
+			mValues[i] = value;
+			return old;
+		}
+		
+		mHigh[i] = high;
+		mLow[i] = low;
+		mValues[i] = value;
+		mUsed[i] = true;
+		mSize++;
+		
+		if ( mSize * 2 > mHigh.length ) {
+			rehash(mHigh.length * 2);
+		}
+		
+		return null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V remove(byte[] uuid) {
+		int i = indexOf(high(uuid), low(uuid));
+		if ( ! mUsed[i] ) {
+			return null;
+		}
+		
+		V old = (V) mValues[i];
+		mSize--;
+		
+		// Shift following entries of the probe sequence back into the hole
+		int hole = i;
+		int j = i;
+		while ( true ) {
+			j = (j + 1) & mMask;
+			if ( ! mUsed[j] ) {
+				break;
+			}
+			
+			int home = hash(mHigh[j], mLow[j]) & mMask;
+			if ( ((j - home) & mMask) >= ((j - hole) & mMask) ) {
+				mHigh[hole] = mHigh[j];
+				mLow[hole] = mLow[j];
+				mValues[hole] = mValues[j];
+				hole = j;
+			}
+		}
+		mUsed[hole] = false;
+		mValues[hole] = null;
+		
+		return old;
+	}
+	
+	public void clear() {
+		Arrays.fill(mUsed, false);
+		Arrays.fill(mValues, null);
+		mSize = 0;
+	}
+	
+	private static long high(byte[] uuid) {
+		return LEDataInputStream.readLong(uuid, 0);
+	}
+	
+	private static long low(byte[] uuid) {
+		return LEDataInputStream.readLong(uuid, 8);
+	}
+	
+	private int indexOf(long high, long low) {
+		int i = hash(high, low) & mMask;
+		while ( mUsed[i] && (mHigh[i] != high || mLow[i] != low) ) {
+			i = (i + 1) & mMask;
+		}
+		
+		return i;
+	}
+	
+	private static int hash(long high, long low) {
+		long h = (high ^ (low * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	private void allocate(int capacity) {
+		mHigh = new long[capacity];
+		mLow = new long[capacity];
+		mValues = new Object[capacity];
+		mUsed = new boolean[capacity];
+		mMask = capacity - 1;
+	}
+	
+	private void rehash(int capacity) {
+		long[] oldHigh = mHigh;
+		long[] oldLow = mLow;
+		Object[] oldValues = mValues;
+		boolean[] oldUsed = mUsed;
+		
+		allocate(capacity);
+		for ( int i = 0; i < oldHigh.length; i++ ) {
+			if ( oldUsed[i] ) {
+				int j = indexOf(oldHigh[i], oldLow[i]);
+				mHigh[j] = oldHigh[i];
+				mLow[j] = oldLow[i];
+				mValues[j] = oldValues[i];
+				mUsed[j] = true;
+			}
+		}
+	}
+}
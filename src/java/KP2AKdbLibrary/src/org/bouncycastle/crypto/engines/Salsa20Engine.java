@@ -16,6 +16,8 @@ public class Salsa20Engine
 {
     /** Constants */
     private final static int stateSize = 16; // 16, 32 bit ints = 64 bytes
+    private final static int blockSize = stateSize * 4;
+    private final static int batchBlocks = 4; // keystream blocks generated at once for partial blocks
     
     private final static byte[]
         sigma = toByteArray("expand 32-byte k"),
@@ -44,7 +46,7 @@ public class Salsa20Engine
     private int         index = 0;
     private int[]       engineState = new int[stateSize]; // state
     private int[]       x = new int[stateSize] ; // internal buffer
-    private byte[]      keyStream   = new byte[stateSize * 4], // expanded state, 64 bytes
+    private byte[]      keyStream   = new byte[blockSize * batchBlocks], // expanded state, 256 bytes
                         workingKey  = null,
                         workingIV   = null;
     private boolean     initialised = false;
@@ -114,15 +116,10 @@ public class Salsa20Engine
         
         if (index == 0)
         {
-            salsa20WordToByte(engineState, keyStream);
-            engineState[8]++;
-            if (engineState[8] == 0)
-            {
-                engineState[9]++;
-            }
+            generateKeyStream();
         }
         byte out = (byte)(keyStream[index]^in);
-        index = (index + 1) & 63;
+        index = (index + 1) & (keyStream.length - 1);
     
         return out;
     }
@@ -154,19 +151,31 @@ public class Salsa20Engine
             throw new MaxBytesExceededException("2^70 byte limit per IV would be exceeded; Change IV");
         }
 
-        for (int i = 0; i < len; i++)
+        int i = 0;
+        while (i < len)
         {
             if (index == 0)
             {
-                salsa20WordToByte(engineState, keyStream);
-                engineState[8]++;
-                if (engineState[8] == 0)
+                // Whole blocks are XORed with the keystream words, without expanding them to bytes first
+                if (len - i >= blockSize)
                 {
-                    engineState[9]++;
+                    salsa20Core(engineState, x);
+                    incrementCounter();
+                    xorWords(x, in, i+inOff, out, i+outOff);
+                    i += blockSize;
+                    continue;
                 }
+
+                generateKeyStream();
+            }
+
+            int count = Math.min(len - i, keyStream.length - index);
+            for (int j = 0; j < count; j++)
+            {
+                out[i+j+outOff] = (byte)(keyStream[index+j]^in[i+j+inOff]);
             }
-            out[i+outOff] = (byte)(keyStream[index]^in[i+inOff]);
-            index = (index + 1) & 63;
+            i += count;
+            index = (index + count) & (keyStream.length - 1);
         }
     }
 
@@ -221,64 +230,112 @@ public class Salsa20Engine
     }
     
     /**
-     * Salsa20 function
-     *
-     * @param   input   input data
-     *
-     * @return  keystream
-     */    
-    private void salsa20WordToByte(int[] input, byte[] output)
+     * Fill the keystream buffer with the next batchBlocks blocks
+     */
+    private void generateKeyStream()
     {
-        System.arraycopy(input, 0, x, 0, input.length);
+        for (int offset = 0; offset < keyStream.length; offset += blockSize)
+        {
+            salsa20Core(engineState, x);
+            incrementCounter();
+            for (int i = 0; i < stateSize; i++)
+            {
+                intToByteLittle(x[i], keyStream, offset + i * 4);
+            }
+        }
+    }
 
-        for (int i = 0; i < 10; i++)
+    private void incrementCounter()
+    {
+        engineState[8]++;
+        if (engineState[8] == 0)
         {
-            x[ 4] ^= rotl((x[ 0]+x[12]), 7);
-            x[ 8] ^= rotl((x[ 4]+x[ 0]), 9);
-            x[12] ^= rotl((x[ 8]+x[ 4]),13);
-            x[ 0] ^= rotl((x[12]+x[ 8]),18);
-            x[ 9] ^= rotl((x[ 5]+x[ 1]), 7);
-            x[13] ^= rotl((x[ 9]+x[ 5]), 9);
-            x[ 1] ^= rotl((x[13]+x[ 9]),13);
-            x[ 5] ^= rotl((x[ 1]+x[13]),18);
-            x[14] ^= rotl((x[10]+x[ 6]), 7);
-            x[ 2] ^= rotl((x[14]+x[10]), 9);
-            x[ 6] ^= rotl((x[ 2]+x[14]),13);
-            x[10] ^= rotl((x[ 6]+x[ 2]),18);
-            x[ 3] ^= rotl((x[15]+x[11]), 7);
-            x[ 7] ^= rotl((x[ 3]+x[15]), 9);
-            x[11] ^= rotl((x[ 7]+x[ 3]),13);
-            x[15] ^= rotl((x[11]+x[ 7]),18);
-            x[ 1] ^= rotl((x[ 0]+x[ 3]), 7);
-            x[ 2] ^= rotl((x[ 1]+x[ 0]), 9);
-            x[ 3] ^= rotl((x[ 2]+x[ 1]),13);
-            x[ 0] ^= rotl((x[ 3]+x[ 2]),18);
-            x[ 6] ^= rotl((x[ 5]+x[ 4]), 7);
-            x[ 7] ^= rotl((x[ 6]+x[ 5]), 9);
-            x[ 4] ^= rotl((x[ 7]+x[ 6]),13);
-            x[ 5] ^= rotl((x[ 4]+x[ 7]),18);
-            x[11] ^= rotl((x[10]+x[ 9]), 7);
-            x[ 8] ^= rotl((x[11]+x[10]), 9);
-            x[ 9] ^= rotl((x[ 8]+x[11]),13);
-            x[10] ^= rotl((x[ 9]+x[ 8]),18);
-            x[12] ^= rotl((x[15]+x[14]), 7);
-            x[13] ^= rotl((x[12]+x[15]), 9);
-            x[14] ^= rotl((x[13]+x[12]),13);
-            x[15] ^= rotl((x[14]+x[13]),18);
+            engineState[9]++;
         }
+    }
 
-        int offset = 0;
+    /**
+     * XOR one block of input with the keystream words in x
+     */
+    private static void xorWords(int[] x, byte[] in, int inOff, byte[] out, int outOff)
+    {
         for (int i = 0; i < stateSize; i++)
         {
-            intToByteLittle(x[i] + input[i], output, offset);
-            offset += 4;
+            int k = x[i];
+            out[outOff    ] = (byte)(in[inOff    ] ^ k);
+            out[outOff + 1] = (byte)(in[inOff + 1] ^ (k >>> 8));
+            out[outOff + 2] = (byte)(in[inOff + 2] ^ (k >>> 16));
+            out[outOff + 3] = (byte)(in[inOff + 3] ^ (k >>> 24));
+            inOff += 4;
+            outOff += 4;
         }
+    }
 
-        for (int i = stateSize; i < x.length; i++)
+    /**
+     * Salsa20 function, the working state is kept in locals
+     *
+     * @param   input   input state
+     * @param   output  keystream words
+     */    
+    private static void salsa20Core(int[] input, int[] output)
+    {
+        int x00 = input[ 0], x01 = input[ 1], x02 = input[ 2], x03 = input[ 3];
+        int x04 = input[ 4], x05 = input[ 5], x06 = input[ 6], x07 = input[ 7];
+        int x08 = input[ 8], x09 = input[ 9], x10 = input[10], x11 = input[11];
+        int x12 = input[12], x13 = input[13], x14 = input[14], x15 = input[15];
+
+        for (int i = 0; i < 10; i++)
         {
-            intToByteLittle(x[i], output, offset);
-            offset += 4;
+            x04 ^= rotl((x00+x12), 7);
+            x08 ^= rotl((x04+x00), 9);
+            x12 ^= rotl((x08+x04),13);
+            x00 ^= rotl((x12+x08),18);
+            x09 ^= rotl((x05+x01), 7);
+            x13 ^= rotl((x09+x05), 9);
+            x01 ^= rotl((x13+x09),13);
+            x05 ^= rotl((x01+x13),18);
+            x14 ^= rotl((x10+x06), 7);
+            x02 ^= rotl((x14+x10), 9);
+            x06 ^= rotl((x02+x14),13);
+            x10 ^= rotl((x06+x02),18);
+            x03 ^= rotl((x15+x11), 7);
+            x07 ^= rotl((x03+x15), 9);
+            x11 ^= rotl((x07+x03),13);
+            x15 ^= rotl((x11+x07),18);
+            x01 ^= rotl((x00+x03), 7);
+            x02 ^= rotl((x01+x00), 9);
+            x03 ^= rotl((x02+x01),13);
+            x00 ^= rotl((x03+x02),18);
+            x06 ^= rotl((x05+x04), 7);
+            x07 ^= rotl((x06+x05), 9);
+            x04 ^= rotl((x07+x06),13);
+            x05 ^= rotl((x04+x07),18);
+            x11 ^= rotl((x10+x09), 7);
+            x08 ^= rotl((x11+x10), 9);
+            x09 ^= rotl((x08+x11),13);
+            x10 ^= rotl((x09+x08),18);
+            x12 ^= rotl((x15+x14), 7);
+            x13 ^= rotl((x12+x15), 9);
+            x14 ^= rotl((x13+x12),13);
+            x15 ^= rotl((x14+x13),18);
         }
+
+        output[ 0] = x00 + input[ 0];
+        output[ 1] = x01 + input[ 1];
+        output[ 2] = x02 + input[ 2];
+        output[ 3] = x03 + input[ 3];
+        output[ 4] = x04 + input[ 4];
+        output[ 5] = x05 + input[ 5];
+        output[ 6] = x06 + input[ 6];
+        output[ 7] = x07 + input[ 7];
+        output[ 8] = x08 + input[ 8];
+        output[ 9] = x09 + input[ 9];
+        output[10] = x10 + input[10];
+        output[11] = x11 + input[11];
+        output[12] = x12 + input[12];
+        output[13] = x13 + input[13];
+        output[14] = x14 + input[14];
+        output[15] = x15 + input[15];
     }
     
     /**
@@ -288,7 +345,7 @@ public class Salsa20Engine
      *
      * @return  value of x expressed as a byte[] array in little endian order
      */
-    private byte[] intToByteLittle(int x, byte[] out, int off)
+    private static byte[] intToByteLittle(int x, byte[] out, int off)
     {
         out[off] = (byte)x;
         out[off + 1] = (byte)(x >>> 8);
@@ -305,7 +362,7 @@ public class Salsa20Engine
      *
      * @return  rotated x
      */
-    private int rotl(int x, int y)
+    private static int rotl(int x, int y)
     {
         return (x << y) | (x >>> -y);
     }
@@ -205,23 +205,33 @@ public final class TwofishEngine
 
     private boolean encrypting = false;
 
-    private int[] gMDS0 = new int[MAX_KEY_BITS];
-    private int[] gMDS1 = new int[MAX_KEY_BITS];
-    private int[] gMDS2 = new int[MAX_KEY_BITS];
-    private int[] gMDS3 = new int[MAX_KEY_BITS];
+    /**
+     * The MDS matrix multiplied through the fixed q-permutations. It
+     * does not depend on the key, so it is shared by every instance.
+     */
+    private static final int[] gMDS0 = new int[MAX_KEY_BITS];
+    private static final int[] gMDS1 = new int[MAX_KEY_BITS];
+    private static final int[] gMDS2 = new int[MAX_KEY_BITS];
+    private static final int[] gMDS3 = new int[MAX_KEY_BITS];
 
     /**
      * gSubKeys[] and gSBox[] are eventually used in the 
      * encryption and decryption methods.
+     *
+     * gSBox[] holds the four key-dependent S-boxes back to back
+     * (S0 at 0x000, S1 at 0x100, S2 at 0x200, S3 at 0x300), each with
+     * its MDS column already folded in, so a round function is four
+     * table lookups and three XORs. Both arrays are allocated once and
+     * refilled by setKey().
      */
-    private int[] gSubKeys;
-    private int[] gSBox;
+    private final int[] gSubKeys = new int[TOTAL_SUBKEYS];
+    private final int[] gSBox = new int[4*MAX_KEY_BITS];
 
     private int k64Cnt = 0;
 
     private byte[] workingKey = null;
 
-    public TwofishEngine()
+    static
     {
         // calculate the MDS matrix
         int[] m1 = new int[2];
@@ -255,6 +265,10 @@ public final class TwofishEngine
         }
     }
 
+    public TwofishEngine()
+    {
+    }
+
     /**
      * initialise a Twofish cipher.
      *
@@ -320,10 +334,8 @@ public final class TwofishEngine
 
     public void reset()
     {
-        if (this.workingKey != null)
-        {
-            setKey(this.workingKey);
-        }
+        // the expanded key is never modified by processBlock(), so
+        // there is nothing to recompute here.
     }
 
     public int getBlockSize()
@@ -341,7 +353,7 @@ public final class TwofishEngine
         int[] k32o = new int[MAX_KEY_BITS/64]; // 4 
 
         int[] sBoxKeys = new int[MAX_KEY_BITS/64]; // 4 
-        gSubKeys = new int[TOTAL_SUBKEYS];
+        int[] gSubKeys = this.gSubKeys;
 
         if (k64Cnt < 1) 
         {
@@ -390,37 +402,37 @@ public final class TwofishEngine
         int k2 = sBoxKeys[2];
         int k3 = sBoxKeys[3];
         int b0, b1, b2, b3;
-        gSBox = new int[4*MAX_KEY_BITS];
+        int[] sBox = gSBox;
+        byte[] p01 = P[P_01], p11 = P[P_11], p21 = P[P_21], p31 = P[P_31];
+        byte[] p02 = P[P_02], p12 = P[P_12], p22 = P[P_22], p32 = P[P_32];
+        byte[] p03 = P[P_03], p13 = P[P_13], p23 = P[P_23], p33 = P[P_33];
+        byte[] p04 = P[P_04], p14 = P[P_14], p24 = P[P_24], p34 = P[P_34];
         for (int i=0; i<MAX_KEY_BITS; i++)
         {
             b0 = b1 = b2 = b3 = i;
             switch (k64Cnt & 3)
             {
                 case 1:
-                    gSBox[i*2]       = gMDS0[(P[P_01][b0] & 0xff) ^ b0(k0)];
-                    gSBox[i*2+1]     = gMDS1[(P[P_11][b1] & 0xff) ^ b1(k0)];
-                    gSBox[i*2+0x200] = gMDS2[(P[P_21][b2] & 0xff) ^ b2(k0)];
-                    gSBox[i*2+0x201] = gMDS3[(P[P_31][b3] & 0xff) ^ b3(k0)];
+                    sBox[i] = gMDS0[(p01[b0] & 0xff) ^ b0(k0)];
+                    sBox[0x100 + i] = gMDS1[(p11[b1] & 0xff) ^ b1(k0)];
+                    sBox[0x200 + i] = gMDS2[(p21[b2] & 0xff) ^ b2(k0)];
+                    sBox[0x300 + i] = gMDS3[(p31[b3] & 0xff) ^ b3(k0)];
                 break;
                 case 0: /* 256 bits of key */
-                    b0 = (P[P_04][b0] & 0xff) ^ b0(k3);
-                    b1 = (P[P_14][b1] & 0xff) ^ b1(k3);
-                    b2 = (P[P_24][b2] & 0xff) ^ b2(k3);
-                    b3 = (P[P_34][b3] & 0xff) ^ b3(k3);
+                    b0 = (p04[b0] & 0xff) ^ b0(k3);
+                    b1 = (p14[b1] & 0xff) ^ b1(k3);
+                    b2 = (p24[b2] & 0xff) ^ b2(k3);
+                    b3 = (p34[b3] & 0xff) ^ b3(k3);
                 case 3: 
-                    b0 = (P[P_03][b0] & 0xff) ^ b0(k2);
-                    b1 = (P[P_13][b1] & 0xff) ^ b1(k2);
-                    b2 = (P[P_23][b2] & 0xff) ^ b2(k2);
-                    b3 = (P[P_33][b3] & 0xff) ^ b3(k2);
+                    b0 = (p03[b0] & 0xff) ^ b0(k2);
+                    b1 = (p13[b1] & 0xff) ^ b1(k2);
+                    b2 = (p23[b2] & 0xff) ^ b2(k2);
+                    b3 = (p33[b3] & 0xff) ^ b3(k2);
                 case 2:
-                    gSBox[i*2]   = gMDS0[(P[P_01]
-                        [(P[P_02][b0] & 0xff) ^ b0(k1)] & 0xff) ^ b0(k0)];
-                    gSBox[i*2+1] = gMDS1[(P[P_11]
-                        [(P[P_12][b1] & 0xff) ^ b1(k1)] & 0xff) ^ b1(k0)];
-                    gSBox[i*2+0x200] = gMDS2[(P[P_21]
-                        [(P[P_22][b2] & 0xff) ^ b2(k1)] & 0xff) ^ b2(k0)];
-                    gSBox[i*2+0x201] = gMDS3[(P[P_31]
-                        [(P[P_32][b3] & 0xff) ^ b3(k1)] & 0xff) ^ b3(k0)];
+                    sBox[i] = gMDS0[(p01[(p02[b0] & 0xff) ^ b0(k1)] & 0xff) ^ b0(k0)];
+                    sBox[0x100 + i] = gMDS1[(p11[(p12[b1] & 0xff) ^ b1(k1)] & 0xff) ^ b1(k0)];
+                    sBox[0x200 + i] = gMDS2[(p21[(p22[b2] & 0xff) ^ b2(k1)] & 0xff) ^ b2(k0)];
+                    sBox[0x300 + i] = gMDS3[(p31[(p32[b3] & 0xff) ^ b3(k1)] & 0xff) ^ b3(k0)];
                 break;
             }
         }
@@ -437,7 +449,8 @@ public final class TwofishEngine
      * The input will be an exact multiple of our blocksize.
      *
      * encryptBlock uses the pre-calculated gSBox[] and subKey[]
-     * arrays.
+     * arrays; the round function is inlined so both stay in locals
+     * for the whole block.
      */
     private void encryptBlock(
         byte[] src, 
@@ -450,21 +463,27 @@ public final class TwofishEngine
         int x2 = BytesTo32Bits(src, srcIndex + 8) ^ gSubKeys[INPUT_WHITEN + 2];
         int x3 = BytesTo32Bits(src, srcIndex + 12) ^ gSubKeys[INPUT_WHITEN + 3];
 
+        int[] sk = gSubKeys;
+        int[] sBox = gSBox;
         int k = ROUND_SUBKEYS;
         int t0, t1;
         for (int r = 0; r < ROUNDS; r +=2)
         {
-            t0 = Fe32_0(x0);
-            t1 = Fe32_3(x1);
-            x2 ^= t0 + t1 + gSubKeys[k++];
+            t0 = sBox[x0 & 0xff] ^ sBox[0x100 + ((x0 >>> 8) & 0xff)] ^
+                 sBox[0x200 + ((x0 >>> 16) & 0xff)] ^ sBox[0x300 + (x0 >>> 24)];
+            t1 = sBox[x1 >>> 24] ^ sBox[0x100 + (x1 & 0xff)] ^
+                 sBox[0x200 + ((x1 >>> 8) & 0xff)] ^ sBox[0x300 + ((x1 >>> 16) & 0xff)];
+            x2 ^= t0 + t1 + sk[k++];
             x2 = x2 >>>1 | x2 << 31;
-            x3 = (x3 << 1 | x3 >>> 31) ^ (t0 + 2*t1 + gSubKeys[k++]);
+            x3 = (x3 << 1 | x3 >>> 31) ^ (t0 + 2*t1 + sk[k++]);
 
-            t0 = Fe32_0(x2);
-            t1 = Fe32_3(x3);
-            x0 ^= t0 + t1 + gSubKeys[k++];
+            t0 = sBox[x2 & 0xff] ^ sBox[0x100 + ((x2 >>> 8) & 0xff)] ^
+                 sBox[0x200 + ((x2 >>> 16) & 0xff)] ^ sBox[0x300 + (x2 >>> 24)];
+            t1 = sBox[x3 >>> 24] ^ sBox[0x100 + (x3 & 0xff)] ^
+                 sBox[0x200 + ((x3 >>> 8) & 0xff)] ^ sBox[0x300 + ((x3 >>> 16) & 0xff)];
+            x0 ^= t0 + t1 + sk[k++];
             x0 = x0 >>>1 | x0 << 31;
-            x1 = (x1 << 1 | x1 >>> 31) ^ (t0 + 2*t1 + gSubKeys[k++]);
+            x1 = (x1 << 1 | x1 >>> 31) ^ (t0 + 2*t1 + sk[k++]);
         }
 
         Bits32ToBytes(x2 ^ gSubKeys[OUTPUT_WHITEN], dst, dstIndex);
@@ -489,20 +508,26 @@ public final class TwofishEngine
         int x0 = BytesTo32Bits(src, srcIndex+8) ^ gSubKeys[OUTPUT_WHITEN + 2];
         int x1 = BytesTo32Bits(src, srcIndex+12) ^ gSubKeys[OUTPUT_WHITEN + 3];
 
+        int[] sk = gSubKeys;
+        int[] sBox = gSBox;
         int k = ROUND_SUBKEYS + 2 * ROUNDS -1 ;
         int t0, t1;
         for (int r = 0; r< ROUNDS ; r +=2)
         {
-            t0 = Fe32_0(x2);
-            t1 = Fe32_3(x3);
-            x1 ^= t0 + 2*t1 + gSubKeys[k--];
-            x0 = (x0 << 1 | x0 >>> 31) ^ (t0 + t1 + gSubKeys[k--]);
+            t0 = sBox[x2 & 0xff] ^ sBox[0x100 + ((x2 >>> 8) & 0xff)] ^
+                 sBox[0x200 + ((x2 >>> 16) & 0xff)] ^ sBox[0x300 + (x2 >>> 24)];
+            t1 = sBox[x3 >>> 24] ^ sBox[0x100 + (x3 & 0xff)] ^
+                 sBox[0x200 + ((x3 >>> 8) & 0xff)] ^ sBox[0x300 + ((x3 >>> 16) & 0xff)];
+            x1 ^= t0 + 2*t1 + sk[k--];
+            x0 = (x0 << 1 | x0 >>> 31) ^ (t0 + t1 + sk[k--]);
             x1 = x1 >>>1 | x1 << 31;
 
-            t0 = Fe32_0(x0);
-            t1 = Fe32_3(x1);
-            x3 ^= t0 + 2*t1 + gSubKeys[k--];
-            x2 = (x2 << 1 | x2 >>> 31) ^ (t0 + t1 + gSubKeys[k--]);
+            t0 = sBox[x0 & 0xff] ^ sBox[0x100 + ((x0 >>> 8) & 0xff)] ^
+                 sBox[0x200 + ((x0 >>> 16) & 0xff)] ^ sBox[0x300 + (x0 >>> 24)];
+            t1 = sBox[x1 >>> 24] ^ sBox[0x100 + (x1 & 0xff)] ^
+                 sBox[0x200 + ((x1 >>> 8) & 0xff)] ^ sBox[0x300 + ((x1 >>> 16) & 0xff)];
+            x3 ^= t0 + 2*t1 + sk[k--];
+            x2 = (x2 << 1 | x2 >>> 31) ^ (t0 + t1 + sk[k--]);
             x3 = x3 >>>1 | x3 << 31;
         }
 
@@ -600,25 +625,25 @@ public final class TwofishEngine
         return ((x << 8) ^ (g3 << 24) ^ (g2 << 16) ^ (g3 << 8) ^ b);
     }
         
-    private int LFSR1(int x)
+    private static int LFSR1(int x)
     {
         return (x >> 1) ^ 
                 (((x & 0x01) != 0) ? GF256_FDBK_2 : 0);
     }
 
-    private int LFSR2(int x)
+    private static int LFSR2(int x)
     {
         return (x >> 2) ^
                 (((x & 0x02) != 0) ? GF256_FDBK_2 : 0) ^
                 (((x & 0x01) != 0) ? GF256_FDBK_4 : 0);
     }
 
-    private int Mx_X(int x)
+    private static int Mx_X(int x)
     {
         return x ^ LFSR2(x);
     } // 5B
 
-    private int Mx_Y(int x)
+    private static int Mx_Y(int x)
     {
         return x ^ LFSR1(x) ^ LFSR2(x);
     } // EF
@@ -643,22 +668,6 @@ public final class TwofishEngine
         return (x >>> 24) & 0xff;
     }
 
-    private int Fe32_0(int x)
-    {
-        return gSBox[ 0x000 + 2*(x & 0xff) ] ^
-               gSBox[ 0x001 + 2*((x >>> 8) & 0xff) ] ^
-               gSBox[ 0x200 + 2*((x >>> 16) & 0xff) ] ^
-               gSBox[ 0x201 + 2*((x >>> 24) & 0xff) ];
-    }
-    
-    private int Fe32_3(int x)
-    {
-        return gSBox[ 0x000 + 2*((x >>> 24) & 0xff) ] ^
-               gSBox[ 0x001 + 2*(x & 0xff) ] ^
-               gSBox[ 0x200 + 2*((x >>> 8) & 0xff) ] ^
-               gSBox[ 0x201 + 2*((x >>> 16) & 0xff) ];
-    }
-    
     private int BytesTo32Bits(byte[] b, int p)
     {
         return ((b[p] & 0xff)) | 
@@ -0,0 +1,139 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.engines.Salsa20Engine;
+import org.bouncycastle.crypto.engines.TwofishEngine;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Throughput of the bundled Salsa20 and Twofish engines. The Twofish tables
+ * are checked against the published known answers before anything is timed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CipherEngineBenchmark {
+	
+	@Param({"64", "1048576"})
+	public int size;
+	
+	private byte[] key = new byte[32];
+	private byte[] salsaIV = new byte[8];
+	private byte[] twofishIV = new byte[16];
+	private byte[] in;
+	private byte[] out;
+	
+	private Salsa20Engine salsa = new Salsa20Engine();
+	private TwofishEngine twofish = new TwofishEngine();
+	private CBCBlockCipher twofishCbc = new CBCBlockCipher(new TwofishEngine());
+	
+	/** Key, ciphertext of an all-zero block; from the Twofish paper's test vectors */
+	private static final String[][] TWOFISH_KAT = {
+		{ "00000000000000000000000000000000", "9F589F5CF6122C32B6BFEC2F2AE8C35A" },
+		{ "0123456789ABCDEFFEDCBA98765432100011223344556677", "CFD1D2E5A9BE9CDF501F13B892BD2248" },
+		{ "0123456789ABCDEFFEDCBA987654321000112233445566778899AABBCCDDEEFF", "37527BE0052334B89F0CFCCAE87CFA20" }
+	};
+	
+	@Setup
+	public void setup() {
+		for ( String[] kat : TWOFISH_KAT ) {
+			checkTwofish(fromHex(kat[0]), fromHex(kat[1]));
+		}
+		
+		Random random = new Random(DatabaseGenerator.SEED);
+		random.nextBytes(key);
+		random.nextBytes(salsaIV);
+		random.nextBytes(twofishIV);
+		
+		// Whole blocks, the block cipher benchmarks don't pad
+		in = new byte[size];
+		out = new byte[size];
+		random.nextBytes(in);
+	}
+	
+	private static void checkTwofish(byte[] key, byte[] expected) {
+		TwofishEngine engine = new TwofishEngine();
+		byte[] block = new byte[16];
+		
+		engine.init(true, new KeyParameter(key));
+		engine.processBlock(block, 0, block, 0);
+		if ( ! Arrays.equals(block, expected) ) {
+			throw new IllegalStateException("Twofish known answer mismatch for a " + key.length * 8 + " bit key");
+		}
+		
+		engine.init(false, new KeyParameter(key));
+		engine.processBlock(block, 0, block, 0);
+		if ( ! Arrays.equals(block, new byte[16]) ) {
+			throw new IllegalStateException("Twofish decryption mismatch for a " + key.length * 8 + " bit key");
+		}
+	}
+	
+	private static byte[] fromHex(String hex) {
+		byte[] buf = new byte[hex.length() / 2];
+		for ( int i = 0; i < buf.length; i++ ) {
+			buf[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return buf;
+	}
+	
+	@Benchmark
+	public byte[] salsa20() {
+		salsa.init(true, new ParametersWithIV(new KeyParameter(key), salsaIV));
+		salsa.processBytes(in, 0, in.length, out, 0);
+		return out;
+	}
+	
+	@Benchmark
+	public TwofishEngine twofishKeySetup() {
+		twofish.init(true, new KeyParameter(key));
+		return twofish;
+	}
+	
+	@Benchmark
+	public byte[] twofishCbcEncrypt() {
+		twofishCbc.init(true, new ParametersWithIV(new KeyParameter(key), twofishIV));
+		for ( int i = 0; i < in.length; i += 16 ) {
+			twofishCbc.processBlock(in, i, out, i);
+		}
+		return out;
+	}
+	
+	@Benchmark
+	public byte[] twofishCbcDecrypt() {
+		twofishCbc.init(false, new ParametersWithIV(new KeyParameter(key), twofishIV));
+		for ( int i = 0; i < in.length; i += 16 ) {
+			twofishCbc.processBlock(in, i, out, i);
+		}
+		return out;
+	}
+
+}
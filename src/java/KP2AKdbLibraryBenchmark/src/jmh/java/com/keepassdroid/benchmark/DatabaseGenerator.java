@@ -0,0 +1,161 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import com.keepassdroid.database.PwDatabaseV3;
+import com.keepassdroid.database.PwDate;
+import com.keepassdroid.database.PwEncryptionAlgorithm;
+import com.keepassdroid.database.PwEntryV3;
+import com.keepassdroid.database.PwGroupIdV3;
+import com.keepassdroid.database.PwGroupV3;
+import com.keepassdroid.database.save.PwDbV3Output;
+
+/** Builds synthetic databases for the benchmarks. The same arguments always
+ * give the same groups, entries, ids and dates.
+ */
+public class DatabaseGenerator {
+	
+	public static final String PASSWORD = "benchmark";
+	public static final long SEED = 0x4b50324144L;
+	
+	// 2013-01-01 00:00:00 UTC, all dates are offsets from it
+	private static final long BASE_TIME = 1356998400000L;
+	private static final long YEAR = 365L * 24 * 60 * 60 * 1000;
+	
+	public static PwDatabaseV3 generate(int numEntries, PwEncryptionAlgorithm algorithm, int rounds) throws Exception {
+		return generate(Math.max(1, numEntries / 20), numEntries, SEED, algorithm, rounds);
+	}
+	
+	public static PwDatabaseV3 generate(int numGroups, int numEntries, long seed, PwEncryptionAlgorithm algorithm, int rounds) throws Exception {
+		Random random = new Random(seed);
+		
+		PwDatabaseV3 db = new PwDatabaseV3();
+		db.setMasterKey(PASSWORD, null);
+		db.algorithm = algorithm;
+		db.numKeyEncRounds = rounds;
+		db.constructTree(null);
+		
+		List<PwGroupV3> groups = new ArrayList<PwGroupV3>();
+		for ( int i = 0; i < numGroups; i++ ) {
+			// Keep the tree shallow and bushy like real databases
+			PwGroupV3 parent;
+			if ( groups.isEmpty() || random.nextInt(4) == 0 ) {
+				parent = db.rootGroup;
+			} else {
+				parent = groups.get(random.nextInt(groups.size()));
+			}
+			
+			PwGroupV3 group = new PwGroupV3();
+			group.initNewGroup("Group " + i, groupId(db, random));
+			group.icon = db.iconFactory.getIcon(random.nextInt(69));
+			db.addGroupTo(group, parent);
+			groups.add(group);
+		}
+		
+		for ( int i = 0; i < numEntries; i++ ) {
+			PwGroupV3 parent = groups.get(random.nextInt(groups.size()));
+			
+			PwEntryV3 entry = new PwEntryV3(parent);
+			random.nextBytes(entry.uuid);
+			entry.setTitle("Entry " + i, db);
+			entry.setUsername("user" + random.nextInt(10000) + "@example.com", db);
+			entry.setUrl("https://www.site" + random.nextInt(5000) + ".example.com/login", db);
+			entry.setPassword(password(random), db);
+			entry.setNotes(notes(random, i), db);
+			entry.icon = db.iconFactory.getIcon(random.nextInt(69));
+			
+			if ( random.nextInt(50) == 0 ) {
+				byte[] data = new byte[1024 + random.nextInt(16 * 1024)];
+				random.nextBytes(data);
+				entry.binaryDesc = "attachment" + i + ".bin";
+				entry.setBinaryData(data, 0, data.length);
+			} else {
+				entry.binaryDesc = "";
+				entry.setBinaryData(new byte[0], 0, 0);
+			}
+			
+			Date created = date(random);
+			entry.setCreationTime(created);
+			entry.setLastModificationTime(created);
+			entry.setLastAccessTime(created);
+			
+			db.addEntryTo(entry, parent);
+		}
+		
+		// Adding a group touches its parents, replace those dates with fixed ones
+		for ( int i = 0; i < groups.size(); i++ ) {
+			PwGroupV3 group = groups.get(i);
+			Date created = date(random);
+			group.tCreation = new PwDate(created);
+			group.setLastModificationTime(created);
+			group.setLastAccessTime(created);
+		}
+		
+		return db;
+	}
+	
+	/** Saves the database, the encryption IV and seeds are random */
+	public static byte[] save(PwDatabaseV3 db) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		new PwDbV3Output(db, os).output();
+		return os.toByteArray();
+	}
+	
+	// PwDatabaseV3.newGroupId() is not seeded
+	private static PwGroupIdV3 groupId(PwDatabaseV3 db, Random random) {
+		PwGroupIdV3 id;
+		do {
+			id = new PwGroupIdV3(random.nextInt());
+		} while ( id.getId() == 0 || id.getId() == -1 || db.getGroupById(id.getId()) != null );
+		
+		return id;
+	}
+	
+	private static Date date(Random random) {
+		return new Date(BASE_TIME + (long) (random.nextDouble() * 5 * YEAR) / 1000 * 1000);
+	}
+	
+	private static String password(Random random) {
+		StringBuilder sb = new StringBuilder();
+		int len = 12 + random.nextInt(20);
+		for ( int i = 0; i < len; i++ ) {
+			sb.append((char) (33 + random.nextInt(94)));
+		}
+		return sb.toString();
+	}
+	
+	private static String notes(Random random, int i) {
+		switch ( random.nextInt(4) ) {
+		case 0:
+			return "";
+		case 1:
+			return "Account number " + random.nextInt(1000000);
+		case 2:
+			return "Security question: " + i + "\nAnswer: " + Long.toHexString(random.nextLong());
+		default:
+			return "\u00dcn\u00efc\u00f6d\u00e9 n\u00f6tes for entry " + i;
+		}
+	}
+
+}
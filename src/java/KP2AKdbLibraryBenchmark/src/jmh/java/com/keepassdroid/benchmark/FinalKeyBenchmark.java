@@ -0,0 +1,66 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.keepassdroid.crypto.finalkey.FinalKey;
+import com.keepassdroid.crypto.finalkey.FinalKeyFactory;
+import com.keepassdroid.crypto.finalkey.FinalKeyType;
+
+/** Key transform of the Java FinalKey implementations */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FinalKeyBenchmark {
+	
+	@Param({"6000", "60000", "600000"})
+	public int rounds;
+	
+	@Param({"Android", "AndroidParallel"})
+	public String type;
+	
+	private FinalKey finalKey;
+	private byte[] seed = new byte[32];
+	private byte[] key = new byte[32];
+	
+	@Setup
+	public void setup() {
+		finalKey = FinalKeyFactory.createFinalKey(FinalKeyType.valueOf(type));
+		
+		Random random = new Random(DatabaseGenerator.SEED);
+		random.nextBytes(seed);
+		random.nextBytes(key);
+	}
+	
+	@Benchmark
+	public byte[] transformMasterKey() throws Exception {
+		return finalKey.transformMasterKey(seed, key, rounds);
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.keepassdroid.stream.HashedBlockInputStream;
+import com.keepassdroid.stream.HashedBlockOutputStream;
+
+/** Throughput of the hashed block streams, in MB/s when divided into the payload size */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HashedBlockStreamBenchmark {
+	
+	@Param({"16"})
+	public int megabytes;
+	
+	@Param({"false", "true"})
+	public boolean parallel;
+	
+	private byte[] plain;
+	private byte[] hashed;
+	private byte[] readBuffer = new byte[64 * 1024];
+	
+	@Setup
+	public void setup() throws Exception {
+		plain = new byte[megabytes * 1024 * 1024];
+		new Random(DatabaseGenerator.SEED).nextBytes(plain);
+		hashed = write();
+	}
+	
+	@Benchmark
+	public byte[] write() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(plain.length + plain.length / 16);
+		HashedBlockOutputStream hos = new HashedBlockOutputStream(os, 0, parallel);
+		hos.write(plain);
+		hos.close();
+		return os.toByteArray();
+	}
+	
+	@Benchmark
+	public long read() throws Exception {
+		HashedBlockInputStream his = new HashedBlockInputStream(new ByteArrayInputStream(hashed), parallel);
+		long total = 0;
+		int read;
+		while ( (read = his.read(readBuffer, 0, readBuffer.length)) != -1 ) {
+			total += read;
+		}
+		his.close();
+		return total;
+	}
+
+}
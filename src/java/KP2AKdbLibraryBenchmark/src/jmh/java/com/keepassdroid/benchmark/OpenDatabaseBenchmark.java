@@ -0,0 +1,86 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.keepassdroid.UpdateStatus;
+import com.keepassdroid.database.PwDatabaseV3;
+import com.keepassdroid.database.PwEncryptionAlgorithm;
+import com.keepassdroid.database.load.ImporterV3;
+
+/** Opens generated databases. The key transform uses a single round so the
+ * decryption and parsing dominate, see FinalKeyBenchmark for the transform.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OpenDatabaseBenchmark {
+	
+	@Param({"1000", "10000", "100000"})
+	public int entries;
+	
+	@Param({"Rjindal", "Twofish"})
+	public String algorithm;
+	
+	private byte[] file;
+	private File localFile;
+	
+	@Setup
+	public void setup() throws Exception {
+		PwDatabaseV3 db = DatabaseGenerator.generate(entries, PwEncryptionAlgorithm.valueOf(algorithm), 1);
+		file = DatabaseGenerator.save(db);
+		
+		localFile = File.createTempFile("open", ".kdb");
+		FileOutputStream fos = new FileOutputStream(localFile);
+		try {
+			fos.write(file);
+		} finally {
+			fos.close();
+		}
+	}
+	
+	@TearDown
+	public void tearDown() {
+		localFile.delete();
+	}
+	
+	@Benchmark
+	public PwDatabaseV3 openDatabase() throws Exception {
+		return new ImporterV3().openDatabase(new ByteArrayInputStream(file), DatabaseGenerator.PASSWORD, null);
+	}
+	
+	@Benchmark
+	public PwDatabaseV3 openDatabaseMapped() throws Exception {
+		return new ImporterV3().openDatabase(localFile, DatabaseGenerator.PASSWORD, null, new UpdateStatus());
+	}
+
+}
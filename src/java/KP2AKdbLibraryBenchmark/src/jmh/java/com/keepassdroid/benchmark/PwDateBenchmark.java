@@ -0,0 +1,81 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.benchmark;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.keepassdroid.database.PwDate;
+
+/** Conversion between the packed 5 byte dates and java.util.Date */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PwDateBenchmark {
+	
+	private static final int COUNT = 1024;
+	
+	private Date[] dates = new Date[COUNT];
+	private byte[] packed = new byte[COUNT * 5];
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(DatabaseGenerator.SEED);
+		for ( int i = 0; i < COUNT; i++ ) {
+			// Whole seconds between 2000 and 2030
+			dates[i] = new Date((946684800L + (long) (random.nextDouble() * 30 * 365 * 86400)) * 1000);
+			System.arraycopy(new PwDate(dates[i]).getCDate(), 0, packed, i * 5, 5);
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public void encode(Blackhole bh) {
+		for ( int i = 0; i < COUNT; i++ ) {
+			bh.consume(new PwDate(dates[i]).getCDate());
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public void decode(Blackhole bh) {
+		for ( int i = 0; i < COUNT; i++ ) {
+			bh.consume(new PwDate(packed, i * 5).getJDate());
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public void decodeMillis(Blackhole bh) {
+		for ( int i = 0; i < COUNT; i++ ) {
+			bh.consume(new PwDate(packed, i * 5).getTime());
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.keepassdroid.database.PwDatabaseV3;
+import com.keepassdroid.database.PwEncryptionAlgorithm;
+
+/** Saves generated databases with PwDbV3Output, using a single key transform round */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SaveDatabaseBenchmark {
+	
+	@Param({"1000", "10000", "100000"})
+	public int entries;
+	
+	@Param({"Rjindal", "Twofish"})
+	public String algorithm;
+	
+	private PwDatabaseV3 db;
+	
+	@Setup
+	public void setup() throws Exception {
+		db = DatabaseGenerator.generate(entries, PwEncryptionAlgorithm.valueOf(algorithm), 1);
+	}
+	
+	@Benchmark
+	public byte[] output() throws Exception {
+		return DatabaseGenerator.save(db);
+	}
+
+}
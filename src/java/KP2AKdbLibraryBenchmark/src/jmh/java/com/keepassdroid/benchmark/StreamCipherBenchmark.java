@@ -0,0 +1,72 @@
+/*
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.StreamCipher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.keepassdroid.crypto.PwStreamCipherFactory;
+import com.keepassdroid.database.CrsAlgorithm;
+
+/** Inner random stream ciphers protecting a batch of fields, like a database load or save */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StreamCipherBenchmark {
+	
+	@Param({"Salsa20", "ChaCha20"})
+	public CrsAlgorithm algorithm;
+	
+	/** Length of each protected field */
+	@Param({"16", "64", "4096"})
+	public int fieldSize;
+	
+	@Param({"5000"})
+	public int fields;
+	
+	private byte[] key = new byte[32];
+	private byte[] field;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(DatabaseGenerator.SEED);
+		random.nextBytes(key);
+		field = new byte[fieldSize];
+		random.nextBytes(field);
+	}
+	
+	@Benchmark
+	public byte[] protectFields() {
+		StreamCipher cipher = PwStreamCipherFactory.getInstance(algorithm, key);
+		for ( int i = 0; i < fields; i++ ) {
+			cipher.processBytes(field, 0, field.length, field, 0);
+		}
+		return field;
+	}
+
+}
@@ -0,0 +1,7 @@
+package android.app;
+
+/** JVM replacement for android.app.ProgressDialog, used by the benchmarks only */
+public class ProgressDialog {
+	public void setMessage(CharSequence message) { }
+	public void setProgress(int value) { }
+}
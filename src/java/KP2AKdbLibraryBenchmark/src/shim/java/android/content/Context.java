@@ -0,0 +1,8 @@
+package android.content;
+
+/** JVM replacement for android.content.Context, used by the benchmarks only */
+public class Context {
+	public String getString(int resId) {
+		return "";
+	}
+}
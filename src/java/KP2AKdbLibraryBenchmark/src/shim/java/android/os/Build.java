@@ -0,0 +1,6 @@
+package android.os;
+
+/** JVM replacement for android.os.Build, used by the benchmarks only */
+public class Build {
+	public static final String MODEL = "JVM";
+}
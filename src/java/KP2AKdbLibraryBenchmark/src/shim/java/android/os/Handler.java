@@ -0,0 +1,9 @@
+package android.os;
+
+/** JVM replacement for android.os.Handler, runs posted tasks directly */
+public class Handler {
+	public boolean post(Runnable r) {
+		r.run();
+		return true;
+	}
+}